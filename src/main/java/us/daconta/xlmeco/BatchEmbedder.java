@@ -0,0 +1,276 @@
+package us.daconta.xlmeco;
+
+import io.grpc.Context;
+import us.daconta.xlmeco.cache.EmbeddingCache;
+import us.daconta.xlmeco.cache.EmbeddingCacheKey;
+import us.daconta.xlmeco.cache.MappedEmbeddingStore;
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.grpc.ModelParameters;
+import us.daconta.xlmeco.provider.Embedding;
+import us.daconta.xlmeco.provider.EmbeddingProvider;
+import us.daconta.xlmeco.provider.ProviderHttpException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Embeds texts through the memory cache, the persistent store and the provider's batch endpoint.
+ * <p>
+ * Texts already cached are answered directly and repeated texts are embedded once. The rest are packed into
+ * provider calls of at most {@link EmbeddingProvider#getMaxBatchSize()} texts and
+ * {@link EmbeddingProvider#getMaxBatchTokens()} estimated tokens, sent at most max_batches_in_flight at a
+ * time per request and under the provider's {@link ConcurrencyLimiter} limit. When a batch is rejected as a
+ * bad request (4xx) it is retried in halves, so a single bad input only fails its own item; any other
+ * failure fails the batch.
+ */
+public class BatchEmbedder {
+    public static final String PROPERTY_MAX_BATCHES_IN_FLIGHT = "embedding.max_batches_in_flight";
+
+    private static final Logger logger = Logger.getLogger(BatchEmbedder.class.getName());
+
+    private final EmbeddingCache cache;         // null when disabled
+    private final MappedEmbeddingStore store;   // null when disabled
+    private final ConcurrencyLimiter limiter;
+    private final int maxBatchesInFlight;
+
+    public BatchEmbedder(EmbeddingCache cache, MappedEmbeddingStore store, ConcurrencyLimiter limiter, int maxBatchesInFlight) {
+        this.cache = cache;
+        this.store = store;
+        this.limiter = limiter;
+        this.maxBatchesInFlight = Math.max(1, maxBatchesInFlight);
+    }
+
+    public static BatchEmbedder fromProperties(Properties properties, EmbeddingCache cache, MappedEmbeddingStore store,
+                                               ConcurrencyLimiter limiter) {
+        return new BatchEmbedder(cache, store, limiter, ConfigProperties.getInt(properties, PROPERTY_MAX_BATCHES_IN_FLIGHT, 4, 1));
+    }
+
+    public int getMaxBatchesInFlight() {
+        return maxBatchesInFlight;
+    }
+
+    public boolean isCaching() {
+        return cache != null || store != null;
+    }
+
+    public EmbeddingCacheKey key(EmbeddingProvider provider, ModelParameters parameters, String text) {
+        return EmbeddingCacheKey.of(provider.getProviderName(), provider.getEmbeddingModel(), parameters, text);
+    }
+
+    /**
+     * Memory cache first, then the on-disk store; a store hit is promoted into the memory cache.
+     */
+    public Embedding lookup(EmbeddingCacheKey key) {
+        Embedding cached = cache != null ? cache.get(key) : null;
+        if (cached == null && store != null) {
+            cached = store.get(key);
+            if (cached != null && cache != null) {
+                cache.put(key, cached);
+            }
+        }
+        return cached;
+    }
+
+    public void remember(EmbeddingCacheKey key, Embedding embedding) {
+        if (key == null || embedding.isEmpty()) {
+            return;
+        }
+        if (cache != null) {
+            cache.put(key, embedding);
+        }
+        if (store != null) {
+            store.put(key, embedding);
+        }
+    }
+
+    /**
+     * One future per text, in input order; each completes with its embedding or its own failure.
+     */
+    public List<CompletableFuture<Embedding>> embed(EmbeddingProvider provider, List<String> texts, ModelParameters parameters) {
+        List<CompletableFuture<Embedding>> results = new ArrayList<>(texts.size());
+        Map<String, CompletableFuture<Embedding>> pending = new HashMap<>();
+        List<String> missTexts = new ArrayList<>();
+        List<EmbeddingCacheKey> missKeys = new ArrayList<>();
+        for (String text : texts) {
+            CompletableFuture<Embedding> duplicate = pending.get(text);
+            if (duplicate != null) {
+                results.add(duplicate);
+                continue;
+            }
+            EmbeddingCacheKey key = isCaching() ? key(provider, parameters, text) : null;
+            Embedding cached = key != null ? lookup(key) : null;
+            CompletableFuture<Embedding> result = cached != null ? CompletableFuture.completedFuture(cached) : new CompletableFuture<>();
+            if (cached == null) {
+                missTexts.add(text);
+                missKeys.add(key);
+            }
+            pending.put(text, result);
+            results.add(result);
+        }
+
+        List<CompletableFuture<Embedding>> missResults = new ArrayList<>(missTexts.size());
+        for (String text : missTexts) {
+            missResults.add(pending.get(text));
+        }
+        embedUncached(provider, parameters, missTexts, missKeys, missResults);
+        return results;
+    }
+
+    /**
+     * Embed distinct texts known to be missing from the caches, completing results[i] for texts[i]. keys[i]
+     * may be null when caching is off. The returned future completes once every result has.
+     */
+    public CompletableFuture<Void> embedUncached(EmbeddingProvider provider, ModelParameters parameters, List<String> texts,
+                                                 List<EmbeddingCacheKey> keys, List<CompletableFuture<Embedding>> results) {
+        int maxSize = Math.max(1, provider.getMaxBatchSize());
+        int maxTokens = provider.getMaxBatchTokens();
+        List<int[]> batches = new ArrayList<>();
+        int start = 0;
+        while (start < texts.size()) {
+            int end = start;
+            long tokens = 0;
+            // A single text over the token budget still goes alone; the provider reports its error
+            while (end < texts.size() && end - start < maxSize) {
+                tokens += EmbeddingProvider.estimateTokens(texts.get(end));
+                if (end > start && tokens > maxTokens) {
+                    break;
+                }
+                end++;
+            }
+            batches.add(new int[] {start, end});
+            start = end;
+        }
+        return new Window(provider, parameters, texts, keys, results, batches).start();
+    }
+
+    /**
+     * The batches of one embedUncached call, at most maxBatchesInFlight of them calling the provider at a
+     * time; each finished batch starts the next. Batches not started when the caller's Context is cancelled
+     * fail with it instead of being sent.
+     */
+    private final class Window {
+        private final EmbeddingProvider provider;
+        private final ModelParameters parameters;
+        private final List<String> texts;
+        private final List<EmbeddingCacheKey> keys;
+        private final List<CompletableFuture<Embedding>> results;
+        private final List<int[]> batches;
+        private final Context context = Context.current();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger remaining;
+
+        Window(EmbeddingProvider provider, ModelParameters parameters, List<String> texts, List<EmbeddingCacheKey> keys,
+               List<CompletableFuture<Embedding>> results, List<int[]> batches) {
+            this.provider = provider;
+            this.parameters = parameters;
+            this.texts = texts;
+            this.keys = keys;
+            this.results = results;
+            this.batches = batches;
+            this.remaining = new AtomicInteger(batches.size());
+        }
+
+        CompletableFuture<Void> start() {
+            if (batches.isEmpty()) {
+                done.complete(null);
+            }
+            for (int i = 0; i < Math.min(maxBatchesInFlight, batches.size()); i++) {
+                sendNext();
+            }
+            return done;
+        }
+
+        // Loops over batches that finish at once (e.g. rejected by the limiter) instead of recursing
+        private void sendNext() {
+            while (true) {
+                int index = next.getAndIncrement();
+                if (index >= batches.size()) {
+                    return;
+                }
+                CompletableFuture<Void> batch = send(batches.get(index)[0], batches.get(index)[1]);
+                if (!batch.isDone()) {
+                    batch.whenComplete((ignored, error) -> {
+                        finished();
+                        sendNext();
+                    });
+                    return;
+                }
+                finished();
+            }
+        }
+
+        private CompletableFuture<Void> send(int from, int to) {
+            Throwable failure = null;
+            if (context.isCancelled()) {
+                failure = context.cancellationCause() != null ? context.cancellationCause() : new CancellationException("Embedding request cancelled");
+            } else {
+                try {
+                    return context.call(() -> callBatch(texts.subList(from, to), keys.subList(from, to), results.subList(from, to)));
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+            for (CompletableFuture<Embedding> result : results.subList(from, to)) {
+                result.completeExceptionally(failure);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        private void finished() {
+            if (remaining.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+
+        // Completes once every text of the batch has its result
+        private CompletableFuture<Void> callBatch(List<String> batchTexts, List<EmbeddingCacheKey> batchKeys,
+                                                  List<CompletableFuture<Embedding>> batchResults) {
+            CompletableFuture<List<Embedding>> call;
+            try {
+                call = limiter.call(provider.getProviderName(), provider.getEmbeddingModel(),
+                        () -> provider.generateEmbeddingsAsync(batchTexts, parameters));
+            } catch (RuntimeException e) {
+                call = CompletableFuture.failedFuture(e);
+            }
+            return call.handle((embeddings, error) -> {
+                if (error == null && embeddings.size() == batchTexts.size()) {
+                    for (int i = 0; i < batchTexts.size(); i++) {
+                        remember(batchKeys.get(i), embeddings.get(i));
+                        batchResults.get(i).complete(embeddings.get(i));
+                    }
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                Throwable failure = error != null ? unwrap(error)
+                        : new IllegalStateException("Expected " + batchTexts.size() + " embeddings, got " + embeddings.size());
+                // A bad input fails the whole request; find it by halving. Overload and outages fail the batch
+                // as it is, rather than multiplying the calls to a provider that is already struggling.
+                if (batchTexts.size() == 1 || !ProviderHttpException.isClientError(failure)) {
+                    for (CompletableFuture<Embedding> result : batchResults) {
+                        result.completeExceptionally(failure);
+                    }
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                int half = batchTexts.size() / 2;
+                logger.log(Level.WARNING, "Batch of " + batchTexts.size() + " embeddings was rejected; retrying it in halves", failure);
+                return callBatch(batchTexts.subList(0, half), batchKeys.subList(0, half), batchResults.subList(0, half))
+                        .thenCompose(ignored -> callBatch(batchTexts.subList(half, batchTexts.size()),
+                                batchKeys.subList(half, batchKeys.size()), batchResults.subList(half, batchResults.size())));
+            }).thenCompose(Function.identity());
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
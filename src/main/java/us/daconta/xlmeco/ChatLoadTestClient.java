@@ -0,0 +1,108 @@
+package us.daconta.xlmeco;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import us.daconta.xlmeco.grpc.*;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test client that opens many concurrent asyncChat streams against a running server.
+ * Run the server with a small heap (e.g. -Xmx256m) and server.executor=virtual to verify that
+ * thousands of in-flight streaming chats do not require thousands of platform threads.
+ */
+public class ChatLoadTestClient {
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 6) {
+            System.err.println("Usage: ChatLoadTestClient <host> <port> <provider> <modelName> <prompt> <concurrentStreams>");
+            System.exit(1);
+        }
+
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String provider = args[2];
+        String modelName = args[3];
+        String prompt = args[4];
+        int concurrentStreams = Integer.parseInt(args[5]);
+
+        ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port)
+                .usePlaintext()
+                .build();
+
+        XlmEcosystemServiceGrpc.XlmEcosystemServiceBlockingStub stub = XlmEcosystemServiceGrpc.newBlockingStub(channel);
+        XlmEcosystemServiceGrpc.XlmEcosystemServiceStub asyncStub = XlmEcosystemServiceGrpc.newStub(channel);
+
+        String clientId = UUID.randomUUID().toString();
+        ClientRegistrationResponse registrationResponse = stub.registerClient(ClientRegistrationRequest.newBuilder()
+                .setClientId(clientId)
+                .setClientName("java-load-test-client")
+                .build());
+        if (!registrationResponse.getSuccess()) {
+            System.out.println("Failed to register the client! Aborting...");
+            System.exit(1);
+        }
+
+        SelectionResponse selectionResponse = stub.setPreferredProviders(ProviderSelectionRequest.newBuilder()
+                .setClientId(clientId)
+                .putProviderCapabilities(provider, ProviderCapabilitiesRequest.newBuilder()
+                        .addCapabilities("chat").build())
+                .build());
+        if (!selectionResponse.getSuccess()) {
+            System.out.println("Failed to set the provider! Aborting...");
+            System.exit(1);
+        }
+
+        ChatRequest request = ChatRequest.newBuilder()
+                .setClientId(clientId)
+                .setPrompt(prompt)
+                .setProvider(provider)
+                .setModelName(modelName)
+                .build();
+
+        CountDownLatch latch = new CountDownLatch(concurrentStreams);
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong tokens = new AtomicLong();
+
+        System.out.println("Opening " + concurrentStreams + " concurrent asyncChat streams...");
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrentStreams; i++) {
+            asyncStub.asyncChat(request, new StreamObserver<ChatResponsePart>() {
+                @Override
+                public void onNext(ChatResponsePart responsePart) {
+                    tokens.incrementAndGet();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    failed.incrementAndGet();
+                    latch.countDown();
+                }
+
+                @Override
+                public void onCompleted() {
+                    completed.incrementAndGet();
+                    latch.countDown();
+                }
+            });
+        }
+
+        while (!latch.await(5, TimeUnit.SECONDS)) {
+            System.out.println("In flight: " + latch.getCount() + ", completed: " + completed.get()
+                    + ", failed: " + failed.get() + ", tokens: " + tokens.get());
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.out.println("Streams completed: " + completed.get() + ", failed: " + failed.get());
+        System.out.println("Tokens received: " + tokens.get() + " in " + elapsedMillis + " ms");
+
+        stub.unregisterClient(ClientUnregistrationRequest.newBuilder().setClientId(clientId).build());
+        channel.shutdownNow();
+    }
+}
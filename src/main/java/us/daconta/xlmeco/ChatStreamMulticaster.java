@@ -0,0 +1,316 @@
+package us.daconta.xlmeco;
+
+import io.grpc.Context;
+import us.daconta.xlmeco.cache.ChatRequestKey;
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.grpc.ChatResponsePart;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fans one upstream chat stream out to every identical concurrent asyncChat call.
+ * <p>
+ * The first request for a {@link ChatRequestKey} subscribes to the provider's publisher with unbounded
+ * demand and records every part in a replay log. Each subscriber, including later joiners, reads the log
+ * from the beginning at its own pace: it receives the parts already emitted and then the live tail, with
+ * its own demand. A slow subscriber only falls behind in the log and never holds back the upstream read
+ * or the other subscribers. The upstream is cancelled once every subscriber has cancelled.
+ * <p>
+ * A stream stops accepting joiners when it ends or when its log exceeds the replay limit. From then on no
+ * one can start from the beginning again, so parts every subscriber has read are dropped from the log and
+ * it only holds the gap between the slowest and the fastest subscriber. The upstream subscription is made
+ * under the root gRPC Context so it outlives the call that started it.
+ * <p>
+ * Metrics: counters "chat.multicast.streams" and "chat.multicast.joined", gauge "chat.multicast.active".
+ */
+public class ChatStreamMulticaster {
+    public static final String PROPERTY_MAX_REPLAY_BYTES = "stream.multicast.max_replay_bytes";
+    public static final int DEFAULT_MAX_REPLAY_BYTES = 1024 * 1024;
+
+    private static final Logger logger = Logger.getLogger(ChatStreamMulticaster.class.getName());
+
+    private final Map<ChatRequestKey, SharedStream> streams = new ConcurrentHashMap<>();
+    private final long maxReplayBytes;
+    private final LongAdder upstreams = MetricsRegistry.counter("chat.multicast.streams");
+    private final LongAdder joined = MetricsRegistry.counter("chat.multicast.joined");
+
+    public ChatStreamMulticaster(long maxReplayBytes) {
+        this.maxReplayBytes = maxReplayBytes;
+        MetricsRegistry.gauge("chat.multicast.active", streams::size);
+    }
+
+    public static ChatStreamMulticaster fromProperties(Properties properties) {
+        return new ChatStreamMulticaster(ConfigProperties.getLong(properties, PROPERTY_MAX_REPLAY_BYTES, DEFAULT_MAX_REPLAY_BYTES, 1));
+    }
+
+    /**
+     * A publisher for one subscriber of the shared stream for the key. The upstream supplier is only used
+     * when no joinable stream exists.
+     */
+    public Flow.Publisher<ChatResponsePart> subscribe(ChatRequestKey key, Supplier<Flow.Publisher<ChatResponsePart>> upstream) {
+        return subscriber -> {
+            while (true) {
+                SharedStream stream = streams.computeIfAbsent(key, k -> new SharedStream(k, upstream));
+                if (stream.attach(subscriber)) {
+                    return;
+                }
+                // Closed to joiners between lookup and attach; start or find the next one
+                streams.remove(key, stream);
+            }
+        };
+    }
+
+    private final class SharedStream implements Flow.Subscriber<ChatResponsePart> {
+        private final ChatRequestKey key;
+        private final List<ChatResponsePart> log = new ArrayList<>();
+        private int logStart;  // stream index of log.get(0)
+        private final List<Member> members = new ArrayList<>();
+        private boolean started;
+        private boolean joinable = true;
+        private boolean finished;
+        private Throwable error;
+        private long logBytes;
+        private Flow.Subscription upstream;
+        private final Supplier<Flow.Publisher<ChatResponsePart>> source;
+
+        SharedStream(ChatRequestKey key, Supplier<Flow.Publisher<ChatResponsePart>> source) {
+            this.key = key;
+            this.source = source;
+        }
+
+        // Returns false if the stream no longer accepts subscribers
+        boolean attach(Flow.Subscriber<? super ChatResponsePart> subscriber) {
+            Member member;
+            boolean start;
+            synchronized (this) {
+                if (!joinable) {
+                    return false;
+                }
+                member = new Member(this, subscriber);
+                members.add(member);
+                start = !started;
+                started = true;
+            }
+            subscriber.onSubscribe(member);
+            if (start) {
+                upstreams.increment();
+                startUpstream();
+            } else {
+                joined.increment();
+            }
+            return true;
+        }
+
+        private void startUpstream() {
+            try {
+                Context.ROOT.run(() -> source.get().subscribe(this));
+            } catch (RuntimeException e) {
+                onError(e);
+            }
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            boolean cancel;
+            synchronized (this) {
+                upstream = subscription;
+                cancel = members.isEmpty();
+            }
+            if (cancel) {
+                subscription.cancel();
+            } else {
+                subscription.request(Long.MAX_VALUE);
+            }
+        }
+
+        @Override
+        public void onNext(ChatResponsePart part) {
+            List<Member> snapshot;
+            synchronized (this) {
+                log.add(part);
+                logBytes += part.getToken().length() * 2L;
+                if (joinable && logBytes > maxReplayBytes) {
+                    closeToJoiners();
+                }
+                if (!joinable) {
+                    trimLog();
+                }
+                snapshot = new ArrayList<>(members);
+            }
+            snapshot.forEach(Member::drain);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            finish(t);
+        }
+
+        @Override
+        public void onComplete() {
+            finish(null);
+        }
+
+        private void finish(Throwable t) {
+            List<Member> snapshot;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                error = t;
+                closeToJoiners();
+                snapshot = new ArrayList<>(members);
+            }
+            if (t != null) {
+                logger.log(Level.FINE, "Shared chat stream failed for " + key, t);
+            }
+            snapshot.forEach(Member::drain);
+        }
+
+        private void closeToJoiners() {
+            joinable = false;
+            streams.remove(key, this);
+        }
+
+        // Drop the parts before the slowest member's cursor; only once the stream is closed to joiners
+        private void trimLog() {
+            int lowest = logStart + log.size();
+            for (Member member : members) {
+                lowest = Math.min(lowest, member.cursor);
+            }
+            int read = lowest - logStart;
+            // Clear in chunks of at least half the log so the copy stays amortized O(1) per part
+            if (read > 0 && read * 2 >= log.size()) {
+                log.subList(0, read).clear();
+                logStart = lowest;
+            }
+        }
+
+        private synchronized ChatResponsePart partAt(int index) {
+            int offset = index - logStart;
+            return offset < log.size() ? log.get(offset) : null;
+        }
+
+        private synchronized boolean isDrained(int index) {
+            return finished && index >= logStart + log.size();
+        }
+
+        private void detach(Member member) {
+            Flow.Subscription cancel = null;
+            synchronized (this) {
+                members.remove(member);
+                if (members.isEmpty() && !finished) {
+                    // Nobody is reading any more
+                    closeToJoiners();
+                    finished = true;
+                    cancel = upstream;
+                }
+            }
+            if (cancel != null) {
+                cancel.cancel();
+            }
+        }
+    }
+
+    /**
+     * One subscriber's cursor into the shared log, with its own demand.
+     */
+    private static final class Member implements Flow.Subscription {
+        private final SharedStream stream;
+        private final Flow.Subscriber<? super ChatResponsePart> subscriber;
+        private long demand;
+        // Written under this member's lock; read without it by the stream when trimming its log
+        private volatile int cursor;
+        private boolean cancelled;
+        private boolean draining;
+        private boolean missed;
+
+        Member(SharedStream stream, Flow.Subscriber<? super ChatResponsePart> subscriber) {
+            this.stream = stream;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+            }
+            stream.detach(this);
+        }
+
+        // Deliver what the demand allows; re-entrant calls (request from inside onNext) loop instead of recursing
+        void drain() {
+            synchronized (this) {
+                if (draining) {
+                    missed = true;
+                    return;
+                }
+                draining = true;
+            }
+            while (true) {
+                ChatResponsePart next = null;
+                boolean terminate = false;
+                synchronized (this) {
+                    if (cancelled) {
+                        draining = false;
+                        return;
+                    }
+                    if (demand > 0) {
+                        next = stream.partAt(cursor);
+                    }
+                    if (next != null) {
+                        cursor++;
+                        demand--;
+                    } else if (stream.isDrained(cursor)) {
+                        cancelled = true;
+                        terminate = true;
+                    } else if (missed) {
+                        missed = false;
+                        continue;
+                    } else {
+                        draining = false;
+                        return;
+                    }
+                }
+                if (terminate) {
+                    Throwable error;
+                    synchronized (stream) {
+                        error = stream.error;
+                    }
+                    stream.detach(this);
+                    if (error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                subscriber.onNext(next);
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package us.daconta.xlmeco;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.grpc.ChatResponsePart;
+import us.daconta.xlmeco.grpc.StreamOptions;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.util.ArrayDeque;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Forwards a provider's token publisher to the gRPC response observer of an asyncChat call while honoring
+ * the transport's flow control. Tokens are only written while the call is ready; otherwise they wait in a
+ * bounded per-stream buffer that is drained from the onReady handler. When the buffer is full the
+ * configured overflow policy applies:
+ * <ul>
+ *     <li>PAUSE - only request as many tokens as the buffer can hold, which stops the upstream read</li>
+ *     <li>COALESCE - keep reading and merge new tokens into the last buffered part, up to
+ *     stream.coalesce.overflow_max_bytes</li>
+ *     <li>FAIL - end the call with RESOURCE_EXHAUSTED</li>
+ * </ul>
+ * After the first token, which is always sent immediately, tokens are also batched into one part per
+ * stream.coalesce.max_bytes or stream.coalesce.max_delay_ms (whichever comes first) to cut per-message
+ * framing and serialization. Clients can tune both per request through ChatRequest.stream_options. All
+ * sizes are UTF-8 bytes of token text.
+ */
+public class ChatStreamSubscriber implements Flow.Subscriber<ChatResponsePart> {
+    public static final String PROPERTY_BUFFER_SIZE = "stream.buffer_size";
+    public static final String PROPERTY_OVERFLOW_POLICY = "stream.overflow_policy";
+    public static final String PROPERTY_COALESCE_MAX_BYTES = "stream.coalesce.max_bytes";
+    public static final String PROPERTY_COALESCE_MAX_DELAY_MS = "stream.coalesce.max_delay_ms";
+    public static final String PROPERTY_COALESCE_OVERFLOW_MAX_BYTES = "stream.coalesce.overflow_max_bytes";
+    private static final int DEFAULT_BUFFER_SIZE = 64;
+    private static final int DEFAULT_COALESCE_MAX_BYTES = 64;
+    private static final int DEFAULT_COALESCE_MAX_DELAY_MS = 20;
+    private static final int DEFAULT_COALESCE_OVERFLOW_MAX_BYTES = 64 * 1024;
+    private static final int MAX_COALESCE_DELAY_MS = 1000;
+
+    // Flushes batches whose delay has expired; the work per flush is tiny so one thread serves all streams
+    private static final ScheduledExecutorService batchTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "xlm-stream-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Logger logger = Logger.getLogger(ChatStreamSubscriber.class.getName());
+    private static final LongAdder streamsCancelled = MetricsRegistry.counter("chat.streams.cancelled");
+
+    public enum OverflowPolicy {
+        PAUSE, COALESCE, FAIL
+    }
+
+    /**
+     * Per-server stream settings read from the configuration.
+     */
+    public static class Settings {
+        private final int bufferSize;
+        private final OverflowPolicy overflowPolicy;
+        private final int coalesceOverflowMaxBytes;
+        private final int coalesceMaxBytes;
+        private final int coalesceMaxDelayMillis;
+
+        public Settings(int bufferSize, OverflowPolicy overflowPolicy, int coalesceOverflowMaxBytes,
+                        int coalesceMaxBytes, int coalesceMaxDelayMillis) {
+            this.bufferSize = bufferSize;
+            this.overflowPolicy = overflowPolicy;
+            this.coalesceOverflowMaxBytes = coalesceOverflowMaxBytes;
+            this.coalesceMaxBytes = coalesceMaxBytes;
+            this.coalesceMaxDelayMillis = coalesceMaxDelayMillis;
+        }
+
+        public static Settings fromProperties(Properties properties) {
+            int bufferSize = ConfigProperties.getInt(properties, PROPERTY_BUFFER_SIZE, DEFAULT_BUFFER_SIZE, 1);
+            int coalesceOverflowMaxBytes = ConfigProperties.getInt(properties, PROPERTY_COALESCE_OVERFLOW_MAX_BYTES, DEFAULT_COALESCE_OVERFLOW_MAX_BYTES, 1);
+            String policy = properties.getProperty(PROPERTY_OVERFLOW_POLICY, OverflowPolicy.PAUSE.name());
+            int coalesceMaxBytes = ConfigProperties.getInt(properties, PROPERTY_COALESCE_MAX_BYTES, DEFAULT_COALESCE_MAX_BYTES, 1);
+            int coalesceMaxDelayMillis = ConfigProperties.getInt(properties, PROPERTY_COALESCE_MAX_DELAY_MS, DEFAULT_COALESCE_MAX_DELAY_MS, 1);
+            return new Settings(bufferSize, OverflowPolicy.valueOf(policy.trim().toUpperCase()), coalesceOverflowMaxBytes,
+                    coalesceMaxBytes, coalesceMaxDelayMillis);
+        }
+
+    }
+
+    private final StreamObserver<ChatResponsePart> responseObserver;
+    private final ServerCallStreamObserver<ChatResponsePart> serverObserver;
+    private final Settings settings;
+    private final ArrayDeque<ChatResponsePart> buffer = new ArrayDeque<>();
+    private final int coalesceMaxBytes;
+    private final int coalesceMaxDelayMillis;
+    private final StringBuilder pending = new StringBuilder();
+    private int pendingBytes;
+    private ScheduledFuture<?> pendingFlush;
+    private boolean firstTokenSent;
+    private Flow.Subscription subscription;
+    private boolean upstreamCompleted;
+    private boolean terminated;
+
+    public ChatStreamSubscriber(StreamObserver<ChatResponsePart> responseObserver, Settings settings) {
+        this(responseObserver, settings, StreamOptions.getDefaultInstance());
+    }
+
+    public ChatStreamSubscriber(StreamObserver<ChatResponsePart> responseObserver, Settings settings, StreamOptions options) {
+        this.responseObserver = responseObserver;
+        this.settings = settings;
+        this.coalesceMaxBytes = options.getCoalesceMaxBytes() > 0 ? options.getCoalesceMaxBytes() : settings.coalesceMaxBytes;
+        this.coalesceMaxDelayMillis = Math.min(MAX_COALESCE_DELAY_MS,
+                options.getCoalesceMaxDelayMs() > 0 ? options.getCoalesceMaxDelayMs() : settings.coalesceMaxDelayMillis);
+        if (responseObserver instanceof ServerCallStreamObserver) {
+            // Must be registered before the service method returns
+            this.serverObserver = (ServerCallStreamObserver<ChatResponsePart>) responseObserver;
+            serverObserver.setOnReadyHandler(this::drain);
+            serverObserver.setOnCancelHandler(this::cancel);
+        } else {
+            this.serverObserver = null;
+        }
+    }
+
+    @Override
+    public synchronized void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (terminated) {
+            subscription.cancel();
+            return;
+        }
+        subscription.request(settings.overflowPolicy == OverflowPolicy.PAUSE ? settings.bufferSize : Long.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized void onNext(ChatResponsePart part) {
+        if (terminated) {
+            return;
+        }
+        // The first token goes out immediately so batching never delays time-to-first-token
+        if (coalesceMaxBytes <= 1 || !firstTokenSent) {
+            firstTokenSent = true;
+            enqueue(part);
+            return;
+        }
+
+        String token = part.getToken();
+        if (token.isEmpty()) {
+            if (settings.overflowPolicy == OverflowPolicy.PAUSE && subscription != null) {
+                subscription.request(1);
+            }
+            return;
+        }
+        if (pending.length() == 0) {
+            pendingFlush = batchTimer.schedule(this::flushPending, coalesceMaxDelayMillis, TimeUnit.MILLISECONDS);
+        } else if (settings.overflowPolicy == OverflowPolicy.PAUSE && subscription != null) {
+            // Merged into the pending part, so the token no longer holds a buffer slot
+            subscription.request(1);
+        }
+        pending.append(token);
+        pendingBytes += utf8Length(token);
+        if (pendingBytes >= coalesceMaxBytes) {
+            flushPending();
+        }
+    }
+
+    private synchronized void flushPending() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        if (terminated || pending.length() == 0) {
+            return;
+        }
+        ChatResponsePart part = ChatResponsePart.newBuilder().setToken(pending.toString()).build();
+        pending.setLength(0);
+        pendingBytes = 0;
+        enqueue(part);
+    }
+
+    private void enqueue(ChatResponsePart part) {
+        if (buffer.isEmpty() && isReady()) {
+            send(part);
+            return;
+        }
+        if (buffer.size() < settings.bufferSize || settings.overflowPolicy == OverflowPolicy.PAUSE) {
+            buffer.addLast(part);
+            return;
+        }
+
+        if (settings.overflowPolicy == OverflowPolicy.COALESCE) {
+            ChatResponsePart last = buffer.pollLast();
+            if (utf8Length(last.getToken()) + utf8Length(part.getToken()) <= settings.coalesceOverflowMaxBytes) {
+                buffer.addLast(last.toBuilder().setToken(last.getToken() + part.getToken()).build());
+                return;
+            }
+            buffer.addLast(last);
+        }
+        fail(Status.RESOURCE_EXHAUSTED
+                .withDescription("Client is not reading the chat stream fast enough; buffered "
+                        + buffer.size() + " parts")
+                .asRuntimeException());
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        if (terminated) {
+            return;
+        }
+        logger.log(Level.SEVERE, "Error streaming chat response", t);
+        terminated = true;
+        buffer.clear();
+        clearPending();
+        // Statuses such as RESOURCE_EXHAUSTED keep their code and trailers (e.g. the retry pushback)
+        responseObserver.onError(t instanceof StatusRuntimeException ? t : new RuntimeException("Error: " + t.getMessage()));
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        flushPending();
+        upstreamCompleted = true;
+        if (!terminated && buffer.isEmpty()) {
+            terminated = true;
+            responseObserver.onCompleted();
+        }
+    }
+
+    // Invoked by gRPC whenever the transport can accept more messages
+    private synchronized void drain() {
+        while (!terminated && !buffer.isEmpty() && isReady()) {
+            send(buffer.pollFirst());
+        }
+        if (!terminated && upstreamCompleted && buffer.isEmpty()) {
+            terminated = true;
+            responseObserver.onCompleted();
+        }
+    }
+
+    // Invoked by gRPC when the client cancels or the deadline expires
+    private synchronized void cancel() {
+        if (!terminated) {
+            streamsCancelled.increment();
+        }
+        terminated = true;
+        buffer.clear();
+        clearPending();
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    private void send(ChatResponsePart part) {
+        responseObserver.onNext(part);
+        if (settings.overflowPolicy == OverflowPolicy.PAUSE && subscription != null) {
+            // Replenish the demand freed by the part leaving the buffer
+            subscription.request(1);
+        }
+    }
+
+    private void fail(RuntimeException error) {
+        logger.warning(() -> "Failing chat stream: " + error.getMessage());
+        terminated = true;
+        buffer.clear();
+        clearPending();
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        responseObserver.onError(error);
+    }
+
+    private void clearPending() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        pending.setLength(0);
+        pendingBytes = 0;
+    }
+
+    private static int utf8Length(String token) {
+        int bytes = 0;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private boolean isReady() {
+        return serverObserver == null || serverObserver.isReady();
+    }
+}
@@ -0,0 +1,196 @@
+package us.daconta.xlmeco;
+
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker for one provider, driven by the outcome of its recent calls.
+ * <p>
+ * While CLOSED every call is allowed and its outcome is recorded in a window of the last window_size calls;
+ * a call counts as bad if it failed or took at least slow_call_ms. Once the window holds min_calls outcomes
+ * and the bad ones reach failure_rate_percent, the breaker OPENs and rejects calls for open_ms. It then goes
+ * HALF_OPEN and lets half_open_probes calls through: if they all succeed it closes with a fresh window,
+ * and any bad probe opens it again.
+ * <p>
+ * Metrics: gauge "circuit.&lt;provider&gt;.state" (0 closed, 1 half open, 2 open), counters
+ * "circuit.&lt;provider&gt;.opened" and "circuit.&lt;provider&gt;.rejected".
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    /**
+     * Breaker settings shared by all providers, read from the configuration.
+     */
+    public static class Settings {
+        public static final String PROPERTY_WINDOW_SIZE = "circuit.window_size";
+        public static final String PROPERTY_MIN_CALLS = "circuit.min_calls";
+        public static final String PROPERTY_FAILURE_RATE_PERCENT = "circuit.failure_rate_percent";
+        public static final String PROPERTY_SLOW_CALL_MS = "circuit.slow_call_ms";
+        public static final String PROPERTY_OPEN_MS = "circuit.open_ms";
+        public static final String PROPERTY_HALF_OPEN_PROBES = "circuit.half_open_probes";
+
+        private final int windowSize;
+        private final int minCalls;
+        private final int failureRatePercent;
+        private final long slowCallNanos;
+        private final long openNanos;
+        private final int halfOpenProbes;
+
+        public Settings(int windowSize, int minCalls, int failureRatePercent, long slowCallMillis, long openMillis,
+                        int halfOpenProbes) {
+            this.windowSize = Math.max(1, windowSize);
+            this.minCalls = Math.max(1, Math.min(minCalls, this.windowSize));
+            this.failureRatePercent = failureRatePercent;
+            this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+            this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+            this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        }
+
+        public static Settings fromProperties(Properties properties) {
+            return new Settings(
+                    ConfigProperties.getInt(properties, PROPERTY_WINDOW_SIZE, 20, 1),
+                    ConfigProperties.getInt(properties, PROPERTY_MIN_CALLS, 10, 1),
+                    ConfigProperties.getInt(properties, PROPERTY_FAILURE_RATE_PERCENT, 50, 0),
+                    ConfigProperties.getInt(properties, PROPERTY_SLOW_CALL_MS, 30_000, 0),
+                    ConfigProperties.getInt(properties, PROPERTY_OPEN_MS, 5_000, 0),
+                    ConfigProperties.getInt(properties, PROPERTY_HALF_OPEN_PROBES, 2, 1));
+        }
+
+    }
+
+    /**
+     * Admission for one call. Exactly one of success, failure or release must be called when it ends.
+     */
+    public final class Permit {
+        private final boolean probe;
+        private final long generation;
+
+        private Permit(boolean probe, long generation) {
+            this.probe = probe;
+            this.generation = generation;
+        }
+
+        public void success(long latencyNanos) {
+            record(this, settings.slowCallNanos > 0 && latencyNanos >= settings.slowCallNanos);
+        }
+
+        public void failure() {
+            record(this, true);
+        }
+
+        // The call ended without saying anything about the provider, e.g. the client cancelled it
+        public void release() {
+            synchronized (CircuitBreaker.this) {
+                if (probe && generation == CircuitBreaker.this.generation) {
+                    probesInFlight--;
+                }
+            }
+        }
+    }
+
+    private final String name;
+    private final Settings settings;
+    private final boolean[] window;
+    private int windowCount;
+    private int windowIndex;
+    private int windowBad;
+    private State state = State.CLOSED;
+    private long openedAt;
+    // Bumped on every state change so results of calls admitted under an earlier state are ignored
+    private long generation;
+    private int probesInFlight;
+    private int probeSuccesses;
+
+    private final LongAdder opened;
+    private final LongAdder rejected;
+
+    public CircuitBreaker(String name, Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        this.window = new boolean[settings.windowSize];
+        this.opened = MetricsRegistry.counter("circuit." + name + ".opened");
+        this.rejected = MetricsRegistry.counter("circuit." + name + ".rejected");
+        MetricsRegistry.gauge("circuit." + name + ".state", () -> getState().ordinal());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * A permit for one call, or null if the breaker rejects it.
+     */
+    public synchronized Permit tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < settings.openNanos) {
+                rejected.increment();
+                return null;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= settings.halfOpenProbes) {
+                rejected.increment();
+                return null;
+            }
+            probesInFlight++;
+            return new Permit(true, generation);
+        }
+        return new Permit(false, generation);
+    }
+
+    private synchronized void record(Permit permit, boolean bad) {
+        if (permit.generation != generation) {
+            return;
+        }
+        if (permit.probe) {
+            probesInFlight--;
+            if (bad) {
+                open();
+            } else if (++probeSuccesses >= settings.halfOpenProbes) {
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if (window[windowIndex] && windowCount == window.length) {
+            windowBad--;
+        }
+        window[windowIndex] = bad;
+        windowIndex = (windowIndex + 1) % window.length;
+        windowCount = Math.min(window.length, windowCount + 1);
+        if (bad) {
+            windowBad++;
+        }
+        if (windowCount >= settings.minCalls && windowBad * 100 >= settings.failureRatePercent * windowCount) {
+            open();
+        }
+    }
+
+    private void open() {
+        transition(State.OPEN);
+        openedAt = System.nanoTime();
+        opened.increment();
+    }
+
+    private void transition(State next) {
+        state = next;
+        generation++;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+        if (next == State.CLOSED) {
+            windowCount = windowIndex = windowBad = 0;
+            Arrays.fill(window, false);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package us.daconta.xlmeco;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.grpc.ChatRequest;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+import us.daconta.xlmeco.provider.EmbeddingProvider;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-client quotas: a token bucket of requests per second and one of estimated LLM tokens per minute,
+ * checked before a call is sent to a provider. Limits are set per tier, and clients are assigned to a
+ * tier or given limits of their own:
+ * <pre>
+ * rate_limit.tier.&lt;tier&gt;.requests_per_second=10   # 0: unlimited
+ * rate_limit.tier.&lt;tier&gt;.request_burst=20         # bucket size (default: one second of requests)
+ * rate_limit.tier.&lt;tier&gt;.tokens_per_minute=90000  # 0: unlimited
+ * rate_limit.tier.&lt;tier&gt;.token_burst=90000        # bucket size (default: one minute of tokens)
+ * rate_limit.client.&lt;client_id&gt;.tier=batch        # clients not listed use default_tier
+ * rate_limit.client.&lt;client_id&gt;.tokens_per_minute=20000  # any tier setting can be overridden per client
+ * </pre>
+ * A setting that is not a number, or is negative, stops the server at startup rather than lifting the quota.
+ * Tokens are estimated before the call, at one per four characters of input plus the request's max_tokens
+ * (default_completion_tokens when it is not set). A call costing more than a whole bucket goes ahead only
+ * on a full bucket and is charged its full cost, leaving the bucket in debt: the client's next calls wait
+ * until the debt is paid back at the configured rate, so large calls cannot exceed the rate either.
+ * <p>
+ * The buckets are lock-free: each is a single atomic timestamp of when it will be full again (the generic
+ * cell rate algorithm), advanced by compare-and-set. A call over its quota fails with RESOURCE_EXHAUSTED
+ * and a "grpc-retry-pushback-ms" trailer; with the {@link #TRAILERS} interceptor installed every checked
+ * call also reports the client's quota in its trailers so clients can pace themselves:
+ * "x-ratelimit-limit-requests" (per minute), "x-ratelimit-remaining-requests" (left in the bucket) and
+ * "x-ratelimit-reset-requests-ms" (until the bucket is full), and the same for tokens.
+ * <p>
+ * Metrics per tier: counters "rate_limit.&lt;tier&gt;.admitted", ".rejected_requests" and ".rejected_tokens".
+ */
+public class ClientRateLimiter {
+    public static final String PROPERTY_ENABLED = "rate_limit.enabled";
+    public static final String PROPERTY_DEFAULT_TIER = "rate_limit.default_tier";
+    public static final String PROPERTY_DEFAULT_COMPLETION_TOKENS = "rate_limit.default_completion_tokens";
+    public static final String PREFIX_TIER = "rate_limit.tier.";
+    public static final String PREFIX_CLIENT = "rate_limit.client.";
+
+    public static final Metadata.Key<String> LIMIT_REQUESTS_KEY = asciiKey("x-ratelimit-limit-requests");
+    public static final Metadata.Key<String> REMAINING_REQUESTS_KEY = asciiKey("x-ratelimit-remaining-requests");
+    public static final Metadata.Key<String> RESET_REQUESTS_KEY = asciiKey("x-ratelimit-reset-requests-ms");
+    public static final Metadata.Key<String> LIMIT_TOKENS_KEY = asciiKey("x-ratelimit-limit-tokens");
+    public static final Metadata.Key<String> REMAINING_TOKENS_KEY = asciiKey("x-ratelimit-remaining-tokens");
+    public static final Metadata.Key<String> RESET_TOKENS_KEY = asciiKey("x-ratelimit-reset-tokens-ms");
+
+    // Where a checked call leaves the client's quota for the interceptor to report
+    private static final Context.Key<QuotaReport> REPORT = Context.key("xlm-client-quota");
+
+    /**
+     * Server interceptor that adds the quota left after a call's check to the call's trailers.
+     */
+    public static final ServerInterceptor TRAILERS = new ServerInterceptor() {
+        @Override
+        public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                     ServerCallHandler<ReqT, RespT> next) {
+            QuotaReport report = new QuotaReport();
+            ServerCall<ReqT, RespT> reporting = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                @Override
+                public void close(Status status, Metadata trailers) {
+                    report.addTo(trailers);
+                    super.close(status, trailers);
+                }
+            };
+            return Contexts.interceptCall(Context.current().withValue(REPORT, report), reporting, headers, next);
+        }
+    };
+
+    private final boolean enabled;
+    private final Properties properties;
+    private final String defaultTier;
+    private final int defaultCompletionTokens;
+    private final Map<String, ClientQuota> quotas = new ConcurrentHashMap<>();
+
+    public ClientRateLimiter(boolean enabled, Properties properties, String defaultTier, int defaultCompletionTokens) {
+        this.enabled = enabled;
+        this.properties = properties;
+        this.defaultTier = defaultTier;
+        this.defaultCompletionTokens = defaultCompletionTokens;
+        if (enabled) {
+            validateSettings();
+        }
+    }
+
+    public static ClientRateLimiter fromProperties(Properties properties) {
+        return new ClientRateLimiter(
+                Boolean.parseBoolean(properties.getProperty(PROPERTY_ENABLED, "false").trim()),
+                properties,
+                properties.getProperty(PROPERTY_DEFAULT_TIER, "default").trim(),
+                ConfigProperties.getInt(properties, PROPERTY_DEFAULT_COMPLETION_TOKENS, 256, 0));
+    }
+
+    /**
+     * Estimated LLM tokens of a chat call: its prompt and the completion it may produce.
+     */
+    public long chatTokens(ChatRequest request) {
+        int maxTokens = request.hasParams() ? request.getParams().getMaxTokens() : 0;
+        return EmbeddingProvider.estimateTokens(request.getPrompt()) + (maxTokens > 0 ? maxTokens : defaultCompletionTokens);
+    }
+
+    /**
+     * Charge one request and the estimated tokens to the client's quota. Returns null if the call may go
+     * ahead, else the RESOURCE_EXHAUSTED error to fail it with; nothing is charged for a rejected call.
+     */
+    public StatusRuntimeException admit(String clientId, long tokens) {
+        if (!enabled) {
+            return null;
+        }
+        ClientQuota quota = quotas.computeIfAbsent(clientId, this::resolve);
+        long now = System.nanoTime();
+        String exceeded = null;
+        long waitNanos = 0;
+        if (quota.requests != null) {
+            waitNanos = quota.requests.tryTake(1, now);
+            if (waitNanos > 0) {
+                exceeded = "requests per second";
+                quota.rejectedRequests.increment();
+            }
+        }
+        if (exceeded == null && quota.tokens != null) {
+            waitNanos = quota.tokens.tryTake(tokens, now);
+            if (waitNanos > 0) {
+                exceeded = "tokens per minute";
+                quota.rejectedTokens.increment();
+                if (quota.requests != null) {
+                    quota.requests.refund(1);
+                }
+            }
+        }
+        QuotaReport report = REPORT.get();
+        if (report != null) {
+            report.quota = quota;
+        }
+        if (exceeded == null) {
+            quota.admitted.increment();
+            return null;
+        }
+        long pushbackMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+        Metadata trailers = new Metadata();
+        trailers.put(ConcurrencyLimiter.RETRY_PUSHBACK_KEY, Long.toString(pushbackMillis));
+        return Status.RESOURCE_EXHAUSTED
+                .withDescription("Client " + clientId + " is over its " + exceeded + " quota; retry after " + pushbackMillis + " ms")
+                .asRuntimeException(trailers);
+    }
+
+    private ClientQuota resolve(String clientId) {
+        String tier = properties.getProperty(PREFIX_CLIENT + clientId + ".tier", defaultTier).trim();
+        double requestsPerSecond = ConfigProperties.getDouble(properties, settingKey(clientId, tier, "requests_per_second"), 0, 0);
+        long requestBurst = ConfigProperties.getLong(properties, settingKey(clientId, tier, "request_burst"), (long) Math.ceil(requestsPerSecond), 0);
+        long tokensPerMinute = ConfigProperties.getLong(properties, settingKey(clientId, tier, "tokens_per_minute"), 0, 0);
+        long tokenBurst = ConfigProperties.getLong(properties, settingKey(clientId, tier, "token_burst"), tokensPerMinute, 0);
+        return new ClientQuota(tier,
+                requestsPerSecond > 0 ? new Bucket(requestsPerSecond, requestBurst) : null,
+                tokensPerMinute > 0 ? new Bucket(tokensPerMinute / 60.0, tokenBurst) : null);
+    }
+
+    // The key of a client's own setting, else of its tier's
+    private String settingKey(String clientId, String tier, String name) {
+        String clientKey = PREFIX_CLIENT + clientId + "." + name;
+        return properties.getProperty(clientKey) != null ? clientKey : PREFIX_TIER + tier + "." + name;
+    }
+
+    // Quotas are resolved on a client's first call; check every limit up front so a typo fails the startup
+    private void validateSettings() {
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(PREFIX_TIER) && !key.startsWith(PREFIX_CLIENT)) {
+                continue;
+            }
+            if (key.endsWith(".requests_per_second")) {
+                ConfigProperties.getDouble(properties, key, 0, 0);
+            } else if (key.endsWith(".request_burst") || key.endsWith(".tokens_per_minute") || key.endsWith(".token_burst")) {
+                ConfigProperties.getLong(properties, key, 0, 0);
+            }
+        }
+    }
+
+    private static final class ClientQuota {
+        private final Bucket requests;  // null: unlimited
+        private final Bucket tokens;  // null: unlimited
+        private final LongAdder admitted;
+        private final LongAdder rejectedRequests;
+        private final LongAdder rejectedTokens;
+
+        ClientQuota(String tier, Bucket requests, Bucket tokens) {
+            this.requests = requests;
+            this.tokens = tokens;
+            this.admitted = MetricsRegistry.counter("rate_limit." + tier + ".admitted");
+            this.rejectedRequests = MetricsRegistry.counter("rate_limit." + tier + ".rejected_requests");
+            this.rejectedTokens = MetricsRegistry.counter("rate_limit." + tier + ".rejected_tokens");
+        }
+    }
+
+    /**
+     * Token bucket kept as the time it will be full again: taking n units moves that time n intervals
+     * later, and the bucket is empty once it lies a whole bucket of intervals ahead (or further, in debt).
+     */
+    private static final class Bucket {
+        private final long intervalNanos;  // refill time of one unit
+        private final long capacity;
+        private final long perMinute;
+        private final AtomicLong fullAt;
+
+        Bucket(double perSecond, long capacity) {
+            this.intervalNanos = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / perSecond));
+            this.capacity = Math.max(1, capacity);
+            this.perMinute = Math.round(perSecond * 60);
+            this.fullAt = new AtomicLong(System.nanoTime());
+        }
+
+        // 0 if the units were taken, else how long until they would be available
+        long tryTake(long units, long now) {
+            long cost = nanos(units);
+            long tolerance = capacity * intervalNanos;
+            while (true) {
+                long current = fullAt.get();
+                long debt = Math.max(0, current - now);
+                // More than a bucket's worth needs a full bucket, and the rest is owed
+                long over = cost > tolerance ? debt : debt + cost - tolerance;
+                if (over > 0) {
+                    return over;
+                }
+                if (fullAt.compareAndSet(current, now + debt + cost)) {
+                    return 0;
+                }
+            }
+        }
+
+        void refund(long units) {
+            fullAt.addAndGet(-nanos(units));
+        }
+
+        // Refill time of the units, saturating far beyond any real quota instead of overflowing
+        private long nanos(long units) {
+            long max = Long.MAX_VALUE / 4;
+            return units >= max / intervalNanos ? max : units * intervalNanos;
+        }
+
+        long remaining(long now) {
+            long debt = Math.max(0, fullAt.get() - now);
+            return Math.max(0, capacity - (debt + intervalNanos - 1) / intervalNanos);
+        }
+
+        long resetMillis(long now) {
+            return TimeUnit.NANOSECONDS.toMillis(Math.max(0, fullAt.get() - now));
+        }
+    }
+
+    /**
+     * The quota checked during one gRPC call, reported in its trailers when it closes.
+     */
+    private static final class QuotaReport {
+        private volatile ClientQuota quota;
+
+        void addTo(Metadata trailers) {
+            ClientQuota checked = quota;
+            if (checked == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (checked.requests != null) {
+                // Configured per second, reported per minute like the token limit
+                trailers.put(LIMIT_REQUESTS_KEY, Long.toString(checked.requests.perMinute));
+                trailers.put(REMAINING_REQUESTS_KEY, Long.toString(checked.requests.remaining(now)));
+                trailers.put(RESET_REQUESTS_KEY, Long.toString(checked.requests.resetMillis(now)));
+            }
+            if (checked.tokens != null) {
+                trailers.put(LIMIT_TOKENS_KEY, Long.toString(checked.tokens.perMinute));
+                trailers.put(REMAINING_TOKENS_KEY, Long.toString(checked.tokens.remaining(now)));
+                trailers.put(RESET_TOKENS_KEY, Long.toString(checked.tokens.resetMillis(now)));
+            }
+        }
+    }
+
+    private static Metadata.Key<String> asciiKey(String name) {
+        return Metadata.Key.of(name, Metadata.ASCII_STRING_MARSHALLER);
+    }
+}
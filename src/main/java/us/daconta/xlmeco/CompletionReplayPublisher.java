@@ -0,0 +1,93 @@
+package us.daconta.xlmeco;
+
+import us.daconta.xlmeco.grpc.ChatResponsePart;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+/**
+ * Replays a stored completion as a token stream, so an asyncChat answered from the response cache looks to
+ * the client like a live one. The text is split after each run of whitespace (roughly one part per word),
+ * and parts are emitted synchronously as the subscriber requests them.
+ */
+public class CompletionReplayPublisher implements Flow.Publisher<ChatResponsePart> {
+    private final List<String> tokens;
+
+    public CompletionReplayPublisher(String completion) {
+        this.tokens = split(completion);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ChatResponsePart> subscriber) {
+        subscriber.onSubscribe(new Replay(subscriber));
+    }
+
+    static List<String> split(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i < text.length(); i++) {
+            if (Character.isWhitespace(text.charAt(i - 1)) && !Character.isWhitespace(text.charAt(i))) {
+                tokens.add(text.substring(start, i));
+                start = i;
+            }
+        }
+        if (start < text.length()) {
+            tokens.add(text.substring(start));
+        }
+        return tokens;
+    }
+
+    private final class Replay implements Flow.Subscription {
+        private final Flow.Subscriber<? super ChatResponsePart> subscriber;
+        private int next;
+        private long demand;
+        private boolean emitting;
+        private boolean done;
+
+        Replay(Flow.Subscriber<? super ChatResponsePart> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                // A request from inside onNext only raises the demand; the outer loop keeps emitting
+                if (emitting) {
+                    return;
+                }
+                emitting = true;
+            }
+            while (true) {
+                String token;
+                synchronized (this) {
+                    if (done || (demand == 0 && next < tokens.size())) {
+                        emitting = false;
+                        return;
+                    }
+                    if (next == tokens.size()) {
+                        done = true;
+                        token = null;
+                    } else {
+                        token = tokens.get(next++);
+                        demand--;
+                    }
+                }
+                if (token == null) {
+                    subscriber.onComplete();
+                    return;
+                }
+                subscriber.onNext(ChatResponsePart.newBuilder().setToken(token).build());
+            }
+        }
+
+        @Override
+        public synchronized void cancel() {
+            done = true;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package us.daconta.xlmeco;
+
+import io.grpc.Context;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+import us.daconta.xlmeco.provider.ProviderCalls;
+import us.daconta.xlmeco.provider.ProviderHttpException;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Adaptive limit on the calls in flight to each provider and model, so that an overloaded upstream
+ * rejects the excess here, at once, instead of queueing it until it times out.
+ * <p>
+ * The limit follows the gradient between a baseline latency and the recent (short-term average) one.
+ * The baseline drops at once with the recent latency and rises only slowly (time constant
+ * {@value #BASELINE_DRIFT_SECONDS} seconds), so it tracks the latency without queueing while following a
+ * change in workload. While the recent latency stays within rtt_tolerance of the baseline, the limit grows
+ * by about its square root per sample; when queueing makes calls slower it shrinks in proportion, down to
+ * half per sample. Failed calls, including calls cut off by their deadline, cut it by 10%. Samples taken
+ * while less than half the limit is in use do not raise it, since they say nothing about the capacity.
+ * Streams are sampled at their first token.
+ * <p>
+ * A rejected call fails with RESOURCE_EXHAUSTED and a "grpc-retry-pushback-ms" trailer, the mean time
+ * between completions at the current limit, which gRPC retry policies honour.
+ * <p>
+ * Metrics per "&lt;provider&gt;.&lt;model&gt;": gauges "concurrency_limit.&lt;key&gt;.limit", ".in_flight" and
+ * ".rejection_rate" (share of calls rejected over the last {@value #RATE_INTERVAL_SECONDS} seconds),
+ * counters ".requests" and ".rejected".
+ */
+public class ConcurrencyLimiter {
+    public static final String PROPERTY_ENABLED = "concurrency_limit.enabled";
+    public static final String PROPERTY_INITIAL = "concurrency_limit.initial";
+    public static final String PROPERTY_MIN = "concurrency_limit.min";
+    public static final String PROPERTY_MAX = "concurrency_limit.max";
+    public static final String PROPERTY_RTT_TOLERANCE = "concurrency_limit.rtt_tolerance";
+
+    public static final Metadata.Key<String> RETRY_PUSHBACK_KEY =
+            Metadata.Key.of("grpc-retry-pushback-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final int RATE_INTERVAL_SECONDS = 10;
+    // Samples averaged by the recent latency
+    private static final int SHORT_WINDOW = 10;
+    private static final int BASELINE_DRIFT_SECONDS = 60;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF = 0.9;
+    private static final long MIN_PUSHBACK_MILLIS = 10;
+    private static final long MAX_PUSHBACK_MILLIS = 10_000;
+
+    private final boolean enabled;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double rttTolerance;
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+
+    public ConcurrencyLimiter(boolean enabled, int initialLimit, int minLimit, int maxLimit, double rttTolerance) {
+        this.enabled = enabled;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.initialLimit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.rttTolerance = Math.max(1.0, rttTolerance);
+    }
+
+    public static ConcurrencyLimiter fromProperties(Properties properties) {
+        return new ConcurrencyLimiter(
+                Boolean.parseBoolean(properties.getProperty(PROPERTY_ENABLED, "false").trim()),
+                ConfigProperties.getInt(properties, PROPERTY_INITIAL, 20, 1),
+                ConfigProperties.getInt(properties, PROPERTY_MIN, 4, 1),
+                ConfigProperties.getInt(properties, PROPERTY_MAX, 500, 1),
+                ConfigProperties.getDouble(properties, PROPERTY_RTT_TOLERANCE, 1.5, 1.0));
+    }
+
+    /**
+     * Admission for one call. Exactly one of success, failure or release must be called when it ends.
+     */
+    public interface Permit {
+        void success(long latencyNanos);
+
+        void failure();
+
+        // The call ended without saying anything about the provider, e.g. the client cancelled it
+        void release();
+    }
+
+    private static final Permit UNLIMITED = new Permit() {
+        @Override
+        public void success(long latencyNanos) { }
+
+        @Override
+        public void failure() { }
+
+        @Override
+        public void release() { }
+    };
+
+    /**
+     * A permit for one call to the provider and model, or null if the limit is reached.
+     */
+    public Permit tryAcquire(String provider, String model) {
+        if (!enabled) {
+            return UNLIMITED;
+        }
+        String key = provider + "." + (model == null || model.isEmpty() ? "default" : model);
+        return limits.computeIfAbsent(key, Limit::new).tryAcquire();
+    }
+
+    /**
+     * Run the call under a permit, or fail it at once with {@link #saturated} if the limit is reached. A call
+     * cut off by its gRPC deadline counts as a failure, so a hanging provider shrinks the limit; a call the
+     * client cancelled, or that failed as a bad request, is only released.
+     */
+    public <T> CompletableFuture<T> call(String provider, String model, Supplier<CompletableFuture<T>> call) {
+        Permit permit = tryAcquire(provider, model);
+        if (permit == null) {
+            return CompletableFuture.failedFuture(saturated(provider, model));
+        }
+        Context context = Context.current();
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            permit.failure();
+            throw e;
+        }
+        future.whenComplete((value, error) -> {
+            if (error == null) {
+                permit.success(System.nanoTime() - start);
+            } else if ((context.isCancelled() && !ProviderCalls.isDeadlineExceeded(context)) || ProviderHttpException.isClientError(error)) {
+                permit.release();
+            } else {
+                permit.failure();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * The RESOURCE_EXHAUSTED error for a call rejected by the limit, with its retry pushback trailer.
+     */
+    public StatusRuntimeException saturated(String provider, String model) {
+        String key = provider + "." + (model == null || model.isEmpty() ? "default" : model);
+        Limit limit = limits.get(key);
+        long pushbackMillis = limit != null ? limit.pushbackMillis() : MIN_PUSHBACK_MILLIS;
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_PUSHBACK_KEY, Long.toString(pushbackMillis));
+        return Status.RESOURCE_EXHAUSTED
+                .withDescription("Provider " + key + " is at its concurrency limit; retry after " + pushbackMillis + " ms")
+                .asRuntimeException(trailers);
+    }
+
+    private final class Limit {
+        private double limit = initialLimit;
+        private int inFlight;
+        private double shortRtt;
+        private double baselineRtt;
+        private long lastSample;
+        private long intervalStart = System.nanoTime();
+        private long intervalRequests;
+        private long intervalRejected;
+        private volatile double rejectionRate;
+        private final LongAdder requests;
+        private final LongAdder rejected;
+
+        Limit(String key) {
+            String prefix = "concurrency_limit." + key + ".";
+            this.requests = MetricsRegistry.counter(prefix + "requests");
+            this.rejected = MetricsRegistry.counter(prefix + "rejected");
+            MetricsRegistry.gauge(prefix + "limit", this::currentLimit);
+            MetricsRegistry.gauge(prefix + "in_flight", this::inFlight);
+            MetricsRegistry.gauge(prefix + "rejection_rate", () -> rejectionRate);
+        }
+
+        synchronized Permit tryAcquire() {
+            requests.increment();
+            long now = System.nanoTime();
+            if (now - intervalStart >= TimeUnit.SECONDS.toNanos(RATE_INTERVAL_SECONDS)) {
+                rejectionRate = intervalRequests == 0 ? 0.0 : (double) intervalRejected / intervalRequests;
+                intervalStart = now;
+                intervalRequests = 0;
+                intervalRejected = 0;
+            }
+            intervalRequests++;
+            if (inFlight >= (int) limit) {
+                intervalRejected++;
+                rejected.increment();
+                return null;
+            }
+            int inFlightAtStart = ++inFlight;
+            return new Permit() {
+                private boolean done;
+
+                @Override
+                public void success(long latencyNanos) {
+                    if (finish()) {
+                        sample(latencyNanos, inFlightAtStart);
+                    }
+                }
+
+                @Override
+                public void failure() {
+                    if (finish()) {
+                        backOff();
+                    }
+                }
+
+                @Override
+                public void release() {
+                    finish();
+                }
+
+                private boolean finish() {
+                    synchronized (Limit.this) {
+                        if (done) {
+                            return false;
+                        }
+                        done = true;
+                        inFlight--;
+                        return true;
+                    }
+                }
+            };
+        }
+
+        private synchronized void sample(long rtt, int inFlightAtStart) {
+            long now = System.nanoTime();
+            shortRtt = shortRtt == 0 ? rtt : shortRtt + (rtt - shortRtt) * 2.0 / (SHORT_WINDOW + 1);
+            if (baselineRtt == 0 || shortRtt < baselineRtt) {
+                baselineRtt = shortRtt;
+            } else {
+                double elapsed = (double) (now - lastSample) / TimeUnit.SECONDS.toNanos(BASELINE_DRIFT_SECONDS);
+                baselineRtt += (shortRtt - baselineRtt) * (1 - Math.exp(-elapsed));
+            }
+            lastSample = now;
+            double gradient = Math.max(0.5, Math.min(1.0, rttTolerance * baselineRtt / shortRtt));
+            double next = limit * (1 - SMOOTHING) + (limit * gradient + Math.sqrt(limit)) * SMOOTHING;
+            if (next > limit && inFlightAtStart < limit / 2) {
+                return;
+            }
+            limit = Math.max(minLimit, Math.min(maxLimit, next));
+        }
+
+        private synchronized void backOff() {
+            limit = Math.max(minLimit, limit * BACKOFF);
+        }
+
+        synchronized long pushbackMillis() {
+            long millis = shortRtt == 0 ? MIN_PUSHBACK_MILLIS : TimeUnit.NANOSECONDS.toMillis((long) (shortRtt / limit));
+            return Math.max(MIN_PUSHBACK_MILLIS, Math.min(MAX_PUSHBACK_MILLIS, millis));
+        }
+
+        synchronized int currentLimit() {
+            return (int) limit;
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+    }
+}
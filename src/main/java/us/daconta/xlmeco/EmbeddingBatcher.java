@@ -0,0 +1,212 @@
+package us.daconta.xlmeco;
+
+import io.grpc.Context;
+import us.daconta.xlmeco.cache.EmbeddingCacheKey;
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.grpc.ModelParameters;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+import us.daconta.xlmeco.provider.Embedding;
+import us.daconta.xlmeco.provider.EmbeddingProvider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent single-text embedding requests into batched provider calls. Requests for the same
+ * provider and model parameters are held for up to max_delay_ms, or until max_items distinct texts are
+ * waiting, then sent through {@link BatchEmbedder#embedUncached}; each caller gets its own future back.
+ * A text requested again while its window is open shares the first request's result.
+ * <p>
+ * The batched call runs outside any caller's gRPC Context, so one client cancelling does not cancel the
+ * upstream request the others are waiting on.
+ * <p>
+ * Metrics: counters "embedding_batcher.batches", ".items", ".deduplicated", ".queue_delay_micros" (summed
+ * over items; divide by items for the mean added delay) and batch size buckets
+ * "embedding_batcher.batch_size.le_N"; gauge "embedding_batcher.pending".
+ */
+public class EmbeddingBatcher {
+    public static final String PROPERTY_ENABLED = "embedding_batcher.enabled";
+    public static final String PROPERTY_MAX_DELAY_MS = "embedding_batcher.max_delay_ms";
+    public static final String PROPERTY_MAX_ITEMS = "embedding_batcher.max_items";
+
+    public static final int DEFAULT_MAX_DELAY_MS = 5;
+    public static final int DEFAULT_MAX_ITEMS = 64;
+
+    private static final int[] BATCH_SIZE_BUCKETS = {1, 4, 16, 64, 256};
+
+    private final BatchEmbedder embedder;
+    private final long maxDelayMicros;
+    private final int maxItems;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "xlm-embedding-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<GroupKey, Window> windows = new HashMap<>();
+    private int pending;
+
+    private final LongAdder batches = MetricsRegistry.counter("embedding_batcher.batches");
+    private final LongAdder items = MetricsRegistry.counter("embedding_batcher.items");
+    private final LongAdder deduplicated = MetricsRegistry.counter("embedding_batcher.deduplicated");
+    private final LongAdder queueDelayMicros = MetricsRegistry.counter("embedding_batcher.queue_delay_micros");
+    private final LongAdder[] batchSizes = new LongAdder[BATCH_SIZE_BUCKETS.length + 1];
+
+    public EmbeddingBatcher(BatchEmbedder embedder, int maxDelayMillis, int maxItems) {
+        this.embedder = embedder;
+        this.maxDelayMicros = TimeUnit.MILLISECONDS.toMicros(maxDelayMillis);
+        this.maxItems = Math.max(1, maxItems);
+        for (int i = 0; i < BATCH_SIZE_BUCKETS.length; i++) {
+            batchSizes[i] = MetricsRegistry.counter("embedding_batcher.batch_size.le_" + BATCH_SIZE_BUCKETS[i]);
+        }
+        batchSizes[BATCH_SIZE_BUCKETS.length] = MetricsRegistry.counter("embedding_batcher.batch_size.gt_"
+                + BATCH_SIZE_BUCKETS[BATCH_SIZE_BUCKETS.length - 1]);
+        MetricsRegistry.gauge("embedding_batcher.pending", this::pending);
+    }
+
+    /**
+     * Build the batcher from the server properties, or return null unless it is enabled.
+     */
+    public static EmbeddingBatcher fromProperties(Properties properties, BatchEmbedder embedder) {
+        if (!Boolean.parseBoolean(properties.getProperty(PROPERTY_ENABLED, "false").trim())) {
+            return null;
+        }
+        return new EmbeddingBatcher(embedder,
+                ConfigProperties.getInt(properties, PROPERTY_MAX_DELAY_MS, DEFAULT_MAX_DELAY_MS, 1),
+                ConfigProperties.getInt(properties, PROPERTY_MAX_ITEMS, DEFAULT_MAX_ITEMS, 1));
+    }
+
+    /**
+     * Queue one text that missed the caches; key may be null when caching is off.
+     */
+    public CompletableFuture<Embedding> submit(EmbeddingProvider provider, ModelParameters parameters, String text,
+                                               EmbeddingCacheKey key) {
+        GroupKey group = new GroupKey(provider, parameters);
+        Window full = null;
+        CompletableFuture<Embedding> result;
+        synchronized (this) {
+            Window window = windows.get(group);
+            if (window == null) {
+                window = new Window(group);
+                windows.put(group, window);
+                Window opened = window;
+                window.timeout = timer.schedule(() -> expire(opened), maxDelayMicros, TimeUnit.MICROSECONDS);
+            }
+            result = window.results.get(text);
+            if (result != null) {
+                deduplicated.increment();
+                return result;
+            }
+            result = new CompletableFuture<>();
+            window.add(text, key, result);
+            pending++;
+            // Waiting only pays off up to what the provider accepts in one call
+            if (window.results.size() >= Math.min(maxItems, Math.max(1, provider.getMaxBatchSize()))) {
+                windows.remove(group);
+                window.timeout.cancel(false);
+                full = window;
+            }
+        }
+        if (full != null) {
+            Window ready = full;
+            Context.ROOT.run(() -> dispatch(ready));
+        }
+        return result;
+    }
+
+    public synchronized int pending() {
+        return pending;
+    }
+
+    private void expire(Window window) {
+        synchronized (this) {
+            if (windows.get(window.group) != window) {
+                return;
+            }
+            windows.remove(window.group);
+        }
+        dispatch(window);
+    }
+
+    private void dispatch(Window window) {
+        int size = window.texts.size();
+        synchronized (this) {
+            pending -= size;
+        }
+        long now = System.nanoTime();
+        long delayMicros = 0;
+        for (long enqueued : window.enqueuedNanos) {
+            delayMicros += TimeUnit.NANOSECONDS.toMicros(now - enqueued);
+        }
+        batches.increment();
+        items.add(size);
+        queueDelayMicros.add(delayMicros);
+        batchSizes[bucketOf(size)].increment();
+
+        List<CompletableFuture<Embedding>> results = new ArrayList<>(window.results.values());
+        embedder.embedUncached(window.group.provider, window.group.parameters, window.texts, window.keys, results);
+    }
+
+    private static int bucketOf(int size) {
+        for (int i = 0; i < BATCH_SIZE_BUCKETS.length; i++) {
+            if (size <= BATCH_SIZE_BUCKETS[i]) {
+                return i;
+            }
+        }
+        return BATCH_SIZE_BUCKETS.length;
+    }
+
+    // Texts waiting for one provider call, in arrival order
+    private static final class Window {
+        final GroupKey group;
+        final List<String> texts = new ArrayList<>();
+        final List<EmbeddingCacheKey> keys = new ArrayList<>();
+        final List<Long> enqueuedNanos = new ArrayList<>();
+        final Map<String, CompletableFuture<Embedding>> results = new LinkedHashMap<>();
+        ScheduledFuture<?> timeout;
+
+        Window(GroupKey group) {
+            this.group = group;
+        }
+
+        void add(String text, EmbeddingCacheKey key, CompletableFuture<Embedding> result) {
+            texts.add(text);
+            keys.add(key);
+            enqueuedNanos.add(System.nanoTime());
+            results.put(text, result);
+        }
+    }
+
+    private static final class GroupKey {
+        final EmbeddingProvider provider;
+        final ModelParameters parameters;
+
+        GroupKey(EmbeddingProvider provider, ModelParameters parameters) {
+            this.provider = provider;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof GroupKey)) return false;
+            GroupKey other = (GroupKey) o;
+            return provider == other.provider && parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(provider), parameters);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package us.daconta.xlmeco;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import us.daconta.xlmeco.grpc.EmbeddingEncoding;
+import us.daconta.xlmeco.provider.Embedding;
+import us.daconta.xlmeco.provider.QuantizedEmbedding;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.List;
+
+/**
+ * Converts embeddings to and from the packed bytes fields of the gRPC API. FLOAT32 payloads are decoded
+ * without copying: the Embedding reads through a little-endian view of the message's bytes. Encoded
+ * payloads are wrapped into ByteStrings without a second copy. INT8 and BINARY payloads carry a
+ * {@link QuantizedEmbedding}.
+ */
+public class EmbeddingCodec {
+
+    private EmbeddingCodec() { }
+
+    /**
+     * Read an embedding sent either as repeated floats or as packed bytes.
+     *
+     * @throws IllegalArgumentException if the packed bytes do not match the encoding
+     */
+    public static Embedding decode(List<Float> floats, ByteString packed, EmbeddingEncoding encoding) {
+        if (packed.isEmpty()) {
+            return Embedding.fromList(floats);
+        }
+        return decode(packed, encoding);
+    }
+
+    public static Embedding decode(ByteString packed, EmbeddingEncoding encoding) {
+        switch (encoding) {
+            case EMBEDDING_FLOAT32_LE: {
+                checkLength(packed, Float.BYTES, encoding);
+                FloatBuffer values = packed.asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                return Embedding.wrap(values);
+            }
+            case EMBEDDING_FLOAT16_LE: {
+                checkLength(packed, Short.BYTES, encoding);
+                ShortBuffer halves = packed.asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                float[] values = new float[halves.remaining()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = halfToFloat(halves.get(i));
+                }
+                return Embedding.of(values);
+            }
+            case EMBEDDING_INT8:
+            case EMBEDDING_BINARY: {
+                QuantizedEmbedding quantized = decodeQuantized(packed, encoding);
+                return quantized != null ? quantized.dequantize() : Embedding.empty();
+            }
+            default:
+                throw new IllegalArgumentException("Packed embedding bytes require an encoding, got " + encoding);
+        }
+    }
+
+    /**
+     * Read a quantized payload as-is, or return null if the encoding is not a quantized one.
+     */
+    public static QuantizedEmbedding decodeQuantized(ByteString packed, EmbeddingEncoding encoding) {
+        QuantizedEmbedding.Quantization quantization = toQuantization(encoding);
+        if (quantization == null || packed.isEmpty()) {
+            return null;
+        }
+        return QuantizedEmbedding.fromBytes(quantization, packed.asReadOnlyByteBuffer());
+    }
+
+    public static QuantizedEmbedding.Quantization toQuantization(EmbeddingEncoding encoding) {
+        switch (encoding) {
+            case EMBEDDING_INT8:
+                return QuantizedEmbedding.Quantization.INT8;
+            case EMBEDDING_BINARY:
+                return QuantizedEmbedding.Quantization.BINARY;
+            default:
+                return null;
+        }
+    }
+
+    public static ByteString encode(Embedding embedding, EmbeddingEncoding encoding) {
+        int dimension = embedding.dimension();
+        switch (encoding) {
+            case EMBEDDING_FLOAT32_LE: {
+                ByteBuffer bytes = ByteBuffer.allocate(dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                bytes.asFloatBuffer().put(embedding.asFloatBuffer());
+                return UnsafeByteOperations.unsafeWrap(bytes.array());
+            }
+            case EMBEDDING_FLOAT16_LE: {
+                ByteBuffer bytes = ByteBuffer.allocate(dimension * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < dimension; i++) {
+                    bytes.putShort(floatToHalf(embedding.get(i)));
+                }
+                return UnsafeByteOperations.unsafeWrap(bytes.array());
+            }
+            case EMBEDDING_INT8:
+            case EMBEDDING_BINARY:
+                return UnsafeByteOperations.unsafeWrap(QuantizedEmbedding.quantize(embedding, toQuantization(encoding)).toBytes());
+            default:
+                throw new IllegalArgumentException("Not a packed embedding encoding: " + encoding);
+        }
+    }
+
+    /**
+     * Whether the client asked for packed bytes instead of repeated floats.
+     */
+    public static boolean isPacked(EmbeddingEncoding encoding) {
+        return encoding != EmbeddingEncoding.EMBEDDING_FLOATS && encoding != EmbeddingEncoding.UNRECOGNIZED;
+    }
+
+    private static void checkLength(ByteString packed, int bytesPerValue, EmbeddingEncoding encoding) {
+        if (packed.size() % bytesPerValue != 0) {
+            throw new IllegalArgumentException("Packed embedding of " + packed.size() + " bytes is not a whole number of "
+                    + encoding + " values");
+        }
+    }
+
+    /**
+     * IEEE-754 float to half precision, rounding to nearest even.
+     */
+    static short floatToHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent == 0xFF) {
+            // Infinity stays infinity; NaN keeps a non-zero mantissa
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 | (mantissa >>> 13) : 0));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F) {
+            return (short) (sign | 0x7C00);
+        }
+        if (halfExponent <= 0) {
+            // Subnormal half (or zero)
+            if (halfExponent < -10) {
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - halfExponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = (halfExponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1FFF;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            // A carry into the exponent is correct, including rounding up to infinity
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    static float halfToFloat(short half) {
+        int bits = half & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+        if (exponent == 0) {
+            float magnitude = mantissa * 0x1p-24f;
+            return sign != 0 ? -magnitude : magnitude;
+        }
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
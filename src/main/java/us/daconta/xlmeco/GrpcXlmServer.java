@@ -2,11 +2,15 @@ package us.daconta.xlmeco;
 
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import us.daconta.xlmeco.provider.GenerativeProviderFactory;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class GrpcXlmServer {
@@ -49,13 +53,38 @@ public class GrpcXlmServer {
         int port = Integer.parseInt(properties.getProperty("server.port"));
         logger.info(() -> "Configured server port: " + port);
 
+        // Async provider adapters and OkHttp callbacks run on virtual threads when the JDK supports them
+        ExecutorService providerExecutor = ServerExecutors.newVirtualThreadExecutor();
+        if (providerExecutor != null) {
+            GenerativeProviderFactory.setProviderExecutor(providerExecutor);
+        }
+
         // Build and start the gRPC server
-        Server server = ServerBuilder
-                .forPort(port)  // Choose the port you want the server to run on (e.g., 50051)
-                .addService(new XlmEcosystemServiceImpl(properties))  // Register your service implementation
+        ServerBuilder<?> serverBuilder = ServerBuilder.forPort(port);  // Choose the port you want the server to run on (e.g., 50051)
+        // Select the executor that service handlers (and their blocking provider calls) run on
+        ExecutorService handlerExecutor = ServerExecutors.configure(serverBuilder, properties);
+        XlmEcosystemServiceImpl xlmService = new XlmEcosystemServiceImpl(properties);
+        // The interceptor reports each client's remaining quota in the trailers of its calls
+        Server server = serverBuilder
+                .addService(ServerInterceptors.intercept(xlmService, ClientRateLimiter.TRAILERS))  // Register your service implementation
                 .addService(new VectorDbServiceImpl(properties))
                 .build();
 
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Shutting down gRPC server");
+            server.shutdown();
+            try {
+                server.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            GenerativeProviderFactory.shutdownProviders();
+            xlmService.shutdown();
+            if (handlerExecutor != null) {
+                handlerExecutor.shutdown();
+            }
+        }, "xlm-shutdown"));
+
         logger.info("XLM Server started V" + version + ", listening on port " + port);
         server.start();
 
@@ -0,0 +1,421 @@
+package us.daconta.xlmeco;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import us.daconta.xlmeco.grpc.ChatResponsePart;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+import us.daconta.xlmeco.provider.GenerativeProvider;
+import us.daconta.xlmeco.provider.ProviderCalls;
+import us.daconta.xlmeco.provider.ProviderHttpException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Routes calls over a client's ordered fallback chain of providers for one capability. Each provider sits
+ * behind a {@link CircuitBreaker}; a call goes to the first provider whose breaker admits it, and when that
+ * call fails it is retried on the next admitted provider in the chain. Only failures of the provider count
+ * and fail over: 5xx, 408 and 429 answers, I/O errors and timeouts. A 4xx error is the request's fault, would
+ * fail the same everywhere, and goes straight back to the caller without touching the breaker. Calls
+ * cancelled by the client are neither recorded nor retried; calls cut off by their deadline are recorded as
+ * failures, so a provider that hangs still opens its breaker. When no provider in the chain is admitted the
+ * call fails fast with UNAVAILABLE instead of waiting on a provider known to be down.
+ * <p>
+ * A provider must also have room under the {@link ConcurrencyLimiter} limit of the requested model. A
+ * provider at its limit is skipped like an open breaker; if that leaves no provider, the call fails with
+ * the limiter's RESOURCE_EXHAUSTED and retry pushback.
+ * <p>
+ * Metrics: counter "provider.failovers" (calls served by a provider other than the first in the chain),
+ * plus the breakers' metrics.
+ */
+public class ProviderRouter {
+    private static final Logger logger = Logger.getLogger(ProviderRouter.class.getName());
+
+    private final CircuitBreaker.Settings settings;
+    private final ConcurrencyLimiter limiter;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final LongAdder failovers = MetricsRegistry.counter("provider.failovers");
+
+    public ProviderRouter(CircuitBreaker.Settings settings, ConcurrencyLimiter limiter) {
+        this.settings = settings;
+        this.limiter = limiter;
+    }
+
+    public CircuitBreaker breaker(GenerativeProvider provider) {
+        return breakers.computeIfAbsent(provider.getProviderName(), name -> new CircuitBreaker(name, settings));
+    }
+
+    /**
+     * Make the call on the first admitted provider of the chain, failing over down the chain on errors.
+     */
+    public <T> CompletableFuture<T> call(List<GenerativeProvider> chain, String model,
+                                         Function<GenerativeProvider, CompletableFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(chain, model, 0, call, Context.current(), result, null);
+        return result;
+    }
+
+    private <T> void attempt(List<GenerativeProvider> chain, String model, int from, Function<GenerativeProvider, CompletableFuture<T>> call,
+                             Context context, CompletableFuture<T> result, Throwable lastError) {
+        GenerativeProvider saturated = null;
+        for (int i = from; i < chain.size(); i++) {
+            GenerativeProvider provider = chain.get(i);
+            CircuitBreaker.Permit breakerPermit = breaker(provider).tryAcquire();
+            if (breakerPermit == null) {
+                continue;
+            }
+            ConcurrencyLimiter.Permit slot = limiter.tryAcquire(provider.getProviderName(), model);
+            if (slot == null) {
+                breakerPermit.release();
+                saturated = saturated != null ? saturated : provider;
+                continue;
+            }
+            Admission permit = new Admission(breakerPermit, slot);
+            if (i > 0) {
+                failovers.increment();
+            }
+            int next = i + 1;
+            long start = System.nanoTime();
+            CompletableFuture<T> future;
+            try {
+                future = context.call(() -> call.apply(provider));
+            } catch (Exception e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((value, error) -> {
+                if (error == null) {
+                    permit.success(System.nanoTime() - start);
+                    result.complete(value);
+                } else if (context.isCancelled()) {
+                    // No time left to fail over; a provider that hung past the deadline still counts as failing
+                    if (ProviderCalls.isDeadlineExceeded(context)) {
+                        permit.failure();
+                    } else {
+                        permit.release();
+                    }
+                    result.completeExceptionally(error);
+                } else if (ProviderHttpException.isClientError(error)) {
+                    permit.release();
+                    result.completeExceptionally(error);
+                } else {
+                    permit.failure();
+                    logger.log(Level.WARNING, "Provider " + provider.getProviderName() + " failed", error);
+                    attempt(chain, model, next, call, context, result, error);
+                }
+            });
+            return;
+        }
+        result.completeExceptionally(noProvider(chain, model, saturated, lastError));
+    }
+
+    /**
+     * A token stream from the first admitted provider of the chain. A stream that fails before its first
+     * token fails over to the next provider; after that the error reaches the subscriber, since tokens
+     * already sent cannot be taken back. The breaker records time to first token as the latency.
+     */
+    public Flow.Publisher<ChatResponsePart> stream(List<GenerativeProvider> chain, String model,
+                                                   Function<GenerativeProvider, Flow.Publisher<ChatResponsePart>> open) {
+        return subscriber -> new FailoverStream(chain, model, open, subscriber, Context.current()).start();
+    }
+
+    // The last provider error if there was one, else why no provider could take the call
+    private Throwable noProvider(List<GenerativeProvider> chain, String model, GenerativeProvider saturated, Throwable lastError) {
+        if (lastError != null) {
+            return lastError;
+        }
+        if (saturated != null) {
+            return limiter.saturated(saturated.getProviderName(), model);
+        }
+        String names = chain.stream().map(GenerativeProvider::getProviderName).collect(Collectors.joining(", "));
+        return Status.UNAVAILABLE.withDescription("No available provider among: " + names).asRuntimeException();
+    }
+
+    /**
+     * A provider's circuit breaker permit and concurrency slot for one call, ended together.
+     */
+    private static final class Admission {
+        private final CircuitBreaker.Permit breakerPermit;
+        private final ConcurrencyLimiter.Permit slot;
+
+        Admission(CircuitBreaker.Permit breakerPermit, ConcurrencyLimiter.Permit slot) {
+            this.breakerPermit = breakerPermit;
+            this.slot = slot;
+        }
+
+        void success(long latencyNanos) {
+            breakerPermit.success(latencyNanos);
+            slot.success(latencyNanos);
+        }
+
+        void failure() {
+            breakerPermit.failure();
+            slot.failure();
+        }
+
+        void release() {
+            breakerPermit.release();
+            slot.release();
+        }
+    }
+
+    private final class FailoverStream implements Flow.Subscription {
+        private final List<GenerativeProvider> chain;
+        private final String model;
+        private final Function<GenerativeProvider, Flow.Publisher<ChatResponsePart>> open;
+        private final Flow.Subscriber<? super ChatResponsePart> downstream;
+        private final Context context;
+        private int next;
+        private long demand;
+        private boolean delivered;
+        private boolean cancelled;
+        private Attempt current;
+        private GenerativeProvider saturated;
+
+        FailoverStream(List<GenerativeProvider> chain, String model, Function<GenerativeProvider, Flow.Publisher<ChatResponsePart>> open,
+                       Flow.Subscriber<? super ChatResponsePart> downstream, Context context) {
+            this.chain = chain;
+            this.model = model;
+            this.open = open;
+            this.downstream = downstream;
+            this.context = context;
+        }
+
+        void start() {
+            downstream.onSubscribe(this);
+            tryNext(null);
+        }
+
+        private void tryNext(Throwable lastError) {
+            while (true) {
+                GenerativeProvider provider;
+                Admission permit = null;
+                synchronized (this) {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (next >= chain.size()) {
+                        break;
+                    }
+                    provider = chain.get(next);
+                    CircuitBreaker.Permit breakerPermit = breaker(provider).tryAcquire();
+                    ConcurrencyLimiter.Permit slot = breakerPermit != null ? limiter.tryAcquire(provider.getProviderName(), model) : null;
+                    if (slot != null) {
+                        permit = new Admission(breakerPermit, slot);
+                    } else if (breakerPermit != null) {
+                        breakerPermit.release();
+                        saturated = saturated != null ? saturated : provider;
+                    }
+                    if (next++ > 0 && permit != null) {
+                        failovers.increment();
+                    }
+                }
+                if (permit == null) {
+                    continue;
+                }
+                Attempt attempt = new Attempt(provider, permit);
+                synchronized (this) {
+                    current = attempt;
+                }
+                try {
+                    context.call(() -> open.apply(provider)).subscribe(attempt);
+                    return;
+                } catch (Exception e) {
+                    permit.failure();
+                    lastError = e;
+                }
+            }
+            GenerativeProvider skipped;
+            synchronized (this) {
+                skipped = saturated;
+            }
+            downstream.onError(noProvider(chain, model, skipped, lastError));
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                return;
+            }
+            Flow.Subscription upstream;
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                upstream = current != null ? current.subscription : null;
+            }
+            if (upstream != null) {
+                upstream.request(n);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            Attempt attempt;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                attempt = current;
+            }
+            if (attempt != null) {
+                attempt.cancel();
+            }
+        }
+
+        private final class Attempt implements Flow.Subscriber<ChatResponsePart> {
+            private final GenerativeProvider provider;
+            private final Admission permit;
+            private final long start = System.nanoTime();
+            private Flow.Subscription subscription;
+            private boolean breakerRecorded;
+            private boolean finished;
+            private long firstTokenNanos = -1;
+
+            Attempt(GenerativeProvider provider, Admission permit) {
+                this.provider = provider;
+                this.permit = permit;
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                long requested;
+                boolean cancel;
+                synchronized (FailoverStream.this) {
+                    this.subscription = subscription;
+                    requested = demand;
+                    cancel = cancelled;
+                }
+                if (cancel) {
+                    cancel();
+                } else if (requested > 0) {
+                    subscription.request(requested);
+                }
+            }
+
+            @Override
+            public void onNext(ChatResponsePart part) {
+                firstToken();
+                synchronized (FailoverStream.this) {
+                    delivered = true;
+                    if (demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                }
+                downstream.onNext(part);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                boolean clientError = ProviderHttpException.isClientError(throwable);
+                boolean retry;
+                synchronized (FailoverStream.this) {
+                    retry = !delivered && !cancelled && !context.isCancelled() && !clientError;
+                    if (retry) {
+                        current = null;
+                    }
+                }
+                if (clientError || (context.isCancelled() && !ProviderCalls.isDeadlineExceeded(context))) {
+                    release();
+                } else {
+                    finish(true);
+                }
+                if (retry) {
+                    logger.log(Level.WARNING, "Provider " + provider.getProviderName() + " stream failed before its first token", throwable);
+                    tryNext(throwable);
+                } else {
+                    downstream.onError(throwable);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                finish(false);
+                downstream.onComplete();
+            }
+
+            void cancel() {
+                Flow.Subscription upstream;
+                synchronized (FailoverStream.this) {
+                    upstream = subscription;
+                }
+                // The subscriber gives up on the stream when the RPC expires as well as when the client cancels
+                if (ProviderCalls.isDeadlineExceeded(context)) {
+                    finish(true);
+                } else {
+                    release();
+                }
+                if (upstream != null) {
+                    upstream.cancel();
+                }
+            }
+
+            // The breaker judges the provider by its first token; the concurrency slot is held until the stream ends
+            private void firstToken() {
+                long latency;
+                synchronized (this) {
+                    if (breakerRecorded) {
+                        return;
+                    }
+                    breakerRecorded = true;
+                    latency = firstTokenNanos = System.nanoTime() - start;
+                }
+                permit.breakerPermit.success(latency);
+            }
+
+            private void finish(boolean failed) {
+                boolean recordBreaker;
+                long latency;
+                synchronized (this) {
+                    if (finished) {
+                        return;
+                    }
+                    finished = true;
+                    recordBreaker = !breakerRecorded;
+                    breakerRecorded = true;
+                    latency = firstTokenNanos >= 0 ? firstTokenNanos : System.nanoTime() - start;
+                }
+                if (failed) {
+                    if (recordBreaker) {
+                        permit.breakerPermit.failure();
+                    }
+                    permit.slot.failure();
+                } else {
+                    if (recordBreaker) {
+                        permit.breakerPermit.success(latency);
+                    }
+                    permit.slot.success(latency);
+                }
+            }
+
+            // Cancelled or rejected as a bad request: the breaker learns nothing, but a first token already seen is still a latency sample
+            private void release() {
+                boolean recordBreaker;
+                long latency;
+                synchronized (this) {
+                    if (finished) {
+                        return;
+                    }
+                    finished = true;
+                    recordBreaker = !breakerRecorded;
+                    breakerRecorded = true;
+                    latency = firstTokenNanos;
+                }
+                if (recordBreaker) {
+                    permit.breakerPermit.release();
+                }
+                if (latency >= 0) {
+                    permit.slot.success(latency);
+                } else {
+                    permit.slot.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package us.daconta.xlmeco;
+
+import us.daconta.xlmeco.grpc.EmbeddingEncoding;
+import us.daconta.xlmeco.provider.Embedding;
+import us.daconta.xlmeco.provider.QuantizedEmbedding;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Recall-vs-size benchmark for the embedding encodings. Holds out the first vectors of a local dataset as
+ * queries, computes the exact top-k by cosine similarity over the rest, and reports recall@k and bytes per
+ * vector for float16, int8, binary and binary with a float re-rank of the top candidates.
+ * <p>
+ * The dataset is either an .fvecs file (int32 dimension then float32 values per vector, little-endian) or a
+ * text file with one vector per line (comma or whitespace separated). Without a dataset a synthetic
+ * clustered set is generated.
+ */
+public class QuantizationBenchmark {
+    private static final int RERANK_FACTOR = 4;
+
+    public static void main(String[] args) throws IOException {
+        String dataset = args.length > 0 ? args[0] : null;
+        int queryCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        List<Embedding> vectors = dataset != null ? load(Paths.get(dataset)) : synthetic(20000, 384, 64);
+        if (vectors.size() <= queryCount) {
+            throw new IllegalArgumentException("Dataset needs more than " + queryCount + " vectors");
+        }
+        List<Embedding> queries = normalize(vectors.subList(0, queryCount));
+        List<Embedding> base = normalize(vectors.subList(queryCount, vectors.size()));
+        int dimension = base.get(0).dimension();
+        System.out.println("Vectors: " + base.size() + " x " + dimension + ", queries: " + queryCount + ", k=" + k);
+
+        List<Embedding> float16 = new ArrayList<>(base.size());
+        List<QuantizedEmbedding> int8 = new ArrayList<>(base.size());
+        List<QuantizedEmbedding> binary = new ArrayList<>(base.size());
+        for (Embedding vector : base) {
+            float16.add(EmbeddingCodec.decode(EmbeddingCodec.encode(vector, EmbeddingEncoding.EMBEDDING_FLOAT16_LE),
+                    EmbeddingEncoding.EMBEDDING_FLOAT16_LE));
+            int8.add(QuantizedEmbedding.int8(vector));
+            binary.add(QuantizedEmbedding.binary(vector));
+        }
+
+        double recallFloat16 = 0;
+        double recallInt8 = 0;
+        double recallBinary = 0;
+        double recallBinaryRerank = 0;
+        for (Embedding query : queries) {
+            Set<Integer> truth = topK(base.size(), k, i -> base.get(i).dot(query));
+            recallFloat16 += recall(truth, topK(base.size(), k, i -> float16.get(i).dot(query)));
+            recallInt8 += recall(truth, topK(base.size(), k, i -> int8.get(i).dot(query)));
+
+            QuantizedEmbedding binaryQuery = QuantizedEmbedding.binary(query);
+            recallBinary += recall(truth, topK(base.size(), k, i -> -binary.get(i).hammingDistance(binaryQuery)));
+            Set<Integer> candidates = topK(base.size(), k * RERANK_FACTOR, i -> -binary.get(i).hammingDistance(binaryQuery));
+            List<Integer> candidateList = new ArrayList<>(candidates);
+            Set<Integer> reranked = new HashSet<>();
+            for (int index : topK(candidateList.size(), k, i -> base.get(candidateList.get(i)).dot(query))) {
+                reranked.add(candidateList.get(index));
+            }
+            recallBinaryRerank += recall(truth, reranked);
+        }
+
+        int float32Bytes = dimension * Float.BYTES;
+        System.out.printf("%-22s %10s %12s %8s%n", "encoding", "recall@" + k, "bytes/vector", "ratio");
+        report("float32", 1.0, float32Bytes, float32Bytes);
+        report("float16", recallFloat16 / queryCount, dimension * Short.BYTES, float32Bytes);
+        report("int8", recallInt8 / queryCount, int8.get(0).sizeInBytes(), float32Bytes);
+        report("binary", recallBinary / queryCount, binary.get(0).sizeInBytes(), float32Bytes);
+        report("binary+rerank x" + RERANK_FACTOR, recallBinaryRerank / queryCount, binary.get(0).sizeInBytes(), float32Bytes);
+        System.out.println("(binary+rerank keeps float32 vectors for the re-rank step)");
+    }
+
+    private interface Scorer {
+        float score(int index);
+    }
+
+    private static Set<Integer> topK(int size, int k, Scorer scorer) {
+        // Min-heap of the best k (score, index) pairs
+        PriorityQueue<float[]> heap = new PriorityQueue<>((a, b) -> Float.compare(a[0], b[0]));
+        for (int i = 0; i < size; i++) {
+            float score = scorer.score(i);
+            if (heap.size() < k) {
+                heap.add(new float[]{score, i});
+            } else if (score > heap.peek()[0]) {
+                heap.poll();
+                heap.add(new float[]{score, i});
+            }
+        }
+        Set<Integer> indexes = new HashSet<>();
+        for (float[] entry : heap) {
+            indexes.add((int) entry[1]);
+        }
+        return indexes;
+    }
+
+    private static double recall(Set<Integer> truth, Set<Integer> found) {
+        int hits = 0;
+        for (int index : found) {
+            if (truth.contains(index)) {
+                hits++;
+            }
+        }
+        return (double) hits / truth.size();
+    }
+
+    private static void report(String name, double recall, int bytes, int float32Bytes) {
+        System.out.printf("%-22s %10.3f %12d %7.1fx%n", name, recall, bytes, (double) float32Bytes / bytes);
+    }
+
+    private static List<Embedding> normalize(List<Embedding> vectors) {
+        List<Embedding> normalized = new ArrayList<>(vectors.size());
+        for (Embedding vector : vectors) {
+            float norm = vector.norm();
+            float[] values = vector.toArray();
+            if (norm > 0f) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] /= norm;
+                }
+            }
+            normalized.add(Embedding.of(values));
+        }
+        return normalized;
+    }
+
+    private static List<Embedding> load(Path path) throws IOException {
+        List<Embedding> vectors = new ArrayList<>();
+        if (path.toString().endsWith(".fvecs")) {
+            try (InputStream in = Files.newInputStream(path); DataInputStream data = new DataInputStream(in)) {
+                byte[] header = new byte[Integer.BYTES];
+                while (true) {
+                    try {
+                        data.readFully(header);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int dimension = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                    byte[] body = new byte[dimension * Float.BYTES];
+                    data.readFully(body);
+                    float[] values = new float[dimension];
+                    ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values);
+                    vectors.add(Embedding.of(values));
+                }
+            }
+            return vectors;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("[,\\s]+");
+                float[] values = new float[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    values[i] = Float.parseFloat(parts[i]);
+                }
+                vectors.add(Embedding.of(values));
+            }
+        }
+        return vectors;
+    }
+
+    // Gaussian clusters, roughly the shape of sentence embeddings
+    private static List<Embedding> synthetic(int count, int dimension, int clusters) {
+        Random random = new Random(42);
+        float[][] centers = new float[clusters][dimension];
+        for (float[] center : centers) {
+            for (int i = 0; i < dimension; i++) {
+                center[i] = (float) random.nextGaussian();
+            }
+        }
+        List<Embedding> vectors = new ArrayList<>(count);
+        for (int n = 0; n < count; n++) {
+            float[] center = centers[random.nextInt(clusters)];
+            float[] values = new float[dimension];
+            for (int i = 0; i < dimension; i++) {
+                values[i] = center[i] + 0.6f * (float) random.nextGaussian();
+            }
+            vectors.add(Embedding.of(values));
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,43 @@
+package us.daconta.xlmeco;
+
+import us.daconta.xlmeco.grpc.ChatResponsePart;
+
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+/**
+ * Passes a chat stream through to another subscriber while collecting its tokens, and hands the full
+ * completion to a callback once the stream completes normally. Failed or cancelled streams record nothing.
+ */
+public class RecordingChatSubscriber implements Flow.Subscriber<ChatResponsePart> {
+    private final Flow.Subscriber<ChatResponsePart> delegate;
+    private final Consumer<String> onCompletion;
+    private final StringBuilder completion = new StringBuilder();
+
+    public RecordingChatSubscriber(Flow.Subscriber<ChatResponsePart> delegate, Consumer<String> onCompletion) {
+        this.delegate = delegate;
+        this.onCompletion = onCompletion;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        delegate.onSubscribe(subscription);
+    }
+
+    @Override
+    public void onNext(ChatResponsePart part) {
+        completion.append(part.getToken());
+        delegate.onNext(part);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        delegate.onError(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        onCompletion.accept(completion.toString());
+        delegate.onComplete();
+    }
+}
@@ -0,0 +1,273 @@
+package us.daconta.xlmeco;
+
+import io.grpc.Context;
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Hedged requests: if a call has not answered after a percentile of the recent latency of the same kind of
+ * call, a second copy is sent and whichever answers first wins. The loser is cancelled through its own
+ * child gRPC Context, which cancels its upstream HTTP call.
+ * <p>
+ * Hedges are paid for from a global budget: every hedgeable call adds budget_percent of a hedge to it, up
+ * to a burst of {@value #BURST} hedges, and every hedge fired takes a whole one. This caps the extra load
+ * at budget_percent of the hedgeable calls even when an upstream slows down as a whole.
+ * <p>
+ * Latency is sampled from the first copy of every call, so the hedge delay follows the upstream; a copy
+ * cancelled after losing counts with the time it had run, a lower bound of its latency.
+ * <p>
+ * Metrics per call name (e.g. "openai.chat"): counters "hedging.&lt;name&gt;.fired" and ".won" (the hedge
+ * answered first), gauge ".delay_ms"; counter "hedging.budget_exhausted" for hedges skipped for lack of budget.
+ */
+public class RequestHedger {
+    // Server default for clients that do not set ClientSettings.hedge_requests
+    public static final String PROPERTY_ENABLED = "hedging.enabled";
+    public static final String PROPERTY_PERCENTILE = "hedging.percentile";
+    public static final String PROPERTY_BUDGET_PERCENT = "hedging.budget_percent";
+    public static final String PROPERTY_MIN_DELAY_MS = "hedging.min_delay_ms";
+    public static final String PROPERTY_MIN_SAMPLES = "hedging.min_samples";
+    public static final String PROPERTY_WINDOW_SIZE = "hedging.window_size";
+
+    private static final int BURST = 10;
+    // Budget is kept in hundredths of a percent of a hedge, so fractional budgets still add up
+    private static final long HEDGE_COST = 100 * 100;
+
+    // Fires pending hedges; the work per hedge is just starting a call so one thread serves all requests
+    private static final ScheduledExecutorService hedgeTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "xlm-hedge-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final boolean enabledByDefault;
+    private final double percentile;
+    private final long creditPerCall;
+    private final long minDelayNanos;
+    private final int minSamples;
+    private final int windowSize;
+    private final AtomicLong credits = new AtomicLong();
+    private final Map<String, CallStats> stats = new ConcurrentHashMap<>();
+    private final LongAdder budgetExhausted = MetricsRegistry.counter("hedging.budget_exhausted");
+
+    public RequestHedger(boolean enabledByDefault, double percentile, double budgetPercent, long minDelayMillis,
+                         int minSamples, int windowSize) {
+        this.enabledByDefault = enabledByDefault;
+        this.percentile = Math.min(100.0, Math.max(0.0, percentile));
+        this.creditPerCall = Math.round(budgetPercent * 100);
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.windowSize = Math.max(16, windowSize);
+        this.minSamples = Math.max(1, Math.min(minSamples, this.windowSize));
+    }
+
+    public static RequestHedger fromProperties(Properties properties) {
+        return new RequestHedger(
+                Boolean.parseBoolean(properties.getProperty(PROPERTY_ENABLED, "false").trim()),
+                ConfigProperties.getDouble(properties, PROPERTY_PERCENTILE, 95.0, 0),
+                ConfigProperties.getDouble(properties, PROPERTY_BUDGET_PERCENT, 5.0, 0),
+                ConfigProperties.getLong(properties, PROPERTY_MIN_DELAY_MS, 50, 0),
+                ConfigProperties.getInt(properties, PROPERTY_MIN_SAMPLES, 20, 1),
+                ConfigProperties.getInt(properties, PROPERTY_WINDOW_SIZE, 512, 1));
+    }
+
+    public boolean isEnabledByDefault() {
+        return enabledByDefault;
+    }
+
+    /**
+     * Run the call, firing the hedge if the call is slower than usual for the name and the budget allows.
+     * A null hedge only samples the call's latency. A failing copy is not hedged: the call fails once every
+     * copy started has failed.
+     */
+    public <T> CompletableFuture<T> call(String name, Supplier<CompletableFuture<T>> call, Supplier<CompletableFuture<T>> hedge) {
+        CallStats callStats = stats.computeIfAbsent(name, CallStats::new);
+        long delayNanos = hedge != null ? callStats.hedgeDelayNanos() : -1;
+        if (hedge != null) {
+            credits.accumulateAndGet(creditPerCall, (current, credit) -> Math.min(BURST * HEDGE_COST, current + credit));
+        }
+        if (delayNanos < 0) {
+            long start = System.nanoTime();
+            CompletableFuture<T> future = call.get();
+            future.whenComplete((value, error) -> {
+                if (error == null) {
+                    callStats.record(System.nanoTime() - start);
+                }
+            });
+            return future;
+        }
+        return new Race<T>(callStats).start(call, hedge, delayNanos);
+    }
+
+    private boolean spendBudget() {
+        while (true) {
+            long current = credits.get();
+            if (current < HEDGE_COST) {
+                budgetExhausted.increment();
+                return false;
+            }
+            if (credits.compareAndSet(current, current - HEDGE_COST)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Recent latencies of one kind of call and its hedging counters.
+     */
+    private final class CallStats {
+        private final long[] window = new long[windowSize];
+        private int count;
+        private int next;
+        private int sinceUpdate;
+        private volatile long delayNanos = -1;
+        private final LongAdder fired;
+        private final LongAdder won;
+
+        CallStats(String name) {
+            this.fired = MetricsRegistry.counter("hedging." + name + ".fired");
+            this.won = MetricsRegistry.counter("hedging." + name + ".won");
+            MetricsRegistry.gauge("hedging." + name + ".delay_ms", () -> TimeUnit.NANOSECONDS.toMillis(Math.max(0, delayNanos)));
+        }
+
+        long hedgeDelayNanos() {
+            return delayNanos;
+        }
+
+        synchronized void record(long latencyNanos) {
+            window[next] = latencyNanos;
+            next = (next + 1) % window.length;
+            count = Math.min(window.length, count + 1);
+            // Sorting the window per sample would dominate; refresh the percentile every 1/16th of a window
+            if (count >= minSamples && (delayNanos < 0 || ++sinceUpdate >= window.length / 16)) {
+                sinceUpdate = 0;
+                long[] sorted = Arrays.copyOf(window, count);
+                Arrays.sort(sorted);
+                int rank = (int) Math.ceil(percentile / 100.0 * count) - 1;
+                delayNanos = Math.max(minDelayNanos, sorted[Math.max(0, Math.min(count - 1, rank))]);
+            }
+        }
+    }
+
+    /**
+     * One call and, once its delay has passed, its hedge.
+     */
+    private final class Race<T> {
+        private final CallStats callStats;
+        private final Context parent = Context.current();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long start = System.nanoTime();
+        private Copy primary;
+        private Copy hedge;
+        private int running;
+        private ScheduledFuture<?> timer;
+
+        Race(CallStats callStats) {
+            this.callStats = callStats;
+        }
+
+        CompletableFuture<T> start(Supplier<CompletableFuture<T>> call, Supplier<CompletableFuture<T>> hedgeCall, long delayNanos) {
+            synchronized (this) {
+                running++;
+                primary = new Copy(false);
+            }
+            primary.launch(call);
+            ScheduledFuture<?> scheduled = hedgeTimer.schedule(() -> fireHedge(hedgeCall), delayNanos, TimeUnit.NANOSECONDS);
+            synchronized (this) {
+                timer = scheduled;
+                if (result.isDone()) {
+                    scheduled.cancel(false);
+                }
+            }
+            return result;
+        }
+
+        private void fireHedge(Supplier<CompletableFuture<T>> hedgeCall) {
+            synchronized (this) {
+                if (result.isDone() || running == 0 || !spendBudget()) {
+                    return;
+                }
+                running++;
+                hedge = new Copy(true);
+            }
+            callStats.fired.increment();
+            hedge.launch(hedgeCall);
+        }
+
+        private void finished(Copy copy, T value, Throwable error) {
+            Copy other;
+            boolean last;
+            ScheduledFuture<?> pending;
+            synchronized (this) {
+                running--;
+                last = running == 0;
+                other = copy == primary ? hedge : primary;
+                pending = timer;
+            }
+            if (!copy.isHedge && (error == null || copy.lost)) {
+                callStats.record(System.nanoTime() - start);
+            }
+            if (error == null && result.complete(value)) {
+                if (copy.isHedge) {
+                    callStats.won.increment();
+                }
+                if (other != null) {
+                    other.lose();
+                }
+            } else if (error != null && last) {
+                result.completeExceptionally(error);
+            }
+            if (result.isDone() && pending != null) {
+                pending.cancel(false);
+            }
+            // Closing a context that has finished its call cancels nothing; a lost copy is already cancelled
+            copy.context.close();
+        }
+
+        private final class Copy {
+            private final boolean isHedge;
+            private final Context.CancellableContext context = parent.withCancellation();
+            private volatile CompletableFuture<T> call;
+            private volatile boolean lost;
+
+            Copy(boolean isHedge) {
+                this.isHedge = isHedge;
+            }
+
+            void launch(Supplier<CompletableFuture<T>> supplier) {
+                CompletableFuture<T> future;
+                try {
+                    future = context.call(supplier::get);
+                } catch (Exception e) {
+                    future = CompletableFuture.failedFuture(e);
+                }
+                call = future;
+                future.whenComplete((value, error) -> finished(this, value, error));
+                if (lost) {
+                    future.cancel(true);
+                }
+            }
+
+            void lose() {
+                lost = true;
+                context.cancel(new CancellationException("Another copy of the request answered first"));
+                CompletableFuture<T> future = call;
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package us.daconta.xlmeco;
+
+import io.grpc.Context;
+import us.daconta.xlmeco.cache.CachedResponse;
+import us.daconta.xlmeco.cache.SemanticIndex;
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.grpc.ChatRequest;
+import us.daconta.xlmeco.grpc.LmParameters;
+import us.daconta.xlmeco.grpc.ModelParameters;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+import us.daconta.xlmeco.provider.Embedding;
+import us.daconta.xlmeco.provider.EmbeddingProvider;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Semantic stage in front of chat: answers a prompt with the cached completion of an earlier prompt that
+ * means the same thing. The prompt is embedded with the client's embedding provider (through the
+ * {@link BatchEmbedder}, so repeated prompts are not embedded twice) and looked up in a {@link SemanticIndex};
+ * a match at or above the similarity threshold is a hit.
+ * <p>
+ * A fraction of hits (verify_sample_rate) is checked in the background: the request is sent to the chat
+ * provider anyway and the fresh completion is compared to the cached one by embedding similarity. A pair
+ * below the threshold counts as a false hit, which tells whether the threshold is too loose.
+ * <p>
+ * Metrics: counters "semantic_cache.lookups", ".hits", ".misses", ".errors", ".verified", ".false_hits" and
+ * ".lookup_micros" (summed index search time; divide by lookups for the mean), plus the index gauges.
+ */
+public class SemanticChatCache {
+    public static final String PROPERTY_ENABLED = "semantic_cache.enabled";
+    public static final String PROPERTY_MAX_BYTES = "semantic_cache.max_bytes";
+    public static final String PROPERTY_THRESHOLD = "semantic_cache.similarity_threshold";
+    public static final String PROPERTY_TTL_SECONDS = "semantic_cache.ttl_seconds";
+    public static final String PROPERTY_VERIFY_SAMPLE_RATE = "semantic_cache.verify_sample_rate";
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final float DEFAULT_THRESHOLD = 0.95f;
+    public static final long DEFAULT_TTL_SECONDS = 60 * 60;
+    public static final double DEFAULT_VERIFY_SAMPLE_RATE = 0.01;
+
+    private static final Logger logger = Logger.getLogger(SemanticChatCache.class.getName());
+
+    private final BatchEmbedder embedder;
+    private final SemanticIndex index;
+    private final float defaultThreshold;
+    private final long defaultTtlSeconds;
+    private final double verifySampleRate;
+
+    private final LongAdder lookups = MetricsRegistry.counter("semantic_cache.lookups");
+    private final LongAdder hits = MetricsRegistry.counter("semantic_cache.hits");
+    private final LongAdder misses = MetricsRegistry.counter("semantic_cache.misses");
+    private final LongAdder errors = MetricsRegistry.counter("semantic_cache.errors");
+    private final LongAdder verified = MetricsRegistry.counter("semantic_cache.verified");
+    private final LongAdder falseHits = MetricsRegistry.counter("semantic_cache.false_hits");
+    private final LongAdder lookupMicros = MetricsRegistry.counter("semantic_cache.lookup_micros");
+
+    public SemanticChatCache(BatchEmbedder embedder, long maxBytes, float defaultThreshold, long defaultTtlSeconds,
+                             double verifySampleRate) {
+        this.embedder = embedder;
+        this.index = new SemanticIndex(maxBytes);
+        this.defaultThreshold = defaultThreshold;
+        this.defaultTtlSeconds = defaultTtlSeconds;
+        this.verifySampleRate = verifySampleRate;
+    }
+
+    /**
+     * Build the cache from the server properties, or return null unless it is enabled.
+     */
+    public static SemanticChatCache fromProperties(Properties properties, BatchEmbedder embedder) {
+        if (!Boolean.parseBoolean(properties.getProperty(PROPERTY_ENABLED, "false").trim())) {
+            return null;
+        }
+        return new SemanticChatCache(embedder,
+                ConfigProperties.getLong(properties, PROPERTY_MAX_BYTES, DEFAULT_MAX_BYTES, 1),
+                (float) ConfigProperties.getDouble(properties, PROPERTY_THRESHOLD, DEFAULT_THRESHOLD, 0),
+                ConfigProperties.getLong(properties, PROPERTY_TTL_SECONDS, DEFAULT_TTL_SECONDS, 1),
+                ConfigProperties.getDouble(properties, PROPERTY_VERIFY_SAMPLE_RATE, DEFAULT_VERIFY_SAMPLE_RATE, 0));
+    }
+
+    /**
+     * The outcome of one lookup: the hit, if any, and what is needed to remember the completion on a miss.
+     */
+    public final class Lookup {
+        private final String scope;
+        private final String chatProvider;
+        private final ChatRequest request;
+        private final Embedding embedding;
+        private final EmbeddingProvider embeddingProvider;
+        private final SemanticIndex.Match match;
+        private final float threshold;
+
+        Lookup(String scope, String chatProvider, ChatRequest request, Embedding embedding,
+               EmbeddingProvider embeddingProvider, SemanticIndex.Match match, float threshold) {
+            this.scope = scope;
+            this.chatProvider = chatProvider;
+            this.request = request;
+            this.embedding = embedding;
+            this.embeddingProvider = embeddingProvider;
+            this.match = match;
+            this.threshold = threshold;
+        }
+
+        // The cached completion of a similar prompt, or null on a miss
+        public CachedResponse getHit() {
+            return match != null ? match.getResponse() : null;
+        }
+
+        /**
+         * Index the completion generated after a miss; ttlSeconds &lt;= 0 uses the server default.
+         */
+        public void remember(String clientId, String completion, long ttlSeconds) {
+            if (embedding == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long ttl = ttlSeconds > 0 ? ttlSeconds : defaultTtlSeconds;
+            index.add(scope, embedding, new CachedResponse(chatProvider, request.getModelName(), clientId,
+                    request.getPrompt(), completion, now, now + TimeUnit.SECONDS.toMillis(ttl)));
+        }
+
+        /**
+         * After a hit, possibly (per the sample rate) generate a fresh completion in the background and
+         * count a false hit if it does not match the cached one.
+         */
+        public void maybeVerify(Supplier<CompletableFuture<String>> freshCompletion) {
+            if (match == null || ThreadLocalRandom.current().nextDouble() >= verifySampleRate) {
+                return;
+            }
+            String cached = match.getResponse().getCompletion();
+            CompletableFuture<String> fresh;
+            try {
+                // Detached from the client's call, which is answered already
+                fresh = Context.ROOT.call(freshCompletion::get);
+            } catch (Exception e) {
+                fresh = CompletableFuture.failedFuture(e);
+            }
+            fresh.thenCompose(completion -> {
+                        List<CompletableFuture<Embedding>> pair = embedder.embed(embeddingProvider,
+                                List.of(cached, completion), ModelParameters.getDefaultInstance());
+                        return pair.get(0).thenCombine(pair.get(1), SemanticChatCache::cosine);
+                    })
+                    .whenComplete((similarity, error) -> {
+                        if (error != null) {
+                            logger.log(Level.FINE, "Semantic cache verification failed", error);
+                            return;
+                        }
+                        verified.increment();
+                        if (similarity < threshold) {
+                            falseHits.increment();
+                            logger.info(() -> "Semantic cache false hit: prompt similarity " + match.getSimilarity()
+                                    + ", completion similarity " + similarity);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Embed the prompt and search the index. Completes with a miss, never exceptionally, when the prompt
+     * cannot be embedded. threshold &lt;= 0 uses the server default.
+     */
+    public CompletableFuture<Lookup> lookup(String chatProvider, EmbeddingProvider embeddingProvider, ChatRequest request,
+                                            float threshold) {
+        float minSimilarity = threshold > 0 ? threshold : defaultThreshold;
+        String scope = scopeOf(chatProvider, embeddingProvider, request);
+        CompletableFuture<Embedding> embedding;
+        try {
+            embedding = embedder.embed(embeddingProvider, List.of(request.getPrompt()), ModelParameters.getDefaultInstance()).get(0);
+        } catch (RuntimeException e) {
+            embedding = CompletableFuture.failedFuture(e);
+        }
+        return embedding.handle((vector, error) -> {
+            lookups.increment();
+            if (error != null || vector == null || vector.isEmpty()) {
+                errors.increment();
+                logger.log(Level.WARNING, "Cannot embed prompt for the semantic cache; skipping it", error);
+                return new Lookup(scope, chatProvider, request, null, embeddingProvider, null, minSimilarity);
+            }
+            long start = System.nanoTime();
+            SemanticIndex.Match match = index.nearest(scope, vector, minSimilarity);
+            lookupMicros.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            (match != null ? hits : misses).increment();
+            return new Lookup(scope, chatProvider, request, vector, embeddingProvider, match, minSimilarity);
+        });
+    }
+
+    /**
+     * Remove every entry whose response matches; returns the number removed.
+     */
+    public int invalidateIf(Predicate<CachedResponse> predicate) {
+        return index.invalidateIf(predicate);
+    }
+
+    // Prompts are only comparable for the same chat model and sampling parameters, embedded by the same model
+    private static String scopeOf(String chatProvider, EmbeddingProvider embeddingProvider, ChatRequest request) {
+        LmParameters params = request.getParams();
+        return chatProvider + '\0' + request.getModelName() + '\0' + params.getMaxTokens() + '\0' + params.getTemperature()
+                + '\0' + params.getFrequencyPenalty() + '\0' + params.getPresencePenalty() + '\0'
+                + embeddingProvider.getProviderName() + '\0' + embeddingProvider.getEmbeddingModel();
+    }
+
+    private static float cosine(Embedding a, Embedding b) {
+        float norms = a.norm() * b.norm();
+        return norms == 0f ? 0f : a.dot(b) / norms;
+    }
+}
@@ -0,0 +1,102 @@
+package us.daconta.xlmeco;
+
+import io.grpc.ServerBuilder;
+import us.daconta.xlmeco.config.ConfigProperties;
+
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Builds the executor that gRPC service handlers (and therefore the blocking provider calls they make) run on.
+ * The mode is selected with the server.executor property:
+ * <ul>
+ *     <li>virtual - one virtual thread per call (JDK 21+); falls back to default on older runtimes</li>
+ *     <li>default - gRPC's own executor, an unbounded cached pool of platform threads</li>
+ *     <li>fixed - a bounded pool of platform threads sized by server.executor.threads</li>
+ *     <li>direct - run handlers on the transport threads (only for fully non-blocking handlers)</li>
+ * </ul>
+ * A fixed pool queues calls once its threads are busy in blocking provider calls, so it is only used when
+ * asked for.
+ */
+public class ServerExecutors {
+    public static final String PROPERTY_EXECUTOR = "server.executor";
+    public static final String PROPERTY_EXECUTOR_THREADS = "server.executor.threads";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_DEFAULT = "default";
+    public static final String MODE_FIXED = "fixed";
+    public static final String MODE_DIRECT = "direct";
+    private static final int DEFAULT_FIXED_THREADS = 64;
+
+    private static final Logger logger = Logger.getLogger(ServerExecutors.class.getName());
+
+    private ServerExecutors() { }
+
+    /**
+     * Set the handler executor described by the properties on the server builder.
+     *
+     * @return the executor created for the server, which the caller shuts down after the server, or null
+     * when the server uses gRPC's default executor or the direct mode
+     */
+    public static ExecutorService configure(ServerBuilder<?> serverBuilder, Properties properties) {
+        String mode = properties.getProperty(PROPERTY_EXECUTOR, MODE_VIRTUAL).trim().toLowerCase();
+        int threads = ConfigProperties.getInt(properties, PROPERTY_EXECUTOR_THREADS, DEFAULT_FIXED_THREADS, 1);
+
+        switch (mode) {
+            case MODE_DIRECT:
+                logger.info("Using direct executor for gRPC handlers");
+                serverBuilder.directExecutor();
+                return null;
+            case MODE_DEFAULT:
+                logger.info("Using gRPC's default executor for gRPC handlers");
+                return null;
+            case MODE_FIXED:
+                logger.info(() -> "Using fixed executor with " + threads + " threads for gRPC handlers");
+                ExecutorService fixedExecutor = newFixedExecutor(threads);
+                serverBuilder.executor(fixedExecutor);
+                return fixedExecutor;
+            case MODE_VIRTUAL:
+                ExecutorService virtualExecutor = newVirtualThreadExecutor();
+                if (virtualExecutor != null) {
+                    logger.info("Using virtual-thread executor for gRPC handlers");
+                    serverBuilder.executor(virtualExecutor);
+                    return virtualExecutor;
+                }
+                logger.warning(() -> "Virtual threads are not available on Java " + Runtime.version().feature()
+                        + "; falling back to gRPC's default executor");
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown " + PROPERTY_EXECUTOR + " mode: " + mode
+                        + " (expected virtual, default, fixed or direct)");
+        }
+    }
+
+    /**
+     * Create a virtual-thread-per-task executor when the running JDK supports it.
+     * Looked up reflectively so the project still compiles for Java 17.
+     *
+     * @return the executor, or null if virtual threads are not available
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newFixedExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "xlm-handler-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(threads, threadFactory);
+    }
+}
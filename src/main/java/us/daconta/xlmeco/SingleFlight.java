@@ -0,0 +1,58 @@
+package us.daconta.xlmeco;
+
+import io.grpc.Context;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Shares one in-flight call between identical concurrent requests. The first caller for a key starts the
+ * call; callers arriving before it completes attach to the same result. The key is released as soon as the
+ * call completes, so nothing is cached beyond the flight.
+ * <p>
+ * The call is started under the root gRPC Context: the first caller cancelling or hitting its deadline does
+ * not fail the request for the callers that joined it. Each caller gets its own copy of the future, so
+ * cancelling one copy leaves the shared call running.
+ * <p>
+ * Metrics: counters "single_flight.&lt;name&gt;.calls" and ".joined", gauge ".in_flight".
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls;
+    private final LongAdder joined;
+
+    public SingleFlight(String name) {
+        String prefix = "single_flight." + name + ".";
+        this.calls = MetricsRegistry.counter(prefix + "calls");
+        this.joined = MetricsRegistry.counter(prefix + "joined");
+        MetricsRegistry.gauge(prefix + "in_flight", inFlight::size);
+    }
+
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            joined.increment();
+            return existing.copy();
+        }
+        calls.increment();
+        try {
+            Context.ROOT.call(call::get).whenComplete((value, error) -> {
+                inFlight.remove(key, flight);
+                if (error != null) {
+                    flight.completeExceptionally(error);
+                } else {
+                    flight.complete(value);
+                }
+            });
+        } catch (Exception e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+        return flight.copy();
+    }
+}
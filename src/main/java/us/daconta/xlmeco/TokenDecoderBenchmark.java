@@ -0,0 +1,109 @@
+package us.daconta.xlmeco;
+
+import io.grpc.stub.StreamObserver;
+import okio.Buffer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import us.daconta.xlmeco.grpc.ChatResponsePart;
+import us.daconta.xlmeco.provider.TokenStreamDecoder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Micro-benchmark for streamed token decoding. Replays a synthetic OpenAI-style SSE stream through the old
+ * BufferedReader + JSONObject loop and through TokenStreamDecoder, and reports CPU time and heap allocation
+ * per token for each (allocation is measured with the HotSpot per-thread allocation counter).
+ */
+public class TokenDecoderBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        byte[] stream = syntheticStream(tokens);
+        TokenStreamDecoder decoder = TokenStreamDecoder.openAiChat();
+        CountingObserver observer = new CountingObserver();
+
+        System.out.println("Stream: " + tokens + " tokens, " + stream.length + " bytes, " + iterations + " iterations");
+        // Warm up both paths before measuring
+        for (int i = 0; i < iterations; i++) {
+            decodeWithJsonObject(stream, observer);
+            decoder.decode(new Buffer().write(stream), observer);
+        }
+
+        report("BufferedReader + JSONObject", tokens, iterations, () -> decodeWithJsonObject(stream, observer));
+        report("TokenStreamDecoder", tokens, iterations, () -> decoder.decode(new Buffer().write(stream), observer));
+        System.out.println("(checksum " + observer.count + ")");
+    }
+
+    @FunctionalInterface
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private static void report(String name, int tokens, int iterations, Run run) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < iterations; i++) {
+            run.run();
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+        double perToken = (double) tokens * iterations;
+        System.out.printf("%-28s %8.1f ns/token %8.1f bytes/token%n", name, cpu / perToken, bytes / perToken);
+    }
+
+    // The loop the providers used before TokenStreamDecoder
+    private static void decodeWithJsonObject(byte[] stream, StreamObserver<ChatResponsePart> observer) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new Buffer().write(stream).inputStream()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("data: ")) {
+                String jsonData = line.substring(6);
+                if ("[DONE]".equals(jsonData.trim())) {
+                    break;
+                }
+                JSONObject jsonResponse = new JSONObject(jsonData);
+                JSONArray choices = jsonResponse.getJSONArray("choices");
+                JSONObject delta = choices.getJSONObject(0).getJSONObject("delta");
+                if (delta.has("content")) {
+                    observer.onNext(ChatResponsePart.newBuilder().setToken(delta.getString("content")).build());
+                }
+            }
+        }
+    }
+
+    private static byte[] syntheticStream(int tokens) {
+        StringBuilder sse = new StringBuilder();
+        String[] words = {" the", " quick", " brown", " fox", " jumps", " over", " a", " lazy", " dog", ".\\n"};
+        for (int i = 0; i < tokens; i++) {
+            sse.append("data: {\"id\":\"chatcmpl-9xYz\",\"object\":\"chat.completion.chunk\",\"created\":1718000000,")
+                    .append("\"model\":\"gpt-4o-mini\",\"system_fingerprint\":\"fp_0123456789\",\"choices\":[{\"index\":0,")
+                    .append("\"delta\":{\"content\":\"").append(words[i % words.length])
+                    .append("\"},\"logprobs\":null,\"finish_reason\":null}]}\n\n");
+        }
+        sse.append("data: [DONE]\n\n");
+        return sse.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class CountingObserver implements StreamObserver<ChatResponsePart> {
+        private long count;
+
+        @Override
+        public void onNext(ChatResponsePart part) {
+            count += part.getToken().length();
+        }
+
+        @Override
+        public void onError(Throwable t) { }
+
+        @Override
+        public void onCompleted() { }
+    }
+}
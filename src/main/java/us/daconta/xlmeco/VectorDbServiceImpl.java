@@ -1,5 +1,6 @@
 package us.daconta.xlmeco;
 
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.json.JSONObject;
 import us.daconta.xlmeco.grpc.*;
@@ -16,19 +17,38 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class VectorDbServiceImpl extends VectorDbServiceGrpc.VectorDbServiceImplBase {
     private static final String FEATURE_VECTORDB_ENABLED="feature.vectordb.enabled";
+    // none (default), int8 or binary: quantize vectors before they are written to the provider
+    private static final String PROPERTY_VECTORDB_QUANTIZATION = "vectordb.quantization";
     private Map<String, VectorDbProvider> providers = new ConcurrentHashMap<String, VectorDbProvider>();
     // TEMP: determine how you let the client choose the provider
     private VectorDbProvider vectorDbProvider;
+    private QuantizedEmbedding.Quantization storageQuantization;
 
     public VectorDbServiceImpl(Properties properties) {
         // check if the VectorDB feature is enabled
         String strVectordbEnabled = (String) properties.get(FEATURE_VECTORDB_ENABLED);
         boolean vectordbEnabled = strVectordbEnabled.equalsIgnoreCase("true") ? true: false;
 
+        String quantization = properties.getProperty(PROPERTY_VECTORDB_QUANTIZATION, "none").trim();
+        if (!quantization.isEmpty() && !quantization.equalsIgnoreCase("none")) {
+            try {
+                storageQuantization = QuantizedEmbedding.Quantization.valueOf(quantization.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown " + PROPERTY_VECTORDB_QUANTIZATION + " value: " + quantization
+                        + " (expected none, int8 or binary)");
+            }
+        }
+
         if (vectordbEnabled) {
             System.out.println("Vector DBs enabled...");
             this.providers = VectorDbProviderFactory.loadProviders(properties);
             vectorDbProvider = this.providers.values().iterator().next();  // TEMP, get the first one
+            // Quantizing for a provider that stores float32 anyway would lose precision and save nothing
+            if (storageQuantization != null && !vectorDbProvider.storesQuantized(storageQuantization)) {
+                throw new IllegalArgumentException(PROPERTY_VECTORDB_QUANTIZATION + "=" + quantization
+                        + " is not supported by vector DB provider " + vectorDbProvider.getProviderName()
+                        + ", which stores float32 vectors; set it to none");
+            }
         } else {
             System.out.println("Vector DBs disabled.");
         }
@@ -50,12 +70,24 @@ public class VectorDbServiceImpl extends VectorDbServiceGrpc.VectorDbServiceImpl
 
     @Override
     public void upsertVector(UpsertVectorRequest request, StreamObserver<UpsertVectorResponse> responseObserver) {
-        boolean success = vectorDbProvider.upsertVector(
-                request.getId(),
-                request.getEmbeddingList(),
-                request.getContent(),
-                request.getMetadataMap()
-        );
+        Embedding embedding = null;
+        QuantizedEmbedding quantized;
+        try {
+            // Quantized payloads are stored as sent; others are quantized here when storage quantization is on
+            quantized = EmbeddingCodec.decodeQuantized(request.getEmbeddingPacked(), request.getEncoding());
+            if (quantized == null) {
+                embedding = EmbeddingCodec.decode(request.getEmbeddingList(), request.getEmbeddingPacked(), request.getEncoding());
+                if (storageQuantization != null) {
+                    quantized = QuantizedEmbedding.quantize(embedding, storageQuantization);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        }
+        boolean success = quantized != null
+                ? vectorDbProvider.upsertVector(request.getId(), quantized, request.getContent(), request.getMetadataMap())
+                : vectorDbProvider.upsertVector(request.getId(), embedding, request.getContent(), request.getMetadataMap());
         UpsertVectorResponse response = UpsertVectorResponse.newBuilder().setId(request.getId()).build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
@@ -67,8 +99,16 @@ public class VectorDbServiceImpl extends VectorDbServiceGrpc.VectorDbServiceImpl
         if (record != null) {
             GetVectorResponse.Builder builder = GetVectorResponse.newBuilder()
                     .setId(record.getId())
-                    .addAllEmbedding(record.getEmbedding())
                     .setContent(record.getContent());
+            Embedding embedding = record.getEmbeddingVector();
+            if (EmbeddingCodec.isPacked(request.getEncoding())) {
+                builder.setEmbeddingPacked(EmbeddingCodec.encode(embedding, request.getEncoding()))
+                        .setEncoding(request.getEncoding());
+            } else {
+                for (int i = 0; i < embedding.dimension(); i++) {
+                    builder.addEmbedding(embedding.get(i));
+                }
+            }
 
             // determine if metadata field
             if (record.getMetadata() != null) {
@@ -114,8 +154,15 @@ public class VectorDbServiceImpl extends VectorDbServiceGrpc.VectorDbServiceImpl
 
     @Override
     public void searchVectors(SearchVectorsRequest request, StreamObserver<SearchVectorsResponse> responseObserver) {
+        Embedding queryEmbedding;
+        try {
+            queryEmbedding = EmbeddingCodec.decode(request.getQueryEmbeddingList(), request.getQueryEmbeddingPacked(), request.getEncoding());
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        }
         java.util.List<VectorSearchResult> results = vectorDbProvider.searchVectors(
-                request.getQueryEmbeddingList(),
+                queryEmbedding,
                 request.getTopK()
         );
         SearchVectorsResponse.Builder builder = SearchVectorsResponse.newBuilder();
@@ -1,34 +1,102 @@
 package us.daconta.xlmeco;
 
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import us.daconta.xlmeco.cache.CachedResponse;
+import us.daconta.xlmeco.cache.ChatRequestKey;
+import us.daconta.xlmeco.cache.EmbeddingCache;
+import us.daconta.xlmeco.cache.EmbeddingCacheKey;
+import us.daconta.xlmeco.cache.MappedEmbeddingStore;
+import us.daconta.xlmeco.cache.ResponseCache;
 import us.daconta.xlmeco.grpc.*;
 import us.daconta.xlmeco.provider.ChatProvider;
+import us.daconta.xlmeco.provider.Embedding;
 import us.daconta.xlmeco.provider.EmbeddingProvider;
 import us.daconta.xlmeco.provider.GenerativeProvider;
 import us.daconta.xlmeco.provider.GenerativeProviderFactory;
 import us.daconta.xlmeco.provider.impl.GoogleProvider;
 import us.daconta.xlmeco.provider.impl.OpenAIProvider;
 import us.daconta.xlmeco.provider.impl.GrokProvider;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.ServiceLoader;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class XlmEcosystemServiceImpl extends XlmEcosystemServiceGrpc.XlmEcosystemServiceImplBase {
+    // Share identical in-flight syncChat calls and asyncChat streams for clients that do not set ClientSettings.coalesce_requests
+    public static final String PROPERTY_CHAT_COALESCE = "chat.coalesce_requests";
+
     // In-memory map for registered clients (can be replaced with a database)
     private final Map<String, String> registeredClients = new ConcurrentHashMap<>();  // client_id -> client_name
-    private final Map<String, Map<String, GenerativeProvider>> clientProviderMap = new ConcurrentHashMap<>();  // client_id -> (capability -> provider)
+    private final Map<String, Map<String, List<GenerativeProvider>>> clientProviderMap = new ConcurrentHashMap<>();  // client_id -> (capability -> providers in fallback order)
+    private final Map<String, ClientSettings> clientSettings = new ConcurrentHashMap<>();  // client_id -> settings
     private Map<String, GenerativeProvider> providers = new ConcurrentHashMap<String, GenerativeProvider>();
+    private final ClientRateLimiter clientRateLimiter;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final ProviderRouter providerRouter;
+    private final RequestHedger hedger;
+    private final ChatStreamSubscriber.Settings streamSettings;
+    private final boolean coalesceChatByDefault;
+    private final SingleFlight<ChatRequestKey, ServedCompletion> chatFlights = new SingleFlight<>("chat");
+    private final ChatStreamMulticaster chatStreams;
+    private final ResponseCache responseCache;  // null unless enabled
+    private final SemanticChatCache semanticCache;  // null unless enabled
+    private final MappedEmbeddingStore embeddingStore;  // null when no directory is configured
+    private final BatchEmbedder embedder;
+    private final EmbeddingBatcher embeddingBatcher;  // null unless micro-batching is enabled
     private static final Logger logger = Logger.getLogger(XlmEcosystemServiceImpl.class.getName());
 
     public XlmEcosystemServiceImpl(Properties properties) {
         this.providers = GenerativeProviderFactory.loadProviders(properties);
         logger.info(() -> "Loaded providers: " + providers.keySet());
+        this.clientRateLimiter = ClientRateLimiter.fromProperties(properties);
+        this.concurrencyLimiter = ConcurrencyLimiter.fromProperties(properties);
+        this.providerRouter = new ProviderRouter(CircuitBreaker.Settings.fromProperties(properties), concurrencyLimiter);
+        this.hedger = RequestHedger.fromProperties(properties);
+        this.streamSettings = ChatStreamSubscriber.Settings.fromProperties(properties);
+        this.coalesceChatByDefault = Boolean.parseBoolean(properties.getProperty(PROPERTY_CHAT_COALESCE, "false").trim());
+        this.chatStreams = ChatStreamMulticaster.fromProperties(properties);
+        this.responseCache = ResponseCache.fromProperties(properties);
+        this.embeddingStore = openEmbeddingStore(properties);
+        this.embedder = BatchEmbedder.fromProperties(properties, EmbeddingCache.fromProperties(properties), embeddingStore, concurrencyLimiter);
+        this.embeddingBatcher = EmbeddingBatcher.fromProperties(properties, embedder);
+        this.semanticCache = SemanticChatCache.fromProperties(properties, embedder);
+    }
+
+    private static MappedEmbeddingStore openEmbeddingStore(Properties properties) {
+        try {
+            return MappedEmbeddingStore.fromProperties(properties);
+        } catch (IOException e) {
+            // Embeddings still work without the store, they are just not kept across restarts
+            logger.log(Level.SEVERE, "Cannot open embedding store; continuing without it", e);
+            return null;
+        }
+    }
+
+    // Flush the embedding store; called once when the server shuts down
+    public void shutdown() {
+        if (embeddingStore != null) {
+            embeddingStore.close();
+        }
     }
 
     private Properties filterPropertiesForPrefix(Properties properties, String prefix) {
@@ -59,6 +127,7 @@ public class XlmEcosystemServiceImpl extends XlmEcosystemServiceGrpc.XlmEcosyste
 
         // Store the client ID and name
         registeredClients.put(clientId, clientName == null || clientName.isEmpty() ? "Unknown" : clientName);
+        clientSettings.put(clientId, request.getSettings());
         logger.info(() -> "Client registered. id=" + clientId + ", name=" + registeredClients.get(clientId));
 
         ClientRegistrationResponse response = ClientRegistrationResponse.newBuilder()
@@ -87,6 +156,7 @@ public class XlmEcosystemServiceImpl extends XlmEcosystemServiceGrpc.XlmEcosyste
         // Remove the client
         registeredClients.remove(clientId);
         clientProviderMap.remove(clientId); // Remove associated provider choices
+        clientSettings.remove(clientId);
         logger.info(() -> "Client unregistered. id=" + clientId);
 
         ClientUnregistrationResponse response = ClientUnregistrationResponse.newBuilder()
@@ -107,34 +177,86 @@ public class XlmEcosystemServiceImpl extends XlmEcosystemServiceGrpc.XlmEcosyste
             return;
         }
 
-        // Check if the client has a provider for the "chat" capability
-        Map<String, GenerativeProvider> clientProviders = clientProviderMap.get(clientId);
-        if (clientProviders == null || !clientProviders.containsKey("chat")) {
+        // Check if the client has providers for the "chat" capability
+        List<GenerativeProvider> chain = getProviderChain(clientId, "chat");
+        if (chain == null) {
             responseObserver.onError(new IllegalArgumentException("No provider selected for 'chat' capability for client: " + clientId));
             return;
         }
 
-        // Retrieve the provider for the "chat" capability
-        GenerativeProvider provider = clientProviders.get("chat");
+        // The first provider of the chain is the primary one; the rest take over while it is failing
+        GenerativeProvider provider = chain.get(0);
 
         if (!provider.supportsChat()) {
             responseObserver.onError(new UnsupportedOperationException("Chat is not supported by this provider."));
             return;
         }
 
-        ChatProvider chatProvider = (ChatProvider) provider;
-        String completion;
-        try {
-            completion = chatProvider.generateChatResponse(request);
-        } catch (Exception e) {
-            completion = "Error: " + e.getMessage();
-            logger.log(Level.SEVERE, "Error generating chat response", e);
+        // Charge the client's quota before anything can reach a provider
+        StatusRuntimeException overQuota = clientRateLimiter.admit(clientId, clientRateLimiter.chatTokens(request));
+        if (overQuota != null) {
+            logger.warning(() -> "Rejecting chat request from client " + clientId + ": " + overQuota.getStatus().getDescription());
+            responseObserver.onError(overQuota);
+            return;
         }
 
-        ChatResponse response = ChatResponse.newBuilder().setCompletion(completion).build();
-        logger.info(() -> "Returning sync chat response for client " + clientId);
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+        List<GenerativeProvider> chatChain = chain.stream().filter(GenerativeProvider::supportsChat).collect(Collectors.toList());
+        boolean cacheable = isCacheable(clientId, request);
+        boolean coalesce = shouldCoalesce(clientId);
+        ChatRequestKey key = cacheable || coalesce ? ChatRequestKey.of(provider.getProviderName(), request) : null;
+        CachedResponse cached = cacheable && responseCache != null ? responseCache.get(key) : null;
+        if (cached != null) {
+            logger.info(() -> "Returning cached sync chat response for client " + clientId);
+            responseObserver.onNext(ChatResponse.newBuilder().setCompletion(cached.getCompletion()).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        // Complete the observer from callbacks instead of holding this thread for the lookup or the call.
+        // The provider call keeps this call's Context so cancellation still reaches it.
+        Context context = Context.current();
+        semanticLookup(clientId, provider, request, cacheable).thenAccept(lookup -> context.run(() -> {
+            CachedResponse similar = lookup != null ? lookup.getHit() : null;
+            if (similar != null) {
+                lookup.maybeVerify(() -> generateChat(chatChain, request).thenApply(ServedCompletion::getCompletion));
+                logger.info(() -> "Returning semantically cached sync chat response for client " + clientId);
+                responseObserver.onNext(ChatResponse.newBuilder().setCompletion(similar.getCompletion()).build());
+                responseObserver.onCompleted();
+                return;
+            }
+
+            // Clients that coalesce attach to an identical request already in flight.
+            CompletableFuture<ServedCompletion> call = coalesce
+                    ? chatFlights.execute(key, () -> hedgedChat(clientId, chatChain, request))
+                    : hedgedChat(clientId, chatChain, request);
+            call.whenComplete((served, error) -> {
+                String completion = served != null ? served.getCompletion() : null;
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause instanceof StatusRuntimeException) {
+                    // Every provider of the chain is down or at its concurrency limit: fail fast with the status
+                    // (and its retry pushback) rather than answer with an error completion
+                    logger.warning(() -> "No chat provider available for client " + clientId + ": " + cause.getMessage());
+                    responseObserver.onError(cause);
+                    return;
+                }
+                if (error != null) {
+                    completion = "Error: " + error.getMessage();
+                    logger.log(Level.SEVERE, "Error generating chat response", error);
+                } else if (cacheable && served.getProvider() == provider) {
+                    // Lookups are keyed by the primary provider, so an answer from a fallback is not cached under it
+                    rememberCompletion(key, lookup, clientId, request, completion);
+                }
+
+                ChatResponse response = ChatResponse.newBuilder().setCompletion(completion).build();
+                logger.info(() -> "Returning sync chat response for client " + clientId);
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            });
+        })).exceptionally(error -> {
+            logger.log(Level.SEVERE, "Error starting chat response", error);
+            responseObserver.onError(Status.INTERNAL.withDescription(error.getMessage()).asRuntimeException());
+            return null;
+        });
     }
 
     @Override
@@ -146,28 +268,71 @@ public class XlmEcosystemServiceImpl extends XlmEcosystemServiceGrpc.XlmEcosyste
             return;
         }
 
-        // Check if the client has a provider for the "chat" capability
-        Map<String, GenerativeProvider> clientProviders = clientProviderMap.get(clientId);
-        if (clientProviders == null || !clientProviders.containsKey("chat")) {
+        // Check if the client has providers for the "chat" capability
+        List<GenerativeProvider> chain = getProviderChain(clientId, "chat");
+        if (chain == null) {
             responseObserver.onError(new IllegalArgumentException("No provider selected for 'chat' capability for client: " + clientId));
             return;
         }
 
-        // Retrieve the provider for the "chat" capability
-        GenerativeProvider provider = clientProviders.get("chat");
+        // The first provider of the chain is the primary one; the rest take over while it is failing
+        GenerativeProvider provider = chain.get(0);
 
         if (!provider.supportsChat()) {
             responseObserver.onError(new UnsupportedOperationException("Chat is not supported by this provider."));
             return;
         }
 
-        ChatProvider chatProvider = (ChatProvider) provider;
-        try {
-            chatProvider.streamChatResponse(request, responseObserver);
-        } catch (Exception e) {
-            responseObserver.onError(new RuntimeException("Error: " + e.getMessage()));
-            logger.log(Level.SEVERE, "Error streaming chat response", e);
+        // Charge the client's quota before anything can reach a provider
+        StatusRuntimeException overQuota = clientRateLimiter.admit(clientId, clientRateLimiter.chatTokens(request));
+        if (overQuota != null) {
+            logger.warning(() -> "Rejecting chat request from client " + clientId + ": " + overQuota.getStatus().getDescription());
+            responseObserver.onError(overQuota);
+            return;
+        }
+
+        List<GenerativeProvider> chatChain = chain.stream().filter(GenerativeProvider::supportsChat).collect(Collectors.toList());
+        boolean cacheable = isCacheable(clientId, request);
+        boolean coalesce = shouldCoalesce(clientId);
+        ChatRequestKey key = cacheable || coalesce ? ChatRequestKey.of(provider.getProviderName(), request) : null;
+        // Cached answers, exact or for a similar prompt, are replayed as a token stream
+        ChatStreamSubscriber subscriber = new ChatStreamSubscriber(responseObserver, streamSettings, request.getStreamOptions());
+        CachedResponse cached = cacheable && responseCache != null ? responseCache.get(key) : null;
+        if (cached != null) {
+            new CompletionReplayPublisher(cached.getCompletion()).subscribe(subscriber);
+            return;
         }
+
+        Context context = Context.current();
+        semanticLookup(clientId, provider, request, cacheable).thenAccept(lookup -> context.run(() -> {
+            try {
+                CachedResponse similar = lookup != null ? lookup.getHit() : null;
+                if (similar != null) {
+                    lookup.maybeVerify(() -> generateChat(chatChain, request).thenApply(ServedCompletion::getCompletion));
+                    new CompletionReplayPublisher(similar.getCompletion()).subscribe(subscriber);
+                    return;
+                }
+                // Only a stream this call opened on the primary provider is cached; joiners of a coalesced
+                // stream leave that to the call that opened it
+                AtomicReference<GenerativeProvider> servedBy = new AtomicReference<>();
+                Flow.Subscriber<ChatResponsePart> target = subscriber;
+                if (cacheable) {
+                    target = new RecordingChatSubscriber(subscriber, completion -> {
+                        if (servedBy.get() == provider) {
+                            rememberCompletion(key, lookup, clientId, request, completion);
+                        }
+                    });
+                }
+                // Clients that coalesce join an identical stream already in flight, replaying what it has sent so far
+                Flow.Publisher<ChatResponsePart> parts = coalesce
+                        ? chatStreams.subscribe(key, () -> streamChat(chatChain, request, servedBy))
+                        : streamChat(chatChain, request, servedBy);
+                parts.subscribe(target);
+            } catch (Exception e) {
+                responseObserver.onError(new RuntimeException("Error: " + e.getMessage()));
+                logger.log(Level.SEVERE, "Error streaming chat response", e);
+            }
+        }));
     }
 
     @Override
@@ -241,20 +406,30 @@ public class XlmEcosystemServiceImpl extends XlmEcosystemServiceGrpc.XlmEcosyste
         }
 
         // Get the existing provider map for the client or create a new one if not present
-        Map<String, GenerativeProvider> clientProviders = clientProviderMap.computeIfAbsent(clientId, k -> new ConcurrentHashMap<>());
+        Map<String, List<GenerativeProvider>> clientProviders = clientProviderMap.computeIfAbsent(clientId, k -> new ConcurrentHashMap<>());
 
-        // Iterate over the provider-capabilities map in the request
-        for (Map.Entry<String, ProviderCapabilitiesRequest> entry : request.getProviderCapabilitiesMap().entrySet()) {
+        // Order the providers by priority, then by name, so the map order of the request does not matter
+        List<Map.Entry<String, ProviderCapabilitiesRequest>> entries = new ArrayList<>(request.getProviderCapabilitiesMap().entrySet());
+        entries.sort(Comparator.<Map.Entry<String, ProviderCapabilitiesRequest>>comparingInt(e -> e.getValue().getPriority())
+                .thenComparing(Map.Entry::getKey));
+
+        // Build the fallback chain of every capability named in the request
+        Map<String, List<GenerativeProvider>> chains = new HashMap<>();
+        for (Map.Entry<String, ProviderCapabilitiesRequest> entry : entries) {
             String providerName = entry.getKey();
             GenerativeProvider provider = GenerativeProviderFactory.getProvider(providerName);
-            logger.info(() -> "Assigning provider " + providerName + " to capabilities " + entry.getValue().getCapabilitiesList());
+            logger.info(() -> "Assigning provider " + providerName + " to capabilities " + entry.getValue().getCapabilitiesList()
+                    + " with priority " + entry.getValue().getPriority());
 
             // Iterate over the list of capabilities the client wants this provider to handle
             for (String capability : entry.getValue().getCapabilitiesList()) {
-                // Save the provider for the specific capability in the client's map
-                clientProviders.put(capability, provider);
+                chains.computeIfAbsent(capability, k -> new ArrayList<>()).add(provider);
             }
         }
+        // A capability named in the request gets its new chain; the others keep theirs
+        for (Map.Entry<String, List<GenerativeProvider>> chain : chains.entrySet()) {
+            clientProviders.put(chain.getKey(), List.copyOf(chain.getValue()));
+        }
 
         // Save the updated provider map for the client back into clientProviderMap
         clientProviderMap.put(clientId, clientProviders);
@@ -275,6 +450,214 @@ public class XlmEcosystemServiceImpl extends XlmEcosystemServiceGrpc.XlmEcosyste
         String clientId = request.getClientId();
         logger.info(() -> "Received embedding request from client " + clientId + " with text length " + request.getText().length());
 
+        EmbeddingProvider provider = getEmbeddingProvider(clientId);
+
+        StatusRuntimeException overQuota = clientRateLimiter.admit(clientId, EmbeddingProvider.estimateTokens(request.getText()));
+        if (overQuota != null) {
+            logger.warning(() -> "Rejecting embedding request from client " + clientId + ": " + overQuota.getStatus().getDescription());
+            responseObserver.onError(overQuota);
+            return;
+        }
+
+        EmbeddingCacheKey cacheKey = null;
+        if (embedder.isCaching()) {
+            cacheKey = embedder.key(provider, request.getModelParameters(), request.getText());
+            Embedding cached = embedder.lookup(cacheKey);
+            if (cached != null) {
+                responseObserver.onNext(toEmbeddingResponse(cached, request.getEncoding()));
+                responseObserver.onCompleted();
+                logger.fine(() -> "Returned cached embedding of size " + cached.dimension() + " for client " + clientId);
+                return;
+            }
+        }
+
+        // Process the embedding request, completing the observer from the provider callback. With
+        // micro-batching on, the request joins concurrent ones in a single provider call instead.
+        EmbeddingCacheKey key = cacheKey;
+        CompletableFuture<Embedding> call;
+        if (embeddingBatcher != null) {
+            call = embeddingBatcher.submit(provider, request.getModelParameters(), request.getText(), key);
+        } else {
+            // Embedding hedges go to the same provider: another model's vector would not be comparable
+            Supplier<CompletableFuture<Embedding>> embed = () -> concurrencyLimiter.call(provider.getProviderName(), provider.getEmbeddingModel(),
+                    () -> provider.generateEmbeddingAsync(request.getText(), request.getModelParameters()));
+            call = hedger.call(provider.getProviderName() + ".embedding", embed, shouldHedge(clientId) ? embed : null);
+        }
+        call.whenComplete((embedding, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                logger.log(Level.SEVERE, "Error generating embedding", cause);
+                responseObserver.onError(cause instanceof StatusRuntimeException ? cause : new RuntimeException("Error: " + cause.getMessage()));
+                return;
+            }
+            if (embeddingBatcher == null) {
+                embedder.remember(key, embedding);
+            }
+            responseObserver.onNext(toEmbeddingResponse(embedding, request.getEncoding()));
+            responseObserver.onCompleted();
+            logger.info(() -> "Returned embedding of size " + embedding.dimension() + " for client " + clientId);
+        });
+    }
+
+    @Override
+    public void getEmbeddings(BatchEmbeddingRequest request, StreamObserver<BatchEmbeddingResponse> responseObserver) {
+        String clientId = request.getClientId();
+        logger.info(() -> "Received batch embedding request from client " + clientId + " with " + request.getTextsCount() + " texts");
+
+        EmbeddingProvider provider;
+        try {
+            provider = getEmbeddingProvider(clientId);
+        } catch (RuntimeException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        }
+        // A batch is one request, charged with the tokens of all its texts
+        long tokens = request.getTextsList().stream().mapToLong(EmbeddingProvider::estimateTokens).sum();
+        StatusRuntimeException overQuota = clientRateLimiter.admit(clientId, tokens);
+        if (overQuota != null) {
+            logger.warning(() -> "Rejecting batch embedding request from client " + clientId + ": " + overQuota.getStatus().getDescription());
+            responseObserver.onError(overQuota);
+            return;
+        }
+        List<CompletableFuture<Embedding>> results = embedder.embed(provider, request.getTextsList(), request.getModelParameters());
+        sendBatch(results, request.getEncoding(), clientId, responseObserver);
+    }
+
+    @Override
+    public StreamObserver<EmbeddingRequest> streamEmbeddings(StreamObserver<BatchEmbeddingResponse> responseObserver) {
+        // Read texts only as fast as batches complete: a full batch is sent at once, and reading stops while
+        // max_batches_in_flight of them are waiting on the provider
+        ServerCallStreamObserver<BatchEmbeddingResponse> call = (ServerCallStreamObserver<BatchEmbeddingResponse>) responseObserver;
+        call.disableAutoRequest();
+        call.request(1);
+        return new StreamObserver<EmbeddingRequest>() {
+            private final List<CompletableFuture<Embedding>> results = new ArrayList<>();
+            private final List<String> pending = new ArrayList<>();
+            private EmbeddingRequest first;
+            private EmbeddingProvider provider;
+            private boolean failed;
+            private int batchesInFlight;
+            private boolean paused;
+
+            @Override
+            public void onNext(EmbeddingRequest request) {
+                if (failed) {
+                    return;
+                }
+                if (first == null) {
+                    try {
+                        provider = getEmbeddingProvider(request.getClientId());
+                    } catch (RuntimeException e) {
+                        failed = true;
+                        responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                        return;
+                    }
+                    first = request;
+                } else if (!request.getClientId().isEmpty() && !request.getClientId().equals(first.getClientId())) {
+                    // The whole stream is charged to the first client; another client cannot ride on its quota
+                    failed = true;
+                    responseObserver.onError(Status.INVALID_ARGUMENT
+                            .withDescription("client_id changed within the embedding stream: expected " + first.getClientId())
+                            .asRuntimeException());
+                    return;
+                }
+                // Send a full provider batch as soon as it has arrived
+                pending.add(request.getText());
+                if (pending.size() >= Math.max(1, provider.getMaxBatchSize()) && !flush()) {
+                    return;
+                }
+                synchronized (this) {
+                    if (batchesInFlight >= embedder.getMaxBatchesInFlight()) {
+                        paused = true;
+                        return;
+                    }
+                }
+                call.request(1);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                failed = true;
+                logger.log(Level.FINE, "Embedding stream cancelled by client", t);
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed) {
+                    return;
+                }
+                if (first == null) {
+                    responseObserver.onNext(BatchEmbeddingResponse.getDefaultInstance());
+                    responseObserver.onCompleted();
+                    return;
+                }
+                if (flush()) {
+                    sendBatch(results, first.getEncoding(), first.getClientId(), responseObserver);
+                }
+            }
+
+            // Each batch is charged to the client's quota as one request; false if that failed the stream
+            private boolean flush() {
+                if (pending.isEmpty()) {
+                    return true;
+                }
+                long tokens = pending.stream().mapToLong(EmbeddingProvider::estimateTokens).sum();
+                StatusRuntimeException overQuota = clientRateLimiter.admit(first.getClientId(), tokens);
+                if (overQuota != null) {
+                    logger.warning(() -> "Failing embedding stream of client " + first.getClientId() + ": " + overQuota.getStatus().getDescription());
+                    failed = true;
+                    pending.clear();
+                    responseObserver.onError(overQuota);
+                    return false;
+                }
+                List<CompletableFuture<Embedding>> batch = embedder.embed(provider, new ArrayList<>(pending), first.getModelParameters());
+                results.addAll(batch);
+                pending.clear();
+                synchronized (this) {
+                    batchesInFlight++;
+                }
+                CompletableFuture.allOf(batch.toArray(new CompletableFuture<?>[0])).whenComplete((done, error) -> batchFinished());
+                return true;
+            }
+
+            private void batchFinished() {
+                synchronized (this) {
+                    batchesInFlight--;
+                    if (!paused) {
+                        return;
+                    }
+                    paused = false;
+                }
+                call.request(1);
+            }
+        };
+    }
+
+    // Answer once every item has completed, reporting failures per item
+    private void sendBatch(List<CompletableFuture<Embedding>> results, EmbeddingEncoding encoding, String clientId,
+                           StreamObserver<BatchEmbeddingResponse> responseObserver) {
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).whenComplete((done, ignored) -> {
+            BatchEmbeddingResponse.Builder response = BatchEmbeddingResponse.newBuilder();
+            int failures = 0;
+            for (int i = 0; i < results.size(); i++) {
+                EmbeddingResult.Builder result = EmbeddingResult.newBuilder().setIndex(i);
+                try {
+                    result.setEmbedding(toEmbeddingResponse(results.get(i).join(), encoding));
+                } catch (CompletionException | CancellationException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    result.setError(String.valueOf(cause.getMessage()));
+                    failures++;
+                }
+                response.addResults(result);
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+            int failed = failures;
+            logger.info(() -> "Returned " + results.size() + " embeddings (" + failed + " failed) for client " + clientId);
+        });
+    }
+
+    private EmbeddingProvider getEmbeddingProvider(String clientId) {
         // Check if client is registered
         if (!isClientRegistered(clientId)) {
             throw new IllegalArgumentException("Client not registered: " + clientId);
@@ -290,28 +673,174 @@ public class XlmEcosystemServiceImpl extends XlmEcosystemServiceGrpc.XlmEcosyste
         if (!provider.supportsEmbeddings()) {
             throw new UnsupportedOperationException("Selected provider does not support 'embedding' capability.");
         }
+        return provider;
+    }
 
-        // Process the embedding request
-        List<Float> embedding = provider.generateEmbedding(request.getText(), request.getModelParameters());
-        EmbeddingResponse response = EmbeddingResponse.newBuilder().addAllEmbedding(embedding).build();
+    private static EmbeddingResponse toEmbeddingResponse(Embedding embedding, EmbeddingEncoding encoding) {
+        EmbeddingResponse.Builder response = EmbeddingResponse.newBuilder().setDimension(embedding.dimension());
+        if (EmbeddingCodec.isPacked(encoding)) {
+            response.setEmbeddingPacked(EmbeddingCodec.encode(embedding, encoding)).setEncoding(encoding);
+        } else {
+            for (int i = 0; i < embedding.dimension(); i++) {
+                response.addEmbedding(embedding.get(i));
+            }
+        }
+        return response.build();
+    }
+
+    @Override
+    public void getMetrics(EmptyRequest request, StreamObserver<MetricsResponse> responseObserver) {
+        MetricsResponse response = MetricsResponse.newBuilder()
+                .putAllMetrics(MetricsRegistry.snapshot())
+                .build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
-        logger.info(() -> "Returned embedding of size " + embedding.size() + " for client " + clientId);
-        return;
+    }
+
+    @Override
+    public void invalidateResponseCache(InvalidateResponseCacheRequest request, StreamObserver<InvalidateResponseCacheResponse> responseObserver) {
+        String clientId = request.getClientId();
+        String provider = request.getProvider();
+        String promptPrefix = request.getPromptPrefix();
+        // A client only drops responses cached from its own requests, and never its whole cache by accident
+        if (!isClientRegistered(clientId)) {
+            responseObserver.onError(new UnsupportedOperationException("Client Id" + clientId + " is not registered."));
+            return;
+        }
+        if (provider.isEmpty() && promptPrefix.isEmpty()) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Set provider or prompt_prefix to choose the responses to invalidate").asRuntimeException());
+            return;
+        }
+        int invalidated = responseCache != null ? responseCache.invalidate(clientId, provider, promptPrefix) : 0;
+        if (semanticCache != null) {
+            invalidated += semanticCache.invalidateIf(response -> clientId.equals(response.getClientId())
+                    && (provider.isEmpty() || provider.equals(response.getProvider()))
+                    && response.getPrompt().startsWith(promptPrefix));
+        }
+        responseObserver.onNext(InvalidateResponseCacheResponse.newBuilder().setInvalidated(invalidated).build());
+        responseObserver.onCompleted();
+    }
+
+    // Only cache what should come out the same again: an explicit temperature of 0 (absent params leave
+    // sampling to the provider), unless the client opted in or out at registration
+    private boolean isCacheable(String clientId, ChatRequest request) {
+        if (responseCache == null && semanticCache == null) {
+            return false;
+        }
+        ClientSettings settings = clientSettings.get(clientId);
+        if (settings != null && settings.hasCacheResponses()) {
+            return settings.getCacheResponses();
+        }
+        return request.hasParams() && request.getParams().getTemperature() == 0f;
+    }
+
+    // Completes with null when the semantic stage does not apply to this request
+    private CompletableFuture<SemanticChatCache.Lookup> semanticLookup(String clientId, GenerativeProvider chatProvider,
+                                                                       ChatRequest request, boolean cacheable) {
+        GenerativeProvider embeddingProvider = getProviderForCapability(clientId, "embedding");
+        if (semanticCache == null || !cacheable || embeddingProvider == null || !embeddingProvider.supportsEmbeddings()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ClientSettings settings = clientSettings.get(clientId);
+        float threshold = settings != null ? settings.getSemanticCacheThreshold() : 0f;
+        if (threshold > 1f) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return semanticCache.lookup(chatProvider.getProviderName(), (EmbeddingProvider) embeddingProvider, request, threshold);
+    }
+
+    private void rememberCompletion(ChatRequestKey key, SemanticChatCache.Lookup lookup, String clientId,
+                                    ChatRequest request, String completion) {
+        long ttlSeconds = responseTtlSeconds(clientId);
+        if (responseCache != null) {
+            responseCache.put(key, clientId, request, completion, ttlSeconds);
+        }
+        if (lookup != null) {
+            lookup.remember(clientId, completion, ttlSeconds);
+        }
+    }
+
+    private long responseTtlSeconds(String clientId) {
+        ClientSettings settings = clientSettings.get(clientId);
+        return settings != null ? settings.getResponseCacheTtlSeconds() : 0;
+    }
+
+    private boolean shouldHedge(String clientId) {
+        ClientSettings settings = clientSettings.get(clientId);
+        return settings != null && settings.hasHedgeRequests() ? settings.getHedgeRequests() : hedger.isEnabledByDefault();
+    }
+
+    private boolean shouldCoalesce(String clientId) {
+        ClientSettings settings = clientSettings.get(clientId);
+        return settings != null && settings.hasCoalesceRequests() ? settings.getCoalesceRequests() : coalesceChatByDefault;
     }
 
     private boolean isClientRegistered(String clientId) {
         return registeredClients.containsKey(clientId);
     }
 
+    // Embeddings stay on the primary provider: vectors from another model would not be comparable
     private GenerativeProvider getProviderForCapability(String clientId, String capability) {
-        Map<String, GenerativeProvider> clientProviders = clientProviderMap.get(clientId);
+        List<GenerativeProvider> chain = getProviderChain(clientId, capability);
+        return chain != null ? chain.get(0) : null;
+    }
+
+    // The client's providers for the capability in fallback order, or null if it selected none
+    private List<GenerativeProvider> getProviderChain(String clientId, String capability) {
+        Map<String, List<GenerativeProvider>> clientProviders = clientProviderMap.get(clientId);
 
         if (clientProviders == null || !clientProviders.containsKey(capability)) {
             return null; // No provider selected for this capability
         }
 
-        return clientProviders.get(capability);
+        List<GenerativeProvider> chain = clientProviders.get(capability);
+        return chain.isEmpty() ? null : chain;
+    }
+
+    // Chat calls go to the first provider of the chain whose circuit breaker admits them, failing over on errors
+    private CompletableFuture<ServedCompletion> generateChat(List<GenerativeProvider> chatChain, ChatRequest request) {
+        return providerRouter.call(chatChain, request.getModelName(), provider -> ((ChatProvider) provider).generateChatResponseAsync(request)
+                .thenApply(completion -> new ServedCompletion(provider, completion)));
+    }
+
+    // A chat call that may be hedged; the hedge starts with the next provider of the chain so a stalled
+    // primary is not asked twice, and stays on the primary when it is the only one
+    private CompletableFuture<ServedCompletion> hedgedChat(String clientId, List<GenerativeProvider> chatChain, ChatRequest request) {
+        Supplier<CompletableFuture<ServedCompletion>> hedge = null;
+        if (shouldHedge(clientId)) {
+            List<GenerativeProvider> hedgeChain = new ArrayList<>(chatChain.subList(1, chatChain.size()));
+            hedgeChain.add(chatChain.get(0));
+            hedge = () -> generateChat(hedgeChain, request);
+        }
+        return hedger.call(chatChain.get(0).getProviderName() + ".chat", () -> generateChat(chatChain, request), hedge);
+    }
+
+    // servedBy ends up holding the provider whose stream the subscriber received, failover only moving down the chain
+    private Flow.Publisher<ChatResponsePart> streamChat(List<GenerativeProvider> chatChain, ChatRequest request,
+                                                       AtomicReference<GenerativeProvider> servedBy) {
+        return providerRouter.stream(chatChain, request.getModelName(), provider -> {
+            servedBy.set(provider);
+            return ((ChatProvider) provider).streamChatResponseAsync(request);
+        });
+    }
+
+    // A chat completion and the provider of the chain that produced it
+    private static final class ServedCompletion {
+        private final GenerativeProvider provider;
+        private final String completion;
+
+        ServedCompletion(GenerativeProvider provider, String completion) {
+            this.provider = provider;
+            this.completion = completion;
+        }
+
+        GenerativeProvider getProvider() {
+            return provider;
+        }
+
+        String getCompletion() {
+            return completion;
+        }
     }
 }
 
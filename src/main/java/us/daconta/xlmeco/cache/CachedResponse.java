@@ -0,0 +1,64 @@
+package us.daconta.xlmeco.cache;
+
+/**
+ * A chat completion held by the {@link ResponseCache}, with the request fields that invalidation filters on
+ * and its own expiry time.
+ */
+public final class CachedResponse {
+    private final String provider;
+    private final String model;
+    private final String clientId;
+    private final String prompt;
+    private final String completion;
+    private final long writtenMillis;
+    private final long expiresAtMillis;
+
+    public CachedResponse(String provider, String model, String clientId, String prompt, String completion,
+                          long writtenMillis, long expiresAtMillis) {
+        this.provider = provider;
+        this.model = model;
+        this.clientId = clientId;
+        this.prompt = prompt;
+        this.completion = completion;
+        this.writtenMillis = writtenMillis;
+        this.expiresAtMillis = expiresAtMillis;
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    // The client whose request produced the completion
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getPrompt() {
+        return prompt;
+    }
+
+    public String getCompletion() {
+        return completion;
+    }
+
+    public long getWrittenMillis() {
+        return writtenMillis;
+    }
+
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    public boolean isExpired(long nowMillis) {
+        return nowMillis >= expiresAtMillis;
+    }
+
+    // Approximate heap footprint: UTF-16 strings plus object headers
+    int weight() {
+        return 2 * (provider.length() + model.length() + clientId.length() + prompt.length() + completion.length()) + 256;
+    }
+}
@@ -0,0 +1,86 @@
+package us.daconta.xlmeco.cache;
+
+import us.daconta.xlmeco.grpc.ChatRequest;
+import us.daconta.xlmeco.grpc.LmParameters;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Canonical identity of a chat completion: a 128-bit SHA-256 digest of provider, model, prompt and
+ * {@link LmParameters}. Requests that differ only in client id or stream options map to the same key.
+ */
+public final class ChatRequestKey {
+    private final String provider;
+    private final long digestHigh;
+    private final long digestLow;
+
+    ChatRequestKey(String provider, long digestHigh, long digestLow) {
+        this.provider = provider;
+        this.digestHigh = digestHigh;
+        this.digestLow = digestLow;
+    }
+
+    public static ChatRequestKey of(String provider, ChatRequest request) {
+        MessageDigest sha256 = sha256();
+        update(sha256, provider);
+        update(sha256, request.getModelName());
+        update(sha256, request.getPrompt());
+        LmParameters params = request.getParams();
+        ByteBuffer scalars = ByteBuffer.allocate(4 * Integer.BYTES)
+                .putInt(params.getMaxTokens())
+                .putInt(Float.floatToIntBits(params.getTemperature()))
+                .putInt(Float.floatToIntBits(params.getFrequencyPenalty()))
+                .putInt(Float.floatToIntBits(params.getPresencePenalty()));
+        sha256.update(scalars.array());
+        ByteBuffer digest = ByteBuffer.wrap(sha256.digest());
+        return new ChatRequestKey(provider, digest.getLong(), digest.getLong());
+    }
+
+    // Length-prefixed so that field boundaries cannot shift between requests
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public long getDigestHigh() {
+        return digestHigh;
+    }
+
+    public long getDigestLow() {
+        return digestLow;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ChatRequestKey)) return false;
+        ChatRequestKey other = (ChatRequestKey) o;
+        return digestHigh == other.digestHigh && digestLow == other.digestLow && provider.equals(other.provider);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (digestLow ^ (digestLow >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "ChatRequestKey[" + provider + ", " + Long.toHexString(digestHigh) + Long.toHexString(digestLow) + "]";
+    }
+}
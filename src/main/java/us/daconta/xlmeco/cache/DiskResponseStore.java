@@ -0,0 +1,251 @@
+package us.daconta.xlmeco.cache;
+
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local disk tier of the response cache, so completions survive a restart. Each entry is one file named after
+ * its key digest ("&lt;digest&gt;.resp"), written to a temporary file and moved into place so readers never see
+ * a partial entry:
+ * <pre>
+ *   int magic, long writtenMillis, long expiresAtMillis, long digestHigh, long digestLow,
+ *   then provider, model, clientId, prompt, completion as int length + UTF-8 bytes
+ * </pre>
+ * The directory is bounded by total file bytes; the oldest entries are deleted first. Unreadable or expired
+ * files are deleted when they are found.
+ */
+public class DiskResponseStore implements ResponseStore {
+    private static final Logger logger = Logger.getLogger(DiskResponseStore.class.getName());
+
+    private static final int MAGIC = 0x2E5C0001;
+    private static final String SUFFIX = ".resp";
+    // Trim to this fraction of the limit so a full store does not delete on every write
+    private static final double TRIM_RATIO = 0.9;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Map<Path, Long> files = new LinkedHashMap<>();  // oldest first -> file bytes
+    private long totalBytes;
+
+    public DiskResponseStore(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        load();
+        MetricsRegistry.gauge("response_cache.disk.bytes", this::sizeInBytes);
+        MetricsRegistry.gauge("response_cache.disk.entries", this::size);
+    }
+
+    @Override
+    public CachedResponse get(ChatRequestKey key) {
+        Path file = fileOf(key.getDigestHigh(), key.getDigestLow());
+        synchronized (this) {
+            if (!files.containsKey(file)) {
+                return null;
+            }
+        }
+        Stored stored = read(file);
+        if (stored == null || stored.response.isExpired(System.currentTimeMillis()) || !stored.key.equals(key)) {
+            delete(file);
+            return null;
+        }
+        return stored.response;
+    }
+
+    @Override
+    public void put(ChatRequestKey key, CachedResponse response) {
+        Path file = fileOf(key.getDigestHigh(), key.getDigestLow());
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(response.getWrittenMillis());
+                out.writeLong(response.getExpiresAtMillis());
+                out.writeLong(key.getDigestHigh());
+                out.writeLong(key.getDigestLow());
+                writeString(out, response.getProvider());
+                writeString(out, response.getModel());
+                writeString(out, response.getClientId());
+                writeString(out, response.getPrompt());
+                writeString(out, response.getCompletion());
+            }
+            long bytes = Files.size(tmp);
+            synchronized (this) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Long previous = files.remove(file);
+                totalBytes += bytes - (previous != null ? previous : 0);
+                files.put(file, bytes);
+                trim();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot write cached response " + file, e);
+            try {
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException ignored) {
+                // Left for the next startup to clean up
+            }
+        }
+    }
+
+    @Override
+    public List<ChatRequestKey> invalidateIf(BiPredicate<ChatRequestKey, CachedResponse> predicate) {
+        List<Path> candidates;
+        synchronized (this) {
+            candidates = new ArrayList<>(files.keySet());
+        }
+        List<ChatRequestKey> removed = new ArrayList<>();
+        for (Path file : candidates) {
+            Stored stored = read(file);
+            if (stored == null) {
+                delete(file);
+            } else if (predicate.test(stored.key, stored.response)) {
+                delete(file);
+                removed.add(stored.key);
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    public synchronized long sizeInBytes() {
+        return totalBytes;
+    }
+
+    private void load() throws IOException {
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX)) {
+                    found.add(file);
+                } else if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);  // write interrupted by a crash
+                }
+            }
+        }
+        found.sort((a, b) -> Long.compare(lastModified(a), lastModified(b)));
+        for (Path file : found) {
+            long bytes = Files.size(file);
+            files.put(file, bytes);
+            totalBytes += bytes;
+        }
+        trim();
+        logger.info(() -> "Response cache directory " + directory + " holds " + files.size() + " entries");
+    }
+
+    private void trim() {
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        Iterator<Map.Entry<Path, Long>> oldest = files.entrySet().iterator();
+        while (totalBytes > maxBytes * TRIM_RATIO && oldest.hasNext()) {
+            Map.Entry<Path, Long> entry = oldest.next();
+            oldest.remove();
+            totalBytes -= entry.getValue();
+            deleteFile(entry.getKey());
+        }
+    }
+
+    private void delete(Path file) {
+        synchronized (this) {
+            Long bytes = files.remove(file);
+            if (bytes == null) {
+                return;
+            }
+            totalBytes -= bytes;
+        }
+        deleteFile(file);
+    }
+
+    private static void deleteFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot delete cached response " + file, e);
+        }
+    }
+
+    // Null when the file is gone or not a valid entry
+    private static Stored read(Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            long writtenMillis = in.readLong();
+            long expiresAtMillis = in.readLong();
+            long digestHigh = in.readLong();
+            long digestLow = in.readLong();
+            CachedResponse response = new CachedResponse(readString(in), readString(in), readString(in),
+                    readString(in), readString(in), writtenMillis, expiresAtMillis);
+            return new Stored(new ChatRequestKey(response.getProvider(), digestHigh, digestLow), response);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Discarding unreadable cached response " + file, e);
+            return null;
+        }
+    }
+
+    private Path fileOf(long digestHigh, long digestLow) {
+        return directory.resolve(String.format("%016x%016x", digestHigh, digestLow) + SUFFIX);
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Stored {
+        final ChatRequestKey key;
+        final CachedResponse response;
+
+        Stored(ChatRequestKey key, CachedResponse response) {
+            this.key = key;
+            this.response = response;
+        }
+    }
+}
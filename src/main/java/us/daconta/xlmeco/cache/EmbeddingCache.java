@@ -0,0 +1,65 @@
+package us.daconta.xlmeco.cache;
+
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.provider.Embedding;
+
+import java.util.Properties;
+
+/**
+ * In-memory cache of generated embeddings in front of the embedding providers. Bounded by the bytes held by
+ * the vectors, evicted with W-TinyLFU (see {@link TinyLfuCache}) and expired after a TTL so a re-deployed
+ * model is eventually picked up. Metrics are exported under "cache.embedding.*".
+ */
+public class EmbeddingCache {
+    public static final String PROPERTY_ENABLED = "embedding_cache.enabled";
+    public static final String PROPERTY_MAX_BYTES = "embedding_cache.max_bytes";
+    public static final String PROPERTY_TTL_SECONDS = "embedding_cache.ttl_seconds";
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_TTL_SECONDS = 24 * 60 * 60;
+
+    // Key, node and Embedding object headers on top of the float data
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    // Typical vector size (1536 dimensions), used to size the frequency sketch
+    private static final int TYPICAL_ENTRY_BYTES = 1536 * Float.BYTES + ENTRY_OVERHEAD_BYTES;
+
+    private final TinyLfuCache<EmbeddingCacheKey, Embedding> cache;
+
+    public EmbeddingCache(long maxBytes, long ttlSeconds) {
+        this.cache = new TinyLfuCache<>("embedding", maxBytes, maxBytes / TYPICAL_ENTRY_BYTES, ttlSeconds,
+                embedding -> embedding.dimension() * Float.BYTES + ENTRY_OVERHEAD_BYTES);
+    }
+
+    /**
+     * Build the cache from the server properties, or return null if it is disabled.
+     */
+    public static EmbeddingCache fromProperties(Properties properties) {
+        if (!Boolean.parseBoolean(properties.getProperty(PROPERTY_ENABLED, "true").trim())) {
+            return null;
+        }
+        long maxBytes = ConfigProperties.getLong(properties, PROPERTY_MAX_BYTES, DEFAULT_MAX_BYTES, 0);
+        long ttlSeconds = ConfigProperties.getLong(properties, PROPERTY_TTL_SECONDS, DEFAULT_TTL_SECONDS, 0);
+        return maxBytes > 0 ? new EmbeddingCache(maxBytes, ttlSeconds) : null;
+    }
+
+    public Embedding get(EmbeddingCacheKey key) {
+        return cache.get(key);
+    }
+
+    public void put(EmbeddingCacheKey key, Embedding embedding) {
+        // Keep a heap copy of off-heap vectors so the cache does not pin direct or mapped buffers
+        cache.put(key, embedding.isDirect() ? Embedding.of(embedding.toArray()) : embedding);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long sizeInBytes() {
+        return cache.weightedSize();
+    }
+}
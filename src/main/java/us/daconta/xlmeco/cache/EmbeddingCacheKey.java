@@ -0,0 +1,92 @@
+package us.daconta.xlmeco.cache;
+
+import us.daconta.xlmeco.grpc.ModelParameters;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Identity of an embedding: provider, model and a 128-bit digest of the model parameters (in key order) and
+ * the input text. The text itself is not retained, so keys stay small however long the input was.
+ */
+public final class EmbeddingCacheKey {
+    private final String provider;
+    private final String model;
+    private final long digestHigh;
+    private final long digestLow;
+
+    private EmbeddingCacheKey(String provider, String model, long digestHigh, long digestLow) {
+        this.provider = provider;
+        this.model = model;
+        this.digestHigh = digestHigh;
+        this.digestLow = digestLow;
+    }
+
+    public static EmbeddingCacheKey of(String provider, String model, ModelParameters parameters, String text) {
+        MessageDigest sha256 = sha256();
+        // Protobuf maps have no stable iteration order
+        for (Map.Entry<String, String> entry : new TreeMap<>(parameters.getParametersMap()).entrySet()) {
+            update(sha256, entry.getKey());
+            update(sha256, entry.getValue());
+        }
+        sha256.update((byte) 0);
+        sha256.update(text.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer digest = ByteBuffer.wrap(sha256.digest());
+        return new EmbeddingCacheKey(provider, model == null ? "" : model, digest.getLong(), digest.getLong());
+    }
+
+    // Length-prefixed so that ("ab", "c") and ("a", "bc") differ
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public long getDigestHigh() {
+        return digestHigh;
+    }
+
+    public long getDigestLow() {
+        return digestLow;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof EmbeddingCacheKey)) return false;
+        EmbeddingCacheKey other = (EmbeddingCacheKey) o;
+        return digestHigh == other.digestHigh && digestLow == other.digestLow
+                && provider.equals(other.provider) && model.equals(other.model);
+    }
+
+    @Override
+    public int hashCode() {
+        // The digest is already uniformly distributed
+        return (int) (digestLow ^ (digestLow >>> 32)) * 31 + provider.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "EmbeddingCacheKey[" + provider + "/" + model + ", " + Long.toHexString(digestHigh) + Long.toHexString(digestLow) + "]";
+    }
+}
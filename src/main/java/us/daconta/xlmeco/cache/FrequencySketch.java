@@ -0,0 +1,80 @@
+package us.daconta.xlmeco.cache;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often each key has been seen recently. Used as the
+ * admission filter of {@link TinyLfuCache}. Counters are halved once the number of increments reaches ten
+ * times the table width, so old popularity decays.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(long expectedEntries) {
+        int width = Integer.highestOneBit((int) Math.max(16, Math.min(1 << 24, expectedEntries)) - 1) << 1;
+        table = new long[width];
+        tableMask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    int frequency(int hash) {
+        int spread = spread(hash);
+        int frequency = Integer.MAX_VALUE;
+        for (int depth = 0; depth < SEEDS.length; depth++) {
+            long h = indexHash(spread, depth);
+            int count = (int) ((table[index(h)] >>> offset(h)) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        int spread = spread(hash);
+        boolean added = false;
+        for (int depth = 0; depth < SEEDS.length; depth++) {
+            long h = indexHash(spread, depth);
+            int index = index(h);
+            int offset = offset(h);
+            if (((table[index] >>> offset) & 0xF) != 0xF) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private long indexHash(int spread, int depth) {
+        long h = (spread + SEEDS[depth]) * SEEDS[depth];
+        return h ^ (h >>> 29);
+    }
+
+    private int index(long h) {
+        return (int) (h >>> 32) & tableMask;
+    }
+
+    private static int offset(long h) {
+        return ((int) h & 0xF) << 2;
+    }
+
+    private static int spread(int x) {
+        x ^= x >>> 17;
+        x *= 0xed5ad4bb;
+        x ^= x >>> 11;
+        x *= 0xac4c1b51;
+        x ^= x >>> 15;
+        return x;
+    }
+}
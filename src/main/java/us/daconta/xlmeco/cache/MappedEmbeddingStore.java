@@ -0,0 +1,740 @@
+package us.daconta.xlmeco.cache;
+
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+import us.daconta.xlmeco.provider.Embedding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk embedding store that survives restarts, so embeddings already paid for are not requested again
+ * after a deploy.
+ * <p>
+ * Embeddings are appended to fixed-size segment files ("segment-NNNNNN.emb") that are memory-mapped; a
+ * lookup returns an {@link Embedding} reading straight from the mapped region, with no copy into the heap.
+ * Each record is little-endian and 4-byte aligned:
+ * <pre>
+ *   int magic, int length (whole record), int crc32 (bytes 12..length),
+ *   long writtenMillis, long digestHigh, long digestLow, int dimension,
+ *   short providerLength, short modelLength, provider, model, padding, float[dimension]
+ * </pre>
+ * The heap only holds a primitive open-addressing hash index (digest to segment and offset). When a segment
+ * fills up it is sealed and its index entries are written next to it ("segment-NNNNNN.idx", with its own
+ * CRC), so on startup sealed segments are not read or mapped at all; they are mapped on their first lookup.
+ * The active segment, and any segment whose index file is missing or damaged, is recovered by scanning
+ * records until the first one that fails its magic or CRC check, which drops a write torn by a crash.
+ * <p>
+ * A background task compacts sealed segments whose live (not overwritten, not expired) bytes fall below
+ * half, copying the live records into the active segment, and deletes the oldest segments while the store
+ * is over its byte limit. It reads and copies records without holding the store lock, taking it only to
+ * append each batch of copies and to swap a segment out of the index, so lookups and writes are not held up
+ * behind a segment's worth of I/O.
+ */
+public class MappedEmbeddingStore implements AutoCloseable {
+    public static final String PROPERTY_DIR = "embedding_store.dir";
+    public static final String PROPERTY_SEGMENT_BYTES = "embedding_store.segment_bytes";
+    public static final String PROPERTY_MAX_BYTES = "embedding_store.max_bytes";
+    public static final String PROPERTY_TTL_SECONDS = "embedding_store.ttl_seconds";
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024 * 1024;
+    public static final long DEFAULT_TTL_SECONDS = 30L * 24 * 60 * 60;
+
+    private static final Logger logger = Logger.getLogger(MappedEmbeddingStore.class.getName());
+
+    private static final int RECORD_MAGIC = 0xE3BE0001;
+    private static final int INDEX_MAGIC = 0xE3B1D001;
+    private static final int HEADER_BYTES = 44;
+    private static final int CRC_START = 12;
+    private static final int MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+    private static final int COMPACTION_BATCH_BYTES = 1024 * 1024;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final RecordIndex index = new RecordIndex();
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "xlm-embedding-store-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Segment active;
+    private boolean closed;
+
+    private final LongAdder hits = MetricsRegistry.counter("embedding_store.hits");
+    private final LongAdder misses = MetricsRegistry.counter("embedding_store.misses");
+    private final LongAdder compactions = MetricsRegistry.counter("embedding_store.compactions");
+
+    public MappedEmbeddingStore(Path directory, long segmentBytes, long maxBytes, long ttlSeconds) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.min(MAX_SEGMENT_BYTES, Math.max(1024 * 1024, segmentBytes));
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlSeconds > 0 ? TimeUnit.SECONDS.toMillis(ttlSeconds) : 0L;
+        Files.createDirectories(directory);
+        open();
+        MetricsRegistry.gauge("embedding_store.bytes", this::sizeInBytes);
+        MetricsRegistry.gauge("embedding_store.entries", this::size);
+        MetricsRegistry.gauge("embedding_store.segments", this::segmentCount);
+    }
+
+    /**
+     * Open the store configured by "embedding_store.dir", or return null if no directory is set.
+     */
+    public static MappedEmbeddingStore fromProperties(Properties properties) throws IOException {
+        String dir = properties.getProperty(PROPERTY_DIR, "").trim();
+        if (dir.isEmpty()) {
+            return null;
+        }
+        return new MappedEmbeddingStore(Paths.get(dir),
+                ConfigProperties.getLong(properties, PROPERTY_SEGMENT_BYTES, DEFAULT_SEGMENT_BYTES, 1),
+                ConfigProperties.getLong(properties, PROPERTY_MAX_BYTES, DEFAULT_MAX_BYTES, 0),
+                ConfigProperties.getLong(properties, PROPERTY_TTL_SECONDS, DEFAULT_TTL_SECONDS, 0));
+    }
+
+    /**
+     * The stored embedding, read through the mapped segment, or null if absent or expired.
+     */
+    public Embedding get(EmbeddingCacheKey key) {
+        ByteBuffer record;
+        synchronized (this) {
+            long location = closed ? -1 : index.get(indexHigh(key), key.getDigestLow());
+            if (location < 0) {
+                misses.increment();
+                return null;
+            }
+            Segment segment = segments.get(segmentOf(location));
+            try {
+                record = segment.record(offsetOf(location), index.lengthOf(indexHigh(key), key.getDigestLow()));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot map embedding segment " + segment.dataFile, e);
+                misses.increment();
+                return null;
+            }
+        }
+        // Guard against index collisions and expired records before handing out a view
+        if (isExpired(record) || !matches(record, key)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return Embedding.wrap(floats(record));
+    }
+
+    public void put(EmbeddingCacheKey key, Embedding embedding) {
+        byte[] provider = key.getProvider().getBytes(StandardCharsets.UTF_8);
+        byte[] model = key.getModel().getBytes(StandardCharsets.UTF_8);
+        int floatsOffset = align(HEADER_BYTES + provider.length + model.length);
+        int length = floatsOffset + embedding.dimension() * Float.BYTES;
+        if (provider.length > Short.MAX_VALUE || model.length > Short.MAX_VALUE || length > segmentBytes) {
+            return;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(RECORD_MAGIC).putInt(length).putInt(0)
+                .putLong(System.currentTimeMillis())
+                .putLong(key.getDigestHigh()).putLong(key.getDigestLow())
+                .putInt(embedding.dimension())
+                .putShort((short) provider.length).putShort((short) model.length)
+                .put(provider).put(model);
+        record.position(floatsOffset);
+        record.asFloatBuffer().put(embedding.asFloatBuffer());
+        record.putInt(8, crc(record, CRC_START, length - CRC_START));
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                append(indexHigh(key), key.getDigestLow(), record.array(), 0, length);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot write embedding to " + directory, e);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized long sizeInBytes() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.size;
+        }
+        return bytes;
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                active.map.force();
+                active.channel.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot flush embedding segment " + active.dataFile, e);
+            }
+        }
+    }
+
+    // ---- Startup ----
+
+    private void open() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.emb")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    int id = Integer.parseInt(name.substring("segment-".length(), name.length() - ".emb".length()));
+                    if (id >= 0) {
+                        ids.add(id);
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+                logger.warning(() -> "Ignoring unexpected file " + file + " in embedding store");
+            }
+        }
+        ids.sort(null);
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = new Segment(ids.get(i));
+            segments.put(segment.id, segment);
+            boolean last = i == ids.size() - 1;
+            if (last || !loadIndexFile(segment)) {
+                recover(segment);
+            }
+            if (last) {
+                segment.openForAppend(segmentBytes);
+                active = segment;
+            } else {
+                segment.sealed = true;
+            }
+        }
+        if (active == null) {
+            active = newSegment(1);
+        }
+        logger.info(() -> "Opened embedding store " + directory + ": " + index.size() + " embeddings in "
+                + segments.size() + " segments");
+        maintenance.execute(this::maintain);
+    }
+
+    private boolean loadIndexFile(Segment segment) {
+        if (!Files.exists(segment.indexFile)) {
+            return false;
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(segment.indexFile)).order(ByteOrder.LITTLE_ENDIAN);
+            int body = in.limit() - Integer.BYTES;
+            if (body < 16 || in.getInt(0) != INDEX_MAGIC || in.getInt(body) != crc(in, 0, body)) {
+                logger.warning(() -> "Ignoring damaged index " + segment.indexFile);
+                return false;
+            }
+            in.position(Integer.BYTES);
+            segment.size = in.getLong();
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                long high = in.getLong();
+                long low = in.getLong();
+                int offset = in.getInt();
+                int length = in.getInt();
+                track(segment, high, low, offset, length);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Cannot read index " + segment.indexFile, e);
+            return false;
+        }
+    }
+
+    // Rebuild a segment's entries from its records, stopping at the first torn or damaged one
+    private void recover(Segment segment) throws IOException {
+        ByteBuffer data = segment.mapped();
+        int position = 0;
+        int limit = data.capacity();
+        while (position + HEADER_BYTES <= limit) {
+            int magic = data.getInt(position);
+            int length = data.getInt(position + 4);
+            if (magic != RECORD_MAGIC || length < HEADER_BYTES || length > limit - position || (length & 3) != 0
+                    || data.getInt(position + 8) != crc(data, position + CRC_START, length - CRC_START)) {
+                break;
+            }
+            track(segment, data.getLong(position + 20) ^ modelHash(data, position), data.getLong(position + 28), position, length);
+            position += length;
+        }
+        segment.size = position;
+        int recovered = position;
+        logger.info(() -> "Recovered " + recovered + " bytes of embedding segment " + segment.dataFile);
+    }
+
+    // ---- Writes ----
+
+    private void append(long high, long low, byte[] bytes, int offset, int length) throws IOException {
+        if (active.size + length > active.map.capacity()) {
+            seal();
+        }
+        int position = (int) active.size;
+        ByteBuffer target = active.map.duplicate();
+        target.position(position);
+        target.put(bytes, offset, length);
+        active.size += length;
+        track(active, high, low, position, length);
+    }
+
+    private void track(Segment segment, long high, long low, int offset, int length) {
+        long previous = index.put(high, low, location(segment.id, offset), length);
+        if (previous >= 0) {
+            Segment old = segments.get(segmentOf(previous));
+            if (old != null) {
+                old.liveBytes -= index.lastReplacedLength();
+            }
+        }
+        segment.liveBytes += length;
+    }
+
+    private void seal() throws IOException {
+        Segment sealed = active;
+        sealed.map.force();
+        writeIndexFile(sealed);
+        sealed.channel.close();
+        sealed.channel = null;
+        sealed.sealed = true;
+        active = newSegment(sealed.id + 1);
+        maintenance.execute(this::maintain);
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id);
+        segment.openForAppend(segmentBytes);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void writeIndexFile(Segment segment) throws IOException {
+        List<long[]> entries = new ArrayList<>();
+        index.forEach((high, low, location, length) -> {
+            if (segmentOf(location) == segment.id) {
+                entries.add(new long[]{high, low, offsetOf(location), length});
+            }
+        });
+        int body = Integer.BYTES + Long.BYTES + Integer.BYTES + entries.size() * (2 * Long.BYTES + 2 * Integer.BYTES);
+        ByteBuffer out = ByteBuffer.allocate(body + Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(INDEX_MAGIC).putLong(segment.size).putInt(entries.size());
+        for (long[] entry : entries) {
+            out.putLong(entry[0]).putLong(entry[1]).putInt((int) entry[2]).putInt((int) entry[3]);
+        }
+        out.putInt(crc(out, 0, body));
+        Path temp = segment.indexFile.resolveSibling(segment.indexFile.getFileName() + ".tmp");
+        Files.write(temp, out.array());
+        Files.move(temp, segment.indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ---- Maintenance ----
+
+    private void maintain() {
+        try {
+            dropOverLimit();
+            for (Segment segment : compactionCandidates()) {
+                compact(segment);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Embedding store maintenance failed", e);
+        }
+    }
+
+    private synchronized List<Segment> compactionCandidates() {
+        List<Segment> candidates = new ArrayList<>();
+        if (closed) {
+            return candidates;
+        }
+        for (Segment segment : segments.values()) {
+            if (segment.sealed && segment.liveBytes < segment.size * COMPACTION_LIVE_RATIO) {
+                candidates.add(segment);
+            }
+        }
+        return candidates;
+    }
+
+    private void dropOverLimit() throws IOException {
+        while (true) {
+            Segment oldest;
+            synchronized (this) {
+                if (closed || maxBytes <= 0 || sizeInBytes() <= maxBytes) {
+                    return;
+                }
+                oldest = segments.firstEntry().getValue();
+                if (!oldest.sealed) {
+                    return;
+                }
+                logger.info(() -> "Dropping embedding segment " + oldest.dataFile + " to stay under " + maxBytes + " bytes");
+                index.removeIf(location -> segmentOf(location) == oldest.id);
+                unlink(oldest);
+            }
+            deleteFiles(oldest);
+        }
+    }
+
+    // Move the live, unexpired records of a mostly dead segment into the active segment
+    private void compact(Segment segment) throws IOException {
+        List<long[]> live = new ArrayList<>();
+        ByteBuffer data;
+        synchronized (this) {
+            if (closed || segments.get(segment.id) != segment) {
+                return;
+            }
+            index.forEach((high, low, location, length) -> {
+                if (segmentOf(location) == segment.id) {
+                    live.add(new long[]{high, low, offsetOf(location), length});
+                }
+            });
+            data = segment.mapped();
+        }
+
+        // Copy batches of records off the mapping unlocked; each batch is appended under the lock
+        byte[] batch = new byte[COMPACTION_BATCH_BYTES];
+        List<long[]> copied = new ArrayList<>();
+        int filled = 0;
+        int moved = 0;
+        for (long[] entry : live) {
+            int length = (int) entry[3];
+            ByteBuffer record = slice(data, (int) entry[2], length);
+            if (isExpired(record)) {
+                continue;
+            }
+            if (filled + length > batch.length) {
+                moved += appendCopies(segment, batch, copied);
+                copied.clear();
+                filled = 0;
+                if (length > batch.length) {
+                    batch = new byte[length];
+                }
+            }
+            record.get(0, batch, filled, length);
+            copied.add(new long[]{entry[0], entry[1], entry[2], filled, length});
+            filled += length;
+        }
+        moved += appendCopies(segment, batch, copied);
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            index.removeIf(location -> segmentOf(location) == segment.id);
+            unlink(segment);
+        }
+        deleteFiles(segment);
+        compactions.increment();
+        int movedRecords = moved;
+        logger.info(() -> "Compacted embedding segment " + segment.dataFile + ", kept " + movedRecords + " of " + live.size());
+    }
+
+    // Append copied records that the index still places in the compacted segment; a record rewritten
+    // since it was copied stays where the newer write put it. Returns the number appended.
+    private synchronized int appendCopies(Segment segment, byte[] batch, List<long[]> copied) throws IOException {
+        if (closed) {
+            return 0;
+        }
+        int appended = 0;
+        for (long[] copy : copied) {
+            if (index.get(copy[0], copy[1]) == location(segment.id, (int) copy[2])) {
+                append(copy[0], copy[1], batch, (int) copy[3], (int) copy[4]);
+                appended++;
+            }
+        }
+        return appended;
+    }
+
+    // Take a segment out of the store; its files are deleted afterwards, outside the lock
+    private void unlink(Segment segment) {
+        segments.remove(segment.id);
+        // Embeddings already handed out keep reading the unlinked file through their mapping
+        segment.map = null;
+    }
+
+    private void deleteFiles(Segment segment) throws IOException {
+        Files.deleteIfExists(segment.indexFile);
+        Files.deleteIfExists(segment.dataFile);
+    }
+
+    // ---- Records ----
+
+    private boolean isExpired(ByteBuffer record) {
+        return ttlMillis > 0 && System.currentTimeMillis() - record.getLong(12) > ttlMillis;
+    }
+
+    private static boolean matches(ByteBuffer record, EmbeddingCacheKey key) {
+        if (record.getInt(0) != RECORD_MAGIC || record.getLong(20) != key.getDigestHigh() || record.getLong(28) != key.getDigestLow()) {
+            return false;
+        }
+        return key.getProvider().equals(string(record, HEADER_BYTES, record.getShort(40)))
+                && key.getModel().equals(string(record, HEADER_BYTES + record.getShort(40), record.getShort(42)));
+    }
+
+    private static FloatBuffer floats(ByteBuffer record) {
+        int floatsOffset = align(HEADER_BYTES + record.getShort(40) + record.getShort(42));
+        return slice(record, floatsOffset, record.getInt(36) * Float.BYTES).asFloatBuffer();
+    }
+
+    private static String string(ByteBuffer record, int offset, int length) {
+        byte[] bytes = new byte[length];
+        record.get(offset, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Provider and model are folded into the high index word; a lookup verifies them against the record
+    private static long indexHigh(EmbeddingCacheKey key) {
+        return key.getDigestHigh() ^ modelHash(key.getProvider(), key.getModel());
+    }
+
+    private static long modelHash(ByteBuffer data, int position) {
+        int providerLength = data.getShort(position + 40);
+        int modelLength = data.getShort(position + 42);
+        return modelHash(string(data, position + HEADER_BYTES, providerLength),
+                string(data, position + HEADER_BYTES + providerLength, modelLength));
+    }
+
+    private static long modelHash(String provider, String model) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : (provider + '\0' + model).getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length).position(offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(slice(buffer, offset, length));
+        return (int) crc.getValue();
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    private final class Segment {
+        final int id;
+        final Path dataFile;
+        final Path indexFile;
+        long size;
+        long liveBytes;
+        boolean sealed;
+        FileChannel channel;
+        MappedByteBuffer map;
+
+        Segment(int id) {
+            this.id = id;
+            String name = String.format("segment-%06d", id);
+            this.dataFile = directory.resolve(name + ".emb");
+            this.indexFile = directory.resolve(name + ".idx");
+        }
+
+        void openForAppend(long capacity) throws IOException {
+            channel = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // The file is extended sparsely; unwritten space reads as zeros, which ends a recovery scan
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, channel.size()));
+            map.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // Sealed segments are mapped read-only on first use
+        ByteBuffer mapped() throws IOException {
+            if (map == null) {
+                try (FileChannel file = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+                    map = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+                }
+                map.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return map;
+        }
+
+        ByteBuffer record(int offset, int length) throws IOException {
+            return slice(mapped(), offset, length);
+        }
+    }
+
+    @FunctionalInterface
+    private interface EntryVisitor {
+        void visit(long high, long low, long location, int length);
+    }
+
+    @FunctionalInterface
+    private interface LocationFilter {
+        boolean test(long location);
+    }
+
+    /**
+     * Open-addressing hash index from a 128-bit key to a record location and length, in primitive arrays.
+     */
+    private static final class RecordIndex {
+        private long[] highs = new long[1024];
+        private long[] lows = new long[1024];
+        private long[] locations = new long[1024];
+        private int[] lengths = new int[1024];
+        private int size;
+        private int replacedLength;
+
+        RecordIndex() {
+            Arrays.fill(locations, -1L);
+        }
+
+        int size() {
+            return size;
+        }
+
+        long get(long high, long low) {
+            int slot = find(high, low);
+            return slot < 0 ? -1 : locations[slot];
+        }
+
+        int lengthOf(long high, long low) {
+            int slot = find(high, low);
+            return slot < 0 ? 0 : lengths[slot];
+        }
+
+        int lastReplacedLength() {
+            return replacedLength;
+        }
+
+        // Returns the replaced location, or -1 for a new key
+        long put(long high, long low, long location, int length) {
+            if ((size + 1) * 2 > locations.length) {
+                resize(locations.length * 2);
+            }
+            int mask = locations.length - 1;
+            int slot = slotOf(high, low, mask);
+            while (locations[slot] >= 0) {
+                if (highs[slot] == high && lows[slot] == low) {
+                    long previous = locations[slot];
+                    replacedLength = lengths[slot];
+                    locations[slot] = location;
+                    lengths[slot] = length;
+                    return previous;
+                }
+                slot = (slot + 1) & mask;
+            }
+            highs[slot] = high;
+            lows[slot] = low;
+            locations[slot] = location;
+            lengths[slot] = length;
+            size++;
+            return -1;
+        }
+
+        void forEach(EntryVisitor visitor) {
+            for (int slot = 0; slot < locations.length; slot++) {
+                if (locations[slot] >= 0) {
+                    visitor.visit(highs[slot], lows[slot], locations[slot], lengths[slot]);
+                }
+            }
+        }
+
+        // Removal rebuilds the table; it only happens when a whole segment goes away
+        void removeIf(LocationFilter filter) {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            long[] oldLocations = locations;
+            int[] oldLengths = lengths;
+            allocate(locations.length);
+            for (int slot = 0; slot < oldLocations.length; slot++) {
+                if (oldLocations[slot] >= 0 && !filter.test(oldLocations[slot])) {
+                    put(oldHighs[slot], oldLows[slot], oldLocations[slot], oldLengths[slot]);
+                }
+            }
+        }
+
+        private int find(long high, long low) {
+            int mask = locations.length - 1;
+            int slot = slotOf(high, low, mask);
+            while (locations[slot] >= 0) {
+                if (highs[slot] == high && lows[slot] == low) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void resize(int capacity) {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            long[] oldLocations = locations;
+            int[] oldLengths = lengths;
+            allocate(capacity);
+            for (int slot = 0; slot < oldLocations.length; slot++) {
+                if (oldLocations[slot] >= 0) {
+                    put(oldHighs[slot], oldLows[slot], oldLocations[slot], oldLengths[slot]);
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            highs = new long[capacity];
+            lows = new long[capacity];
+            locations = new long[capacity];
+            lengths = new int[capacity];
+            Arrays.fill(locations, -1L);
+            size = 0;
+        }
+
+        private static int slotOf(long high, long low, int mask) {
+            return (int) (low ^ (low >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package us.daconta.xlmeco.cache;
+
+import java.util.List;
+import java.util.function.BiPredicate;
+
+/**
+ * Heap tier of the response cache: a {@link TinyLfuCache} bounded by the approximate bytes of the prompts and
+ * completions it holds. Metrics are exported under "cache.response.*".
+ */
+public class MemoryResponseStore implements ResponseStore {
+    // Typical prompt plus completion, used to size the frequency sketch
+    private static final int TYPICAL_ENTRY_BYTES = 4096;
+
+    private final TinyLfuCache<ChatRequestKey, CachedResponse> cache;
+
+    public MemoryResponseStore(long maxBytes) {
+        // Entries carry their own expiry, so the cache-wide TTL is off
+        this.cache = new TinyLfuCache<>("response", maxBytes, Math.max(1, maxBytes / TYPICAL_ENTRY_BYTES), 0,
+                CachedResponse::weight);
+    }
+
+    @Override
+    public CachedResponse get(ChatRequestKey key) {
+        CachedResponse response = cache.get(key);
+        if (response != null && response.isExpired(System.currentTimeMillis())) {
+            cache.invalidate(key);
+            return null;
+        }
+        return response;
+    }
+
+    @Override
+    public void put(ChatRequestKey key, CachedResponse response) {
+        cache.put(key, response);
+    }
+
+    @Override
+    public List<ChatRequestKey> invalidateIf(BiPredicate<ChatRequestKey, CachedResponse> predicate) {
+        return cache.invalidateIf(predicate);
+    }
+}
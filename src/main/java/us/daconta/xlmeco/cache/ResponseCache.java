@@ -0,0 +1,126 @@
+package us.daconta.xlmeco.cache;
+
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.grpc.ChatRequest;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exact-match cache of chat completions keyed by {@link ChatRequestKey}, over an ordered list of
+ * {@link ResponseStore} tiers (by default memory, then an optional local directory). A lookup tries each
+ * tier in turn and copies a hit into the faster tiers above it; a write goes to every tier. Each entry
+ * carries its own TTL.
+ * <p>
+ * Metrics: counters "response_cache.hits" and "response_cache.misses" across all tiers, plus the metrics of
+ * the individual tiers.
+ */
+public class ResponseCache {
+    public static final String PROPERTY_ENABLED = "response_cache.enabled";
+    public static final String PROPERTY_MAX_BYTES = "response_cache.max_bytes";
+    public static final String PROPERTY_TTL_SECONDS = "response_cache.ttl_seconds";
+    public static final String PROPERTY_DIR = "response_cache.dir";
+    public static final String PROPERTY_DISK_MAX_BYTES = "response_cache.disk_max_bytes";
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+    public static final long DEFAULT_TTL_SECONDS = 60 * 60;
+    public static final long DEFAULT_DISK_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final Logger logger = Logger.getLogger(ResponseCache.class.getName());
+
+    private final List<ResponseStore> tiers;
+    private final long defaultTtlSeconds;
+
+    private final LongAdder hits = MetricsRegistry.counter("response_cache.hits");
+    private final LongAdder misses = MetricsRegistry.counter("response_cache.misses");
+
+    public ResponseCache(List<ResponseStore> tiers, long defaultTtlSeconds) {
+        this.tiers = new ArrayList<>(tiers);
+        this.defaultTtlSeconds = defaultTtlSeconds;
+    }
+
+    /**
+     * Build the cache from the server properties, or return null unless it is enabled. A disk tier that cannot
+     * be opened is logged and left out.
+     */
+    public static ResponseCache fromProperties(Properties properties) {
+        if (!Boolean.parseBoolean(properties.getProperty(PROPERTY_ENABLED, "false").trim())) {
+            return null;
+        }
+        List<ResponseStore> tiers = new ArrayList<>();
+        long maxBytes = ConfigProperties.getLong(properties, PROPERTY_MAX_BYTES, DEFAULT_MAX_BYTES, 0);
+        if (maxBytes > 0) {
+            tiers.add(new MemoryResponseStore(maxBytes));
+        }
+        String dir = properties.getProperty(PROPERTY_DIR, "").trim();
+        if (!dir.isEmpty()) {
+            try {
+                tiers.add(new DiskResponseStore(Paths.get(dir),
+                        ConfigProperties.getLong(properties, PROPERTY_DISK_MAX_BYTES, DEFAULT_DISK_MAX_BYTES, 1)));
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Cannot open response cache directory " + dir + "; continuing without it", e);
+            }
+        }
+        if (tiers.isEmpty()) {
+            return null;
+        }
+        return new ResponseCache(tiers, ConfigProperties.getLong(properties, PROPERTY_TTL_SECONDS, DEFAULT_TTL_SECONDS, 1));
+    }
+
+    public CachedResponse get(ChatRequestKey key) {
+        for (int i = 0; i < tiers.size(); i++) {
+            CachedResponse response = tiers.get(i).get(key);
+            if (response != null) {
+                for (int j = 0; j < i; j++) {
+                    tiers.get(j).put(key, response);
+                }
+                hits.increment();
+                return response;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store the completion of a request; ttlSeconds &lt;= 0 uses the server default.
+     */
+    public void put(ChatRequestKey key, String clientId, ChatRequest request, String completion, long ttlSeconds) {
+        long now = System.currentTimeMillis();
+        long ttl = ttlSeconds > 0 ? ttlSeconds : defaultTtlSeconds;
+        CachedResponse response = new CachedResponse(key.getProvider(), request.getModelName(), clientId,
+                request.getPrompt(), completion, now, now + TimeUnit.SECONDS.toMillis(ttl));
+        for (ResponseStore tier : tiers) {
+            tier.put(key, response);
+        }
+    }
+
+    /**
+     * Remove the entries matching every non-empty filter; with all filters empty, everything is removed.
+     * Returns the number of distinct entries removed.
+     */
+    public int invalidate(String clientId, String provider, String promptPrefix) {
+        BiPredicate<ChatRequestKey, CachedResponse> matches = (key, response) ->
+                (clientId.isEmpty() || clientId.equals(response.getClientId()))
+                        && (provider.isEmpty() || provider.equals(response.getProvider()))
+                        && response.getPrompt().startsWith(promptPrefix);
+        Set<ChatRequestKey> removed = new HashSet<>();
+        for (ResponseStore tier : tiers) {
+            removed.addAll(tier.invalidateIf(matches));
+        }
+        logger.info(() -> "Invalidated " + removed.size() + " cached responses (client=" + clientId
+                + ", provider=" + provider + ", prefix=" + promptPrefix.length() + " chars)");
+        return removed.size();
+    }
+}
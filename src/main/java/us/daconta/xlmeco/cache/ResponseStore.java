@@ -0,0 +1,22 @@
+package us.daconta.xlmeco.cache;
+
+import java.util.List;
+import java.util.function.BiPredicate;
+
+/**
+ * One storage tier of the {@link ResponseCache}. Implementations decide where entries live and how they are
+ * bounded; expired entries must never be returned.
+ */
+public interface ResponseStore {
+    /**
+     * The live entry for the key, or null.
+     */
+    CachedResponse get(ChatRequestKey key);
+
+    void put(ChatRequestKey key, CachedResponse response);
+
+    /**
+     * Remove every entry that matches; returns the keys removed.
+     */
+    List<ChatRequestKey> invalidateIf(BiPredicate<ChatRequestKey, CachedResponse> predicate);
+}
@@ -0,0 +1,246 @@
+package us.daconta.xlmeco.cache;
+
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+import us.daconta.xlmeco.provider.Embedding;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * In-process nearest-neighbour index from prompt embeddings to cached completions, bounded by bytes.
+ * <p>
+ * Vectors are stored unit-length, so cosine similarity is a dot product, together with their sign bits
+ * packed into longs. A lookup ranks the entries of the same scope by Hamming distance of the sign bits
+ * (a few popcounts per entry), then computes the exact cosine only for the closest {@value #RERANK}
+ * candidates. Entries only match within their scope, which identifies the chat provider, model, sampling
+ * parameters and embedding model.
+ * <p>
+ * When the byte bound is reached, entries are evicted with the CLOCK algorithm: a hit marks an entry as
+ * referenced, and the sweeping hand evicts the first unreferenced (or expired) entry it finds, clearing
+ * marks as it passes. Gauges "semantic_cache.entries" and "semantic_cache.bytes", counter
+ * "semantic_cache.evictions".
+ */
+public class SemanticIndex {
+    private static final int RERANK = 32;
+    // Object headers and array overheads on top of the vector, bits and response
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final long maxBytes;
+    private final List<Entry> slots = new ArrayList<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand;
+    private int size;
+    private long bytes;
+
+    private final LongAdder evictions = MetricsRegistry.counter("semantic_cache.evictions");
+
+    public SemanticIndex(long maxBytes) {
+        this.maxBytes = maxBytes;
+        MetricsRegistry.gauge("semantic_cache.entries", this::size);
+        MetricsRegistry.gauge("semantic_cache.bytes", this::sizeInBytes);
+    }
+
+    public static final class Match {
+        private final CachedResponse response;
+        private final float similarity;
+
+        Match(CachedResponse response, float similarity) {
+            this.response = response;
+            this.similarity = similarity;
+        }
+
+        public CachedResponse getResponse() {
+            return response;
+        }
+
+        public float getSimilarity() {
+            return similarity;
+        }
+    }
+
+    /**
+     * The most similar live entry of the scope, if its cosine similarity is at least minSimilarity.
+     */
+    public synchronized Match nearest(String scope, Embedding query, float minSimilarity) {
+        float[] unit = normalize(query);
+        if (unit == null || size == 0) {
+            return null;
+        }
+        long[] bits = signBits(unit);
+        long now = System.currentTimeMillis();
+
+        // Keep the RERANK closest entries by Hamming distance, sorted ascending
+        int[] candidates = new int[RERANK];
+        int[] distances = new int[RERANK];
+        int found = 0;
+        for (int slot = 0; slot < slots.size(); slot++) {
+            Entry entry = slots.get(slot);
+            if (entry == null || entry.unit.length != unit.length || !entry.scope.equals(scope)) {
+                continue;
+            }
+            if (entry.response.isExpired(now)) {
+                remove(slot);
+                continue;
+            }
+            int distance = hamming(bits, entry.bits);
+            if (found == RERANK && distance >= distances[RERANK - 1]) {
+                continue;
+            }
+            int at = found < RERANK ? found++ : RERANK - 1;
+            while (at > 0 && distances[at - 1] > distance) {
+                distances[at] = distances[at - 1];
+                candidates[at] = candidates[at - 1];
+                at--;
+            }
+            distances[at] = distance;
+            candidates[at] = slot;
+        }
+
+        Entry best = null;
+        float bestSimilarity = minSimilarity;
+        for (int i = 0; i < found; i++) {
+            Entry entry = slots.get(candidates[i]);
+            float similarity = dot(unit, entry.unit);
+            if (similarity >= bestSimilarity) {
+                best = entry;
+                bestSimilarity = similarity;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        best.referenced = true;
+        return new Match(best.response, bestSimilarity);
+    }
+
+    public synchronized void add(String scope, Embedding embedding, CachedResponse response) {
+        float[] unit = normalize(embedding);
+        if (unit == null) {
+            return;
+        }
+        Entry entry = new Entry(scope, unit, signBits(unit), response);
+        if (entry.weight > maxBytes) {
+            return;
+        }
+        while (bytes + entry.weight > maxBytes) {
+            evictOne();
+        }
+        if (freeSlots.isEmpty()) {
+            slots.add(entry);
+        } else {
+            slots.set(freeSlots.pop(), entry);
+        }
+        size++;
+        bytes += entry.weight;
+    }
+
+    /**
+     * Remove every entry whose response matches; returns the number removed.
+     */
+    public synchronized int invalidateIf(Predicate<CachedResponse> predicate) {
+        int removed = 0;
+        for (int slot = 0; slot < slots.size(); slot++) {
+            Entry entry = slots.get(slot);
+            if (entry != null && predicate.test(entry.response)) {
+                remove(slot);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    // Only called while over the bound, so there is at least one entry; a second sweep finds marks cleared
+    private void evictOne() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            if (hand >= slots.size()) {
+                hand = 0;
+            }
+            Entry entry = slots.get(hand);
+            if (entry != null) {
+                if (entry.referenced && !entry.response.isExpired(now)) {
+                    entry.referenced = false;
+                } else {
+                    remove(hand++);
+                    evictions.increment();
+                    return;
+                }
+            }
+            hand++;
+        }
+    }
+
+    private void remove(int slot) {
+        Entry entry = slots.set(slot, null);
+        freeSlots.push(slot);
+        size--;
+        bytes -= entry.weight;
+    }
+
+    private static float[] normalize(Embedding embedding) {
+        float norm = embedding.isEmpty() ? 0f : embedding.norm();
+        if (norm == 0f || Float.isNaN(norm)) {
+            return null;
+        }
+        float[] unit = embedding.toArray();
+        for (int i = 0; i < unit.length; i++) {
+            unit[i] /= norm;
+        }
+        return unit;
+    }
+
+    private static long[] signBits(float[] unit) {
+        long[] bits = new long[(unit.length + 63) >>> 6];
+        for (int i = 0; i < unit.length; i++) {
+            if (unit[i] > 0f) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        return bits;
+    }
+
+    private static int hamming(long[] a, long[] b) {
+        int distance = 0;
+        for (int i = 0; i < a.length; i++) {
+            distance += Long.bitCount(a[i] ^ b[i]);
+        }
+        return distance;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0f;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static final class Entry {
+        final String scope;
+        final float[] unit;
+        final long[] bits;
+        final CachedResponse response;
+        final int weight;
+        boolean referenced;
+
+        Entry(String scope, float[] unit, long[] bits, CachedResponse response) {
+            this.scope = scope;
+            this.unit = unit;
+            this.bits = bits;
+            this.response = response;
+            this.weight = unit.length * Float.BYTES + bits.length * Long.BYTES + 2 * scope.length()
+                    + response.weight() + ENTRY_OVERHEAD_BYTES;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package us.daconta.xlmeco.cache;
+
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Weight-bounded cache with W-TinyLFU eviction and an optional expire-after-write TTL.
+ * <p>
+ * New entries land in a small LRU window (1% of the weight). Entries pushed out of the window compete with
+ * the least recently used entry of the main segmented LRU, and only the one that a {@link FrequencySketch}
+ * says was requested more often is kept. This lets one-off keys pass through without flushing the keys that
+ * are requested again and again. The main space is split into probation (new arrivals) and protected
+ * (entries hit at least twice); protected overflow is demoted back to probation.
+ * <p>
+ * Counters "cache.&lt;name&gt;.hits|misses|evictions|expirations" and gauges "cache.&lt;name&gt;.weight|entries"
+ * are registered in the {@link MetricsRegistry}. All operations hold the cache's lock; they only touch a
+ * hash map and a few list links.
+ */
+public class TinyLfuCache<K, V> {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final double WINDOW_PERCENT = 0.01;
+    private static final double PROTECTED_PERCENT = 0.80;
+
+    private final String name;
+    private final long maxWeight;
+    private final long windowMax;
+    private final long protectedMax;
+    private final long ttlNanos;
+    private final ToIntFunction<V> weigher;
+    private final FrequencySketch sketch;
+    private final Map<K, Node<K, V>> data = new HashMap<>();
+    private final AccessQueue<K, V> window = new AccessQueue<>();
+    private final AccessQueue<K, V> probation = new AccessQueue<>();
+    private final AccessQueue<K, V> protectedQueue = new AccessQueue<>();
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    private final LongAdder expirations;
+
+    /**
+     * @param name            metric name segment, e.g. "embedding"
+     * @param maxWeight       upper bound on the summed weights of the entries
+     * @param expectedEntries rough number of entries that fit; sizes the frequency sketch
+     * @param ttlSeconds      expire entries this long after they were written; 0 disables expiry
+     * @param weigher         weight of a value, typically its size in bytes
+     */
+    public TinyLfuCache(String name, long maxWeight, long expectedEntries, long ttlSeconds, ToIntFunction<V> weigher) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be positive: " + maxWeight);
+        }
+        this.name = name;
+        this.maxWeight = maxWeight;
+        this.windowMax = Math.max(1, (long) (maxWeight * WINDOW_PERCENT));
+        this.protectedMax = (long) ((maxWeight - windowMax) * PROTECTED_PERCENT);
+        this.ttlNanos = ttlSeconds > 0 ? ttlSeconds * 1_000_000_000L : 0L;
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(expectedEntries);
+
+        String prefix = "cache." + name + ".";
+        this.hits = MetricsRegistry.counter(prefix + "hits");
+        this.misses = MetricsRegistry.counter(prefix + "misses");
+        this.evictions = MetricsRegistry.counter(prefix + "evictions");
+        this.expirations = MetricsRegistry.counter(prefix + "expirations");
+        MetricsRegistry.gauge(prefix + "weight", this::weightedSize);
+        MetricsRegistry.gauge(prefix + "entries", this::size);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The cached value, or null if absent or expired. Records the access for admission either way.
+     */
+    public synchronized V get(K key) {
+        sketch.increment(key.hashCode());
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        if (isExpired(node, System.nanoTime())) {
+            removeNode(node);
+            expirations.increment();
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        onHit(node);
+        return node.value;
+    }
+
+    /**
+     * Insert or replace a value. Values heavier than the whole cache are not stored.
+     */
+    public synchronized void put(K key, V value) {
+        int weight = weigher.applyAsInt(value);
+        Node<K, V> existing = data.get(key);
+        if (weight > maxWeight) {
+            if (existing != null) {
+                removeNode(existing);
+            }
+            return;
+        }
+        sketch.increment(key.hashCode());
+        long now = System.nanoTime();
+        if (existing != null) {
+            adjustWeight(existing, weight - existing.weight);
+            existing.value = value;
+            existing.weight = weight;
+            existing.writeTime = now;
+            onHit(existing);
+        } else {
+            Node<K, V> node = new Node<>(key, value, weight, now);
+            data.put(key, node);
+            window.addLast(node);
+            windowWeight += weight;
+        }
+        expireHeads(now);
+        evict();
+    }
+
+    public synchronized void invalidate(K key) {
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            removeNode(node);
+        }
+    }
+
+    /**
+     * Remove every entry that matches; returns the keys removed.
+     */
+    public synchronized List<K> invalidateIf(BiPredicate<? super K, ? super V> predicate) {
+        List<K> removed = new ArrayList<>();
+        for (Node<K, V> node : new ArrayList<>(data.values())) {
+            if (predicate.test(node.key, node.value)) {
+                removeNode(node);
+                removed.add(node.key);
+            }
+        }
+        return removed;
+    }
+
+    public synchronized void invalidateAll() {
+        data.clear();
+        window.clear();
+        probation.clear();
+        protectedQueue.clear();
+        windowWeight = probationWeight = protectedWeight = 0;
+    }
+
+    public synchronized int size() {
+        return data.size();
+    }
+
+    public synchronized long weightedSize() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    private void onHit(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                // Second hit: promote, then demote the protected LRU if it overflows
+                probation.remove(node);
+                probationWeight -= node.weight;
+                node.queue = PROTECTED;
+                protectedQueue.addLast(node);
+                protectedWeight += node.weight;
+                while (protectedWeight > protectedMax) {
+                    Node<K, V> demoted = protectedQueue.peekFirst();
+                    if (demoted == null || demoted == node) {
+                        break;
+                    }
+                    protectedQueue.remove(demoted);
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                    probationWeight += demoted.weight;
+                }
+                break;
+            default:
+                protectedQueue.moveToLast(node);
+                break;
+        }
+    }
+
+    private void evict() {
+        // Window overflow becomes candidates for the main space
+        while (windowWeight > windowMax) {
+            Node<K, V> candidate = window.peekFirst();
+            if (candidate == null) {
+                break;
+            }
+            window.remove(candidate);
+            windowWeight -= candidate.weight;
+            candidate.queue = PROBATION;
+            probation.addLast(candidate);
+            probationWeight += candidate.weight;
+            admit(candidate);
+        }
+        // Replacing a value with a heavier one can still leave the cache over its bound
+        while (weightedSize() > maxWeight) {
+            Node<K, V> victim = probation.peekFirst();
+            if (victim == null) {
+                victim = protectedQueue.peekFirst();
+            }
+            if (victim == null) {
+                victim = window.peekFirst();
+            }
+            evictNode(victim);
+        }
+    }
+
+    // Keep the more frequently used of the candidate and the main space's LRU entries until under the bound
+    private void admit(Node<K, V> candidate) {
+        while (weightedSize() > maxWeight) {
+            Node<K, V> victim = probation.peekFirst();
+            if (victim == candidate) {
+                victim = candidate.next != probation.head ? candidate.next : protectedQueue.peekFirst();
+            }
+            if (victim == null) {
+                evictNode(candidate);
+                return;
+            }
+            if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                evictNode(victim);
+            } else {
+                evictNode(candidate);
+                return;
+            }
+        }
+    }
+
+    // Entries are written in roughly LRU order, so checking the queue heads finds most expired entries cheaply
+    private void expireHeads(long now) {
+        if (ttlNanos == 0) {
+            return;
+        }
+        expireHead(window, now);
+        expireHead(probation, now);
+        expireHead(protectedQueue, now);
+    }
+
+    private void expireHead(AccessQueue<K, V> queue, long now) {
+        Node<K, V> node;
+        while ((node = queue.peekFirst()) != null && isExpired(node, now)) {
+            removeNode(node);
+            expirations.increment();
+        }
+    }
+
+    private boolean isExpired(Node<K, V> node, long now) {
+        return ttlNanos != 0 && now - node.writeTime >= ttlNanos;
+    }
+
+    private void evictNode(Node<K, V> node) {
+        removeNode(node);
+        evictions.increment();
+    }
+
+    private void removeNode(Node<K, V> node) {
+        data.remove(node.key);
+        adjustWeight(node, -node.weight);
+        queueOf(node).remove(node);
+    }
+
+    private void adjustWeight(Node<K, V> node, long delta) {
+        switch (node.queue) {
+            case WINDOW:
+                windowWeight += delta;
+                break;
+            case PROBATION:
+                probationWeight += delta;
+                break;
+            default:
+                protectedWeight += delta;
+                break;
+        }
+    }
+
+    private AccessQueue<K, V> queueOf(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedQueue;
+        }
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        V value;
+        int weight;
+        long writeTime;
+        int queue = WINDOW;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = writeTime;
+        }
+    }
+
+    // Intrusive doubly linked list, least recently used first
+    private static final class AccessQueue<K, V> {
+        final Node<K, V> head = new Node<>(null, null, 0, 0);
+
+        AccessQueue() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        Node<K, V> peekFirst() {
+            return head.next == head ? null : head.next;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+        }
+
+        void remove(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToLast(Node<K, V> node) {
+            remove(node);
+            addLast(node);
+        }
+
+        void clear() {
+            head.prev = head;
+            head.next = head;
+        }
+    }
+}
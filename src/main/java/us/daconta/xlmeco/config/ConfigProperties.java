@@ -0,0 +1,65 @@
+package us.daconta.xlmeco.config;
+
+import java.util.Properties;
+
+/**
+ * Numeric settings read from the server configuration. An unset or blank setting takes its default; a value
+ * that does not parse, or lies below the setting's minimum, is a configuration error that names the key, so
+ * a typo or a stray negative never quietly turns into "disabled", "unlimited" or "expired on write".
+ */
+public final class ConfigProperties {
+
+    private ConfigProperties() { }
+
+    public static int getInt(Properties properties, String key, int defaultValue, int min) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= min) {
+                return parsed;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        throw invalid(key, value, "a whole number >= " + min);
+    }
+
+    public static long getLong(Properties properties, String key, long defaultValue, long min) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed >= min) {
+                return parsed;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        throw invalid(key, value, "a whole number >= " + min);
+    }
+
+    public static double getDouble(Properties properties, String key, double defaultValue, double min) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            double parsed = Double.parseDouble(value.trim());
+            if (parsed >= min && !Double.isInfinite(parsed)) {
+                return parsed;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        throw invalid(key, value, "a finite number >= " + min);
+    }
+
+    private static IllegalArgumentException invalid(String key, String value, String expected) {
+        return new IllegalArgumentException("Invalid " + key + ": " + value.trim() + " (expected " + expected + ")");
+    }
+}
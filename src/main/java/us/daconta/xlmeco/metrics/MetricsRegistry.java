@@ -0,0 +1,46 @@
+package us.daconta.xlmeco.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide registry of named counters and gauges, exported through the getMetrics RPC.
+ * Names are dot separated, e.g. "provider.calls.cancelled" or "http.pool.connections".
+ */
+public class MetricsRegistry {
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    private MetricsRegistry() { }
+
+    // Return the counter with the given name, creating it on first use
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    // Register (or replace) a gauge that is sampled when a snapshot is taken
+    public static void gauge(String name, Supplier<? extends Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public static void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    // Current value of every counter and gauge, sorted by name
+    public static SortedMap<String, Double> snapshot() {
+        SortedMap<String, Double> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, (double) counter.sum()));
+        gauges.forEach((name, gauge) -> {
+            Number value = gauge.get();
+            if (value != null) {
+                snapshot.put(name, value.doubleValue());
+            }
+        });
+        return snapshot;
+    }
+}
@@ -4,6 +4,9 @@ import us.daconta.xlmeco.grpc.ChatRequest;
 import us.daconta.xlmeco.grpc.ChatResponsePart;
 import io.grpc.stub.StreamObserver;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
 public interface ChatProvider extends GenerativeProvider {
 
     // Synchronous chat response (aligned with `syncChat` in protobuf)
@@ -11,4 +14,16 @@ public interface ChatProvider extends GenerativeProvider {
 
     // Asynchronous chat response streaming (aligned with `asyncChat` in protobuf)
     void streamChatResponse(ChatRequest request, StreamObserver<ChatResponsePart> responseObserver) throws Exception;
+
+    // Non-blocking chat response. The default adapter runs generateChatResponse on the provider executor;
+    // HTTP providers override this to complete from OkHttp callbacks.
+    default CompletableFuture<String> generateChatResponseAsync(ChatRequest request) {
+        return ProviderCalls.callAsync(() -> generateChatResponse(request));
+    }
+
+    // Non-blocking token stream that honors subscriber demand. The default adapter runs
+    // streamChatResponse on the provider executor once a subscriber arrives.
+    default Flow.Publisher<ChatResponsePart> streamChatResponseAsync(ChatRequest request) {
+        return ProviderCalls.streamAsync(observer -> streamChatResponse(request, observer));
+    }
 }
@@ -0,0 +1,108 @@
+package us.daconta.xlmeco.provider;
+
+import io.grpc.stub.StreamObserver;
+import us.daconta.xlmeco.grpc.ChatResponsePart;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single-subscriber publisher of streamed chat tokens. The token source is started when the subscriber
+ * arrives and writes into a StreamObserver; tokens are buffered per the subscriber's demand, and a source
+ * that outruns its subscriber blocks in onNext until demand arrives, which pauses the upstream read.
+ */
+public class ChatStreamPublisher implements Flow.Publisher<ChatResponsePart> {
+
+    /**
+     * Starts producing tokens into the observer. The source may produce on the calling thread or
+     * hand off to another thread, and must eventually call onCompleted or onError.
+     */
+    @FunctionalInterface
+    public interface StreamSource {
+        void start(StreamObserver<ChatResponsePart> observer) throws Exception;
+    }
+
+    private final StreamSource source;
+    private final int bufferCapacity;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    public ChatStreamPublisher(StreamSource source) {
+        this(source, Flow.defaultBufferSize());
+    }
+
+    public ChatStreamPublisher(StreamSource source, int bufferCapacity) {
+        this.source = source;
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ChatResponsePart> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) { }
+
+                @Override
+                public void cancel() { }
+            });
+            subscriber.onError(new IllegalStateException("ChatStreamPublisher supports a single subscriber"));
+            return;
+        }
+
+        // Deliver on the producing (or requesting) thread; the publisher serializes signals per subscriber
+        SubmissionPublisher<ChatResponsePart> publisher = new SubmissionPublisher<>(Runnable::run, bufferCapacity);
+        publisher.subscribe(subscriber);
+
+        PublishingObserver observer = new PublishingObserver(publisher);
+        try {
+            source.start(observer);
+        } catch (Exception e) {
+            observer.onError(e);
+        }
+    }
+
+    /**
+     * Bridges the provider's StreamObserver callbacks into the SubmissionPublisher.
+     */
+    private static class PublishingObserver implements StreamObserver<ChatResponsePart> {
+        private final SubmissionPublisher<ChatResponsePart> publisher;
+        private volatile boolean closed;
+
+        PublishingObserver(SubmissionPublisher<ChatResponsePart> publisher) {
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void onNext(ChatResponsePart part) {
+            if (closed) {
+                return;
+            }
+            if (!publisher.hasSubscribers()) {
+                // The subscriber cancelled; abort the source so it closes the upstream response
+                closed = true;
+                publisher.close();
+                throw new CancellationException("Chat stream subscriber cancelled");
+            }
+            // Blocks while the subscriber's buffer is full
+            publisher.submit(part);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (!closed) {
+                closed = true;
+                publisher.closeExceptionally(t);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            if (!closed) {
+                closed = true;
+                publisher.close();
+            }
+        }
+    }
+}
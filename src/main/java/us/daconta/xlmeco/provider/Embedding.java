@@ -0,0 +1,196 @@
+package us.daconta.xlmeco.provider;
+
+import com.google.protobuf.Internal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable embedding vector stored as primitive floats, either in a heap float[] or in a FloatBuffer
+ * (direct or memory-mapped, so large vector sets can live off-heap). Passed through the embedding and
+ * vector database SPIs in place of List&lt;Float&gt; so vectors are never boxed on the embed, upsert and
+ * search path.
+ */
+public final class Embedding {
+    private static final Embedding EMPTY = new Embedding(new float[0], null);
+
+    // Exactly one of the two is set
+    private final float[] array;
+    private final FloatBuffer buffer;
+
+    private Embedding(float[] array, FloatBuffer buffer) {
+        this.array = array;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Wrap the array without copying. The caller hands over the array and must not modify it afterwards.
+     */
+    public static Embedding of(float[] values) {
+        return values.length == 0 ? EMPTY : new Embedding(values, null);
+    }
+
+    public static Embedding copyOf(float[] values) {
+        return of(values.clone());
+    }
+
+    /**
+     * Wrap the remaining floats of the buffer without copying; the embedding reads through a read-only view.
+     */
+    public static Embedding wrap(FloatBuffer values) {
+        return new Embedding(null, values.slice().asReadOnlyBuffer());
+    }
+
+    /**
+     * Copy the values into a direct (off-heap) buffer.
+     */
+    public static Embedding allocateDirect(float[] values) {
+        FloatBuffer direct = ByteBuffer.allocateDirect(values.length * Float.BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        direct.put(values).flip();
+        return new Embedding(null, direct.asReadOnlyBuffer());
+    }
+
+    /**
+     * Copy a list of floats; protobuf repeated float fields are read without boxing.
+     */
+    public static Embedding fromList(List<Float> values) {
+        float[] array = new float[values.size()];
+        if (values instanceof Internal.FloatList) {
+            Internal.FloatList floats = (Internal.FloatList) values;
+            for (int i = 0; i < array.length; i++) {
+                array[i] = floats.getFloat(i);
+            }
+        } else {
+            int i = 0;
+            for (Float value : values) {
+                array[i++] = value;
+            }
+        }
+        return of(array);
+    }
+
+    public static Embedding empty() {
+        return EMPTY;
+    }
+
+    public int dimension() {
+        return array != null ? array.length : buffer.limit();
+    }
+
+    public boolean isEmpty() {
+        return dimension() == 0;
+    }
+
+    public boolean isDirect() {
+        return buffer != null && buffer.isDirect();
+    }
+
+    public float get(int index) {
+        return array != null ? array[index] : buffer.get(index);
+    }
+
+    /**
+     * A new array holding the values.
+     */
+    public float[] toArray() {
+        if (array != null) {
+            return array.clone();
+        }
+        float[] copy = new float[buffer.limit()];
+        buffer.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Copy the values into the destination starting at the offset.
+     */
+    public void copyTo(float[] destination, int offset) {
+        if (array != null) {
+            System.arraycopy(array, 0, destination, offset, array.length);
+        } else {
+            buffer.duplicate().get(destination, offset, buffer.limit());
+        }
+    }
+
+    /**
+     * A read-only buffer view of the values; no copy is made.
+     */
+    public FloatBuffer asFloatBuffer() {
+        return array != null ? FloatBuffer.wrap(array).asReadOnlyBuffer() : buffer.duplicate();
+    }
+
+    /**
+     * An unmodifiable List view for APIs that require List&lt;Float&gt;; values are boxed on access.
+     */
+    public List<Float> asList() {
+        return new FloatListView();
+    }
+
+    public float dot(Embedding other) {
+        checkDimension(other);
+        float sum = 0f;
+        int dimension = dimension();
+        if (array != null && other.array != null) {
+            float[] a = array;
+            float[] b = other.array;
+            for (int i = 0; i < dimension; i++) {
+                sum += a[i] * b[i];
+            }
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                sum += get(i) * other.get(i);
+            }
+        }
+        return sum;
+    }
+
+    public float norm() {
+        return (float) Math.sqrt(dot(this));
+    }
+
+    private void checkDimension(Embedding other) {
+        if (other.dimension() != dimension()) {
+            throw new IllegalArgumentException("Embedding dimensions differ: " + dimension() + " vs " + other.dimension());
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Embedding)) return false;
+        Embedding other = (Embedding) o;
+        if (array != null && other.array != null) {
+            return Arrays.equals(array, other.array);
+        }
+        return asFloatBuffer().equals(other.asFloatBuffer());
+    }
+
+    @Override
+    public int hashCode() {
+        return array != null ? Arrays.hashCode(array) : Arrays.hashCode(toArray());
+    }
+
+    @Override
+    public String toString() {
+        return "Embedding[dimension=" + dimension() + (isDirect() ? ", direct" : "") + "]";
+    }
+
+    private class FloatListView extends AbstractList<Float> implements RandomAccess {
+        @Override
+        public Float get(int index) {
+            return Embedding.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return dimension();
+        }
+    }
+}
@@ -2,10 +2,69 @@ package us.daconta.xlmeco.provider;
 
 import us.daconta.xlmeco.grpc.ModelParameters;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface EmbeddingProvider extends GenerativeProvider {
 
-    // Generate embeddings for a given text
+    // Model used for embeddings; part of the embedding cache key so a model change is never served stale vectors
+    default String getEmbeddingModel() {
+        return "";
+    }
+
+    /**
+     * Generate embeddings for a given text as boxed floats.
+     *
+     * @deprecated boxes every value; {@link #generateEmbeddingVector} and {@link #generateEmbeddingAsync} are
+     * the primary API. Still abstract so existing providers keep compiling; implement it on top of
+     * generateEmbeddingVector.
+     */
+    @Deprecated
     List<Float> generateEmbedding(String text, ModelParameters parameters);
+
+    // Generate embeddings as a primitive vector. Providers that parse responses straight into floats
+    // override this and implement generateEmbedding on top of it.
+    default Embedding generateEmbeddingVector(String text, ModelParameters parameters) {
+        return Embedding.fromList(generateEmbedding(text, parameters));
+    }
+
+    // Non-blocking embedding. The default adapter runs generateEmbeddingVector on the provider executor.
+    default CompletableFuture<Embedding> generateEmbeddingAsync(String text, ModelParameters parameters) {
+        return ProviderCalls.callAsync(() -> generateEmbeddingVector(text, parameters));
+    }
+
+    // Most texts generateEmbeddingsAsync accepts in one call; 1 means the provider has no batch endpoint
+    default int getMaxBatchSize() {
+        return 1;
+    }
+
+    // Token budget of one batched call, as estimated by estimateTokens
+    default int getMaxBatchTokens() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Embeddings for up to getMaxBatchSize() texts, in input order. Providers with a batch endpoint send one
+     * upstream request; the default issues one call per text. The future fails as a whole if the upstream
+     * call fails.
+     */
+    default CompletableFuture<List<Embedding>> generateEmbeddingsAsync(List<String> texts, ModelParameters parameters) {
+        List<CompletableFuture<Embedding>> calls = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            calls.add(generateEmbeddingAsync(text, parameters));
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<Embedding> embeddings = new ArrayList<>(calls.size());
+            for (CompletableFuture<Embedding> call : calls) {
+                embeddings.add(call.join());
+            }
+            return embeddings;
+        });
+    }
+
+    // Rough token count (about four characters per token) used to fill batches without a tokenizer
+    static int estimateTokens(String text) {
+        return (text.length() + 3) / 4;
+    }
 }
@@ -0,0 +1,306 @@
+package us.daconta.xlmeco.provider;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * The endpoints serving one provider URL, configured as a comma separated list, e.g.
+ * {@code ollama.chat_url=http://gpu1:11434/api/chat,http://gpu2:11434/api/chat}.
+ * <p>
+ * Providers build requests with {@link #newRequest()}, which tags them with the pool; the {@link #ROUTING}
+ * interceptor installed on the shared HTTP client then sends each one to an endpoint picked by the
+ * pool's balancer:
+ * <pre>
+ * &lt;provider&gt;.endpoint_balancer=least_outstanding  # fewest requests in flight, or ewma: in flight x latency
+ * &lt;provider&gt;.endpoint_eject_failures=5             # consecutive failures (I/O errors, 5xx) that eject an endpoint
+ * &lt;provider&gt;.endpoint_eject_seconds=30             # ejection time, doubled per repeated ejection up to 8x
+ * </pre>
+ * An ejected endpoint is re-admitted on trial once its time is up: one more failure ejects it again, a
+ * success clears it. If every endpoint is ejected, the one due back first is used rather than failing.
+ * A request counts as in flight until its response body is closed, so long streams weigh on their endpoint.
+ * <p>
+ * Metrics per endpoint, under "endpoint.&lt;provider&gt;.&lt;kind&gt;.&lt;host:port&gt;": gauges ".in_flight",
+ * ".latency_ms" (EWMA of time to response headers) and ".ejected", counters ".requests", ".failures"
+ * and ".ejections".
+ */
+public class EndpointPool {
+    public static final String PROPERTY_BALANCER = "endpoint_balancer";
+    public static final String PROPERTY_EJECT_FAILURES = "endpoint_eject_failures";
+    public static final String PROPERTY_EJECT_SECONDS = "endpoint_eject_seconds";
+
+    public enum Balancer {
+        LEAST_OUTSTANDING, EWMA
+    }
+
+    /**
+     * Application interceptor that routes requests tagged with a pool; other requests pass through.
+     */
+    public static final Interceptor ROUTING = chain -> {
+        Request request = chain.request();
+        EndpointPool pool = request.tag(EndpointPool.class);
+        return pool != null ? pool.route(chain, request) : chain.proceed(request);
+    };
+
+    // Weight of the newest latency sample in the moving average
+    private static final double EWMA_ALPHA = 0.2;
+    private static final int MAX_EJECTION_MULTIPLIER = 8;
+    private static final Logger logger = Logger.getLogger(EndpointPool.class.getName());
+
+    private final String name;
+    private final List<Endpoint> endpoints;
+    private final Balancer balancer;
+    private final int ejectFailures;
+    private final long ejectNanos;
+
+    public EndpointPool(String name, List<String> urls, Balancer balancer, int ejectFailures, long ejectSeconds) {
+        this.name = name;
+        this.balancer = balancer;
+        this.ejectFailures = Math.max(1, ejectFailures);
+        this.ejectNanos = TimeUnit.SECONDS.toNanos(ejectSeconds);
+        List<Endpoint> parsed = new ArrayList<>();
+        for (String url : urls) {
+            parsed.add(new Endpoint(HttpUrl.get(url)));
+        }
+        this.endpoints = List.copyOf(parsed);
+    }
+
+    /**
+     * The pool for the URL property of a provider, e.g. ("openai", "chat", props, "chat_url", null).
+     * The pool is empty when the property is not set and no default is given.
+     */
+    public static EndpointPool fromProperties(String providerName, String kind, Properties providerProperties,
+                                              String urlProperty, String defaultUrl) {
+        List<String> urls = new ArrayList<>();
+        String value = providerProperties.getProperty(urlProperty, defaultUrl);
+        if (value != null) {
+            for (String url : value.split(",")) {
+                if (!url.isBlank()) {
+                    urls.add(url.trim());
+                }
+            }
+        }
+        String balancer = providerProperties.getProperty(PROPERTY_BALANCER, "least_outstanding").trim();
+        return new EndpointPool(providerName + "." + kind, urls,
+                "ewma".equalsIgnoreCase(balancer) ? Balancer.EWMA : Balancer.LEAST_OUTSTANDING,
+                ConfigProperties.getInt(providerProperties, PROPERTY_EJECT_FAILURES, 5, 1),
+                ConfigProperties.getInt(providerProperties, PROPERTY_EJECT_SECONDS, 30, 0));
+    }
+
+    /**
+     * A request builder addressed to the pool; the endpoint is chosen when the call is made.
+     */
+    public Request.Builder newRequest() {
+        if (endpoints.isEmpty()) {
+            throw new IllegalStateException("No URL configured for " + name);
+        }
+        return new Request.Builder().url(endpoints.get(0).url).tag(EndpointPool.class, this);
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    private Response route(Interceptor.Chain chain, Request request) throws IOException {
+        Endpoint endpoint = pick();
+        endpoint.inFlight.incrementAndGet();
+        endpoint.requests.increment();
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request.newBuilder().url(endpoint.url).build());
+        } catch (IOException | RuntimeException e) {
+            endpoint.inFlight.decrementAndGet();
+            // A cancelled call (client gone, hedge lost) says nothing about the endpoint
+            if (!chain.call().isCanceled()) {
+                endpoint.failed();
+            }
+            throw e;
+        }
+        endpoint.observe(System.nanoTime() - start);
+        if (response.code() >= 500) {
+            endpoint.failed();
+        } else {
+            endpoint.succeeded();
+        }
+        ResponseBody body = response.body();
+        if (body == null) {
+            endpoint.inFlight.decrementAndGet();
+            return response;
+        }
+        return response.newBuilder().body(new InFlightBody(body, endpoint)).build();
+    }
+
+    private Endpoint pick() {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        }
+        long now = System.nanoTime();
+        // Start at a random endpoint so ties do not all go to the first one
+        int offset = ThreadLocalRandom.current().nextInt(endpoints.size());
+        Endpoint best = null;
+        double bestScore = Double.MAX_VALUE;
+        Endpoint dueFirst = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get((offset + i) % endpoints.size());
+            if (!endpoint.isAvailable(now)) {
+                if (dueFirst == null || endpoint.ejectedUntil() - dueFirst.ejectedUntil() < 0) {
+                    dueFirst = endpoint;
+                }
+                continue;
+            }
+            double score = balancer == Balancer.EWMA
+                    ? (endpoint.inFlight.get() + 1) * endpoint.latencyNanos
+                    : endpoint.inFlight.get();
+            if (score < bestScore) {
+                best = endpoint;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : dueFirst;
+    }
+
+    private final class Endpoint {
+        private final HttpUrl url;
+        private final String label;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // Unmeasured endpoints score 0 under EWMA, so each gets tried early
+        private volatile double latencyNanos;
+        private final LongAdder requests;
+        private final LongAdder failures;
+        private final LongAdder ejections;
+        private int consecutiveFailures;
+        private int ejectionStreak;
+        private boolean ejected;
+        private long ejectedUntil;
+
+        Endpoint(HttpUrl url) {
+            this.url = url;
+            this.label = url.host() + ":" + url.port();
+            String prefix = "endpoint." + name + "." + label + ".";
+            this.requests = MetricsRegistry.counter(prefix + "requests");
+            this.failures = MetricsRegistry.counter(prefix + "failures");
+            this.ejections = MetricsRegistry.counter(prefix + "ejections");
+            MetricsRegistry.gauge(prefix + "in_flight", inFlight::get);
+            MetricsRegistry.gauge(prefix + "latency_ms", () -> latencyNanos / 1_000_000.0);
+            MetricsRegistry.gauge(prefix + "ejected", () -> isEjected() ? 1 : 0);
+        }
+
+        synchronized boolean isAvailable(long now) {
+            if (ejected && now - ejectedUntil >= 0) {
+                // Back on trial: the next failure ejects it again
+                ejected = false;
+                consecutiveFailures = ejectFailures - 1;
+                logger.info(() -> "Re-admitting endpoint " + label + " of " + name);
+            }
+            return !ejected;
+        }
+
+        synchronized boolean isEjected() {
+            return ejected;
+        }
+
+        synchronized long ejectedUntil() {
+            return ejectedUntil;
+        }
+
+        synchronized void observe(long nanos) {
+            latencyNanos = latencyNanos == 0 ? nanos : latencyNanos + EWMA_ALPHA * (nanos - latencyNanos);
+        }
+
+        synchronized void succeeded() {
+            consecutiveFailures = 0;
+            ejectionStreak = 0;
+        }
+
+        synchronized void failed() {
+            failures.increment();
+            if (ejected || ++consecutiveFailures < ejectFailures) {
+                return;
+            }
+            ejected = true;
+            ejectionStreak = Math.min(MAX_EJECTION_MULTIPLIER, ejectionStreak == 0 ? 1 : ejectionStreak * 2);
+            ejectedUntil = System.nanoTime() + ejectNanos * ejectionStreak;
+            ejections.increment();
+            int multiplier = ejectionStreak;
+            logger.warning(() -> "Ejecting endpoint " + label + " of " + name + " for "
+                    + TimeUnit.NANOSECONDS.toSeconds(ejectNanos * multiplier) + "s after " + consecutiveFailures + " failures");
+        }
+    }
+
+    /**
+     * Response body that keeps its endpoint's request in flight until the body is closed.
+     */
+    private static final class InFlightBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final Endpoint endpoint;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private BufferedSource source;
+
+        InFlightBody(ResponseBody delegate, Endpoint endpoint) {
+            this.delegate = delegate;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public synchronized BufferedSource source() {
+            if (source == null) {
+                source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            release();
+                        }
+                    }
+                });
+            }
+            return source;
+        }
+
+        @Override
+        public void close() {
+            try {
+                delegate.close();
+            } finally {
+                release();
+            }
+        }
+
+        private void release() {
+            if (closed.compareAndSet(false, true)) {
+                endpoint.inFlight.decrementAndGet();
+            }
+        }
+    }
+}
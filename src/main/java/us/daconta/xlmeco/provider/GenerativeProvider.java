@@ -53,4 +53,7 @@ public interface GenerativeProvider {
 
     // You can add more advanced capabilities here (assistants, agents, etc.)
     boolean supportsAgents();
+
+    // Release long-lived clients and channels; called once when the server shuts down
+    default void shutdown() { }
 }
@@ -1,17 +1,53 @@
 package us.daconta.xlmeco.provider;
 
+import okhttp3.OkHttpClient;
 import us.daconta.xlmeco.GrpcXlmServer;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.ServiceLoader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 public class GenerativeProviderFactory {
 
     private static final Logger logger = Logger.getLogger(GenerativeProviderFactory.class.getName());
     private static ServiceLoader<GenerativeProvider> loader = ServiceLoader.load(GenerativeProvider.class);
+    // Executor for async adapters and OkHttp callbacks; set by the server before providers are loaded
+    private static volatile ExecutorService providerExecutor;
+
+    public static void setProviderExecutor(ExecutorService executor) {
+        providerExecutor = executor;
+    }
+
+    public static ExecutorService getProviderExecutor() {
+        ExecutorService executor = providerExecutor;
+        if (executor == null) {
+            synchronized (GenerativeProviderFactory.class) {
+                if (providerExecutor == null) {
+                    AtomicInteger counter = new AtomicInteger();
+                    providerExecutor = Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "xlm-provider-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                executor = providerExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * The HTTP client shared by all providers. Derive per-provider variants with newBuilder() so the
+     * connection pool and dispatcher stay shared.
+     */
+    public static OkHttpClient getHttpClient() {
+        return HttpClientRegistry.getClient();
+    }
 
     public static GenerativeProvider getProvider(String providerName) {
         for (GenerativeProvider provider : loader) {
@@ -24,6 +60,12 @@ public class GenerativeProviderFactory {
 
     public static Map<String, GenerativeProvider> loadProviders(Properties properties) {
         Map<String, GenerativeProvider> providers = new HashMap<>();
+        try {
+            HttpClientRegistry.configure(filterPropertiesForPrefix(properties, "http."));
+        } catch (IllegalArgumentException e) {
+            // The registry sees its keys without the prefix; put it back so the message names the real property
+            throw new IllegalArgumentException("http.* settings: " + e.getMessage(), e);
+        }
 
         for (GenerativeProvider provider : loader) {
             String providerName = provider.getProviderName().toLowerCase();
@@ -31,7 +73,11 @@ public class GenerativeProviderFactory {
             Properties providerProps = filterPropertiesForPrefix(properties, providerName + ".");
 
             if (!providerProps.isEmpty()) {
-                provider.initialize(providerProps);  // Initialize with filtered properties
+                try {
+                    provider.initialize(providerProps);  // Initialize with filtered properties
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(providerName + ".* settings: " + e.getMessage(), e);
+                }
                 providers.put(providerName, provider);
             } else {
                 logger.info("Provider properties are empty for: " + providerName);
@@ -40,6 +86,20 @@ public class GenerativeProviderFactory {
         return providers;
     }
 
+    /**
+     * Shut down every loaded provider and the shared HTTP client; called from the server shutdown hook.
+     */
+    public static void shutdownProviders() {
+        for (GenerativeProvider provider : loader) {
+            try {
+                provider.shutdown();
+            } catch (Exception e) {
+                logger.warning("Error shutting down provider " + provider.getProviderName() + ": " + e.getMessage());
+            }
+        }
+        HttpClientRegistry.shutdown();
+    }
+
     public static Properties filterPropertiesForPrefix(Properties properties, String prefix) {
         Properties filteredProps = new Properties();
 
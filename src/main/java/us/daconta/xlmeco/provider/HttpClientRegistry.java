@@ -0,0 +1,132 @@
+package us.daconta.xlmeco.provider;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import us.daconta.xlmeco.config.ConfigProperties;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Owns the OkHttpClient shared by all generative providers, so that every provider reuses one connection
+ * pool (warm TLS sessions, HTTP/2 multiplexing) and one dispatcher. Providers that need different timeouts
+ * derive a client with {@code getClient().newBuilder()}, which keeps the shared pool and dispatcher.
+ * Configured from the http.* properties:
+ * <pre>
+ * http.max_requests=1024            # concurrent calls across all hosts
+ * http.max_requests_per_host=256    # concurrent calls per upstream host
+ * http.max_idle_connections=32      # idle connections kept in the pool
+ * http.keep_alive_seconds=300       # how long an idle connection is kept
+ * http.connect_timeout_seconds=10
+ * http.read_timeout_seconds=120
+ * http.ping_interval_seconds=30     # HTTP/2 keep-alive pings (0 disables)
+ * http.protocols=h2,http/1.1        # h2 is negotiated via ALPN where the endpoint supports it
+ * </pre>
+ */
+public class HttpClientRegistry {
+    public static final String PROPERTY_MAX_REQUESTS = "max_requests";
+    public static final String PROPERTY_MAX_REQUESTS_PER_HOST = "max_requests_per_host";
+    public static final String PROPERTY_MAX_IDLE_CONNECTIONS = "max_idle_connections";
+    public static final String PROPERTY_KEEP_ALIVE_SECONDS = "keep_alive_seconds";
+    public static final String PROPERTY_CONNECT_TIMEOUT_SECONDS = "connect_timeout_seconds";
+    public static final String PROPERTY_READ_TIMEOUT_SECONDS = "read_timeout_seconds";
+    public static final String PROPERTY_PING_INTERVAL_SECONDS = "ping_interval_seconds";
+    public static final String PROPERTY_PROTOCOLS = "protocols";
+
+    private static final Logger logger = Logger.getLogger(HttpClientRegistry.class.getName());
+    private static volatile OkHttpClient sharedClient;
+
+    private HttpClientRegistry() { }
+
+    /**
+     * Build the shared client from the http.* properties (with the prefix already removed).
+     * Must be called before providers are initialized; later calls replace the client for new callers only.
+     */
+    public static synchronized void configure(Properties httpProperties) {
+        int maxRequests = ConfigProperties.getInt(httpProperties, PROPERTY_MAX_REQUESTS, 1024, 1);
+        int maxRequestsPerHost = ConfigProperties.getInt(httpProperties, PROPERTY_MAX_REQUESTS_PER_HOST, 256, 1);
+        int maxIdleConnections = ConfigProperties.getInt(httpProperties, PROPERTY_MAX_IDLE_CONNECTIONS, 32, 0);
+        int keepAliveSeconds = ConfigProperties.getInt(httpProperties, PROPERTY_KEEP_ALIVE_SECONDS, 300, 1);
+        int connectTimeoutSeconds = ConfigProperties.getInt(httpProperties, PROPERTY_CONNECT_TIMEOUT_SECONDS, 10, 0);
+        int readTimeoutSeconds = ConfigProperties.getInt(httpProperties, PROPERTY_READ_TIMEOUT_SECONDS, 120, 0);
+        int pingIntervalSeconds = ConfigProperties.getInt(httpProperties, PROPERTY_PING_INTERVAL_SECONDS, 30, 0);
+        List<Protocol> protocols = parseProtocols(httpProperties.getProperty(PROPERTY_PROTOCOLS, "h2,http/1.1"));
+
+        // Enqueued calls and their callbacks run on the provider executor (virtual threads when available)
+        Dispatcher dispatcher = new Dispatcher(GenerativeProviderFactory.getProviderExecutor());
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        ConnectionPool connectionPool = new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS);
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(connectionPool)
+                .protocols(protocols)
+                .connectTimeout(Duration.ofSeconds(connectTimeoutSeconds))
+                .readTimeout(Duration.ofSeconds(readTimeoutSeconds))
+                .pingInterval(Duration.ofSeconds(pingIntervalSeconds))
+                .eventListenerFactory(ProviderCalls.CONTEXT_PROPAGATION)
+                .addInterceptor(EndpointPool.ROUTING)
+                .build();
+
+        MetricsRegistry.gauge("http.pool.connections", connectionPool::connectionCount);
+        MetricsRegistry.gauge("http.pool.idle_connections", connectionPool::idleConnectionCount);
+        MetricsRegistry.gauge("http.dispatcher.running_calls", dispatcher::runningCallsCount);
+        MetricsRegistry.gauge("http.dispatcher.queued_calls", dispatcher::queuedCallsCount);
+
+        sharedClient = client;
+        logger.info(() -> "Configured shared HTTP client: protocols=" + protocols + ", maxRequests=" + maxRequests
+                + ", maxRequestsPerHost=" + maxRequestsPerHost + ", maxIdleConnections=" + maxIdleConnections
+                + ", keepAliveSeconds=" + keepAliveSeconds);
+    }
+
+    /**
+     * The shared client, configured with defaults if configure() was never called.
+     */
+    public static OkHttpClient getClient() {
+        OkHttpClient client = sharedClient;
+        if (client == null) {
+            synchronized (HttpClientRegistry.class) {
+                if (sharedClient == null) {
+                    configure(new Properties());
+                }
+                client = sharedClient;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Close idle connections and stop accepting calls; used on server shutdown.
+     */
+    public static synchronized void shutdown() {
+        OkHttpClient client = sharedClient;
+        if (client != null) {
+            client.dispatcher().cancelAll();
+            client.connectionPool().evictAll();
+        }
+    }
+
+    private static List<Protocol> parseProtocols(String value) {
+        List<Protocol> protocols = new ArrayList<>();
+        for (String name : value.split(",")) {
+            try {
+                protocols.add(Protocol.get(name.trim()));
+            } catch (Exception e) {
+                logger.warning(() -> "Ignoring unknown HTTP protocol: " + name);
+            }
+        }
+        if (!protocols.contains(Protocol.HTTP_1_1) && !protocols.contains(Protocol.H2_PRIOR_KNOWLEDGE)) {
+            // OkHttp requires http/1.1 unless h2 prior knowledge is used alone
+            protocols.add(Protocol.HTTP_1_1);
+        }
+        return protocols;
+    }
+}
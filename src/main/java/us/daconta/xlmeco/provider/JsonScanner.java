@@ -0,0 +1,523 @@
+package us.daconta.xlmeco.provider;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal JSON scanner that locates a value by key path inside a UTF-8 byte range without building a DOM.
+ * Used on provider hot paths (streamed token chunks) where only one or two fields of each document matter.
+ * A path is a sequence of object keys and array indexes, e.g. choices / 0 / delta / content.
+ */
+public final class JsonScanner {
+
+    /**
+     * A pre-compiled key path; numeric segments select array elements, all others object keys.
+     */
+    public static final class Path {
+        private final byte[][] keys;
+        private final int[] indexes;
+        private final String text;
+
+        private Path(String... segments) {
+            keys = new byte[segments.length][];
+            indexes = new int[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (!segment.isEmpty() && segment.chars().allMatch(Character::isDigit)) {
+                    indexes[i] = Integer.parseInt(segment);
+                } else {
+                    indexes[i] = -1;
+                    keys[i] = segment.getBytes(StandardCharsets.UTF_8);
+                }
+            }
+            text = String.join(".", segments);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Receives the byte range of each element of an array.
+     */
+    @FunctionalInterface
+    public interface ElementVisitor {
+        void visit(int index, int start, int end) throws IOException;
+    }
+
+    private JsonScanner() { }
+
+    public static Path path(String... segments) {
+        return new Path(segments);
+    }
+
+    /**
+     * Position of the first byte of the value at the path, or -1 if the path does not exist.
+     */
+    public static int find(byte[] b, int pos, int end, Path path) throws IOException {
+        int p = skipWhitespace(b, pos, end);
+        for (int depth = 0; depth < path.indexes.length; depth++) {
+            if (p >= end) {
+                return -1;
+            }
+            if (b[p] == '{' && path.keys[depth] != null) {
+                p = findKey(b, p, end, path.keys[depth]);
+            } else if (b[p] == '[' && path.indexes[depth] >= 0) {
+                p = findIndex(b, p, end, path.indexes[depth]);
+            } else {
+                return -1;
+            }
+            if (p < 0) {
+                return -1;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Whether the value at the position is the literal true.
+     */
+    public static boolean isTrue(byte[] b, int pos, int end) {
+        return pos >= 0 && pos + 4 <= end && b[pos] == 't' && b[pos + 1] == 'r' && b[pos + 2] == 'u' && b[pos + 3] == 'e';
+    }
+
+    /**
+     * Decode the string value at the position, or return null if the value is not a string.
+     * Strings without escapes are decoded straight from the input bytes.
+     */
+    public static String readString(byte[] b, int pos, int end, Scratch scratch) throws IOException {
+        if (pos < 0 || pos >= end || b[pos] != '"') {
+            return null;
+        }
+        int start = pos + 1;
+        int p = start;
+        while (p < end) {
+            byte c = b[p];
+            if (c == '"') {
+                return new String(b, start, p - start, StandardCharsets.UTF_8);
+            }
+            if (c == '\\') {
+                return unescape(b, start, end, scratch);
+            }
+            p++;
+        }
+        throw malformed("unterminated string");
+    }
+
+    /**
+     * Parse the numeric array at the path straight into a float[]; used for embeddings so that thousands of
+     * values are never boxed or held in a DOM.
+     */
+    public static float[] readFloatArray(byte[] b, Path path) throws IOException {
+        int pos = find(b, 0, b.length, path);
+        if (pos < 0) {
+            throw new IOException("Missing numeric array: " + path);
+        }
+        return readFloatArray(b, pos, b.length);
+    }
+
+    /**
+     * Parse the numeric array starting at the position into a float[].
+     */
+    public static float[] readFloatArray(byte[] b, int pos, int end) throws IOException {
+        if (pos >= end || b[pos] != '[') {
+            throw malformed("expected numeric array");
+        }
+        // Size the result exactly: a flat numeric array has one comma between each pair of values
+        int close = pos + 1;
+        int commas = 0;
+        while (close < end && b[close] != ']') {
+            byte c = b[close];
+            if (c == ',') {
+                commas++;
+            } else if (c == '[' || c == '{' || c == '"') {
+                throw malformed("expected numeric array");
+            }
+            close++;
+        }
+        if (close >= end) {
+            throw malformed("unterminated array");
+        }
+        int p = skipWhitespace(b, pos + 1, close);
+        if (p == close) {
+            return new float[0];
+        }
+
+        float[] values = new float[commas + 1];
+        for (int i = 0; i < values.length; i++) {
+            p = skipWhitespace(b, p, close);
+            int numberEnd = skipValue(b, p, close);
+            values[i] = (float) parseNumber(b, p, numberEnd);
+            p = skipWhitespace(b, numberEnd, close);
+            if (p < close && b[p] == ',') {
+                p++;
+            }
+        }
+        return values;
+    }
+
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Parse a JSON number. A mantissa of at most 2^53 with a power of ten up to 22 (the shape of every
+     * embedding value) is exact as a double, as is 10^k, so mantissa / 10^k is correctly rounded; anything
+     * else falls back to Double.parseDouble.
+     */
+    static double parseNumber(byte[] b, int start, int end) throws IOException {
+        int p = start;
+        boolean negative = p < end && b[p] == '-';
+        if (negative) {
+            p++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenDigit = false;
+        while (p < end && b[p] >= '0' && b[p] <= '9') {
+            if (mantissa != 0 || b[p] != '0') {
+                mantissa = mantissa * 10 + (b[p] - '0');
+                digits++;
+            }
+            seenDigit = true;
+            p++;
+        }
+        if (p < end && b[p] == '.') {
+            p++;
+            while (p < end && b[p] >= '0' && b[p] <= '9') {
+                if (mantissa != 0 || b[p] != '0') {
+                    mantissa = mantissa * 10 + (b[p] - '0');
+                    digits++;
+                }
+                scale++;
+                seenDigit = true;
+                p++;
+            }
+        }
+        int exponent = 0;
+        if (p < end && (b[p] == 'e' || b[p] == 'E')) {
+            p++;
+            boolean negativeExponent = p < end && b[p] == '-';
+            if (p < end && (b[p] == '-' || b[p] == '+')) {
+                p++;
+            }
+            int exponentStart = p;
+            while (p < end && b[p] >= '0' && b[p] <= '9' && p - exponentStart < 6) {
+                exponent = exponent * 10 + (b[p] - '0');
+                p++;
+            }
+            if (p == exponentStart) {
+                throw malformed("invalid number");
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+        if (!seenDigit || p != end) {
+            return parseNumberSlow(b, start, end);
+        }
+
+        int power = exponent - scale;
+        double value;
+        // 18 digits cannot overflow the long; above 2^53 the long to double conversion would round first
+        if (digits > 18 || mantissa > MAX_EXACT_MANTISSA || power < -22 || power > 22) {
+            return parseNumberSlow(b, start, end);
+        } else if (power < 0) {
+            value = mantissa / POWERS_OF_TEN[-power];
+        } else {
+            value = mantissa * POWERS_OF_TEN[power];
+        }
+        return negative ? -value : value;
+    }
+
+    private static double parseNumberSlow(byte[] b, int start, int end) throws IOException {
+        try {
+            return Double.parseDouble(new String(b, start, end - start, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw malformed("invalid number");
+        }
+    }
+
+    /**
+     * Call the visitor with each element of the array starting at the position, in order; used to walk
+     * large result arrays (batched embeddings) in one pass.
+     */
+    public static void forEachElement(byte[] b, int pos, int end, ElementVisitor visitor) throws IOException {
+        if (pos >= end || b[pos] != '[') {
+            throw malformed("expected array");
+        }
+        int p = pos + 1;
+        for (int i = 0; ; i++) {
+            p = skipWhitespace(b, p, end);
+            if (p >= end) {
+                throw malformed("unterminated array");
+            }
+            if (b[p] == ']') {
+                return;
+            }
+            int elementEnd = skipValue(b, p, end);
+            visitor.visit(i, p, elementEnd);
+            p = skipWhitespace(b, elementEnd, end);
+            if (p < end && b[p] == ',') {
+                p++;
+            } else if (p < end && b[p] == ']') {
+                return;
+            } else {
+                throw malformed("expected ',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Parse the integer value at the position.
+     */
+    public static int readInt(byte[] b, int pos, int end) throws IOException {
+        int valueEnd = skipValue(b, pos, end);
+        try {
+            return Integer.parseInt(new String(b, pos, valueEnd - pos, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw malformed("invalid integer");
+        }
+    }
+
+    /**
+     * Position just past the value starting at the position.
+     */
+    public static int skipValue(byte[] b, int pos, int end) throws IOException {
+        if (pos >= end) {
+            throw malformed("missing value");
+        }
+        byte c = b[pos];
+        if (c == '"') {
+            return skipString(b, pos, end);
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            int p = pos;
+            while (p < end) {
+                c = b[p];
+                if (c == '"') {
+                    p = skipString(b, p, end);
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        return p + 1;
+                    }
+                }
+                p++;
+            }
+            throw malformed("unterminated " + (b[pos] == '{' ? "object" : "array"));
+        }
+        // Number, true, false or null
+        int p = pos;
+        while (p < end) {
+            c = b[p];
+            if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+                break;
+            }
+            p++;
+        }
+        return p;
+    }
+
+    public static int skipWhitespace(byte[] b, int pos, int end) {
+        while (pos < end && isWhitespace(b[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int findKey(byte[] b, int pos, int end, byte[] key) throws IOException {
+        int p = pos + 1;
+        while (true) {
+            p = skipWhitespace(b, p, end);
+            if (p >= end) {
+                throw malformed("unterminated object");
+            }
+            if (b[p] == '}') {
+                return -1;
+            }
+            if (b[p] != '"') {
+                throw malformed("expected key");
+            }
+            int keyStart = p + 1;
+            p = skipString(b, p, end);
+            boolean match = matches(b, keyStart, p - 1, key);
+            p = skipWhitespace(b, p, end);
+            if (p >= end || b[p] != ':') {
+                throw malformed("expected ':'");
+            }
+            p = skipWhitespace(b, p + 1, end);
+            if (match) {
+                return p;
+            }
+            p = skipWhitespace(b, skipValue(b, p, end), end);
+            if (p < end && b[p] == ',') {
+                p++;
+            } else if (p < end && b[p] == '}') {
+                return -1;
+            } else {
+                throw malformed("expected ',' or '}'");
+            }
+        }
+    }
+
+    private static int findIndex(byte[] b, int pos, int end, int index) throws IOException {
+        int p = pos + 1;
+        for (int i = 0; ; i++) {
+            p = skipWhitespace(b, p, end);
+            if (p >= end) {
+                throw malformed("unterminated array");
+            }
+            if (b[p] == ']') {
+                return -1;
+            }
+            if (i == index) {
+                return p;
+            }
+            p = skipWhitespace(b, skipValue(b, p, end), end);
+            if (p < end && b[p] == ',') {
+                p++;
+            } else if (p < end && b[p] == ']') {
+                return -1;
+            } else {
+                throw malformed("expected ',' or ']'");
+            }
+        }
+    }
+
+    private static boolean matches(byte[] b, int start, int end, byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (b[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipString(byte[] b, int pos, int end) throws IOException {
+        int p = pos + 1;
+        while (p < end) {
+            byte c = b[p];
+            if (c == '\\') {
+                p += 2;
+            } else if (c == '"') {
+                return p + 1;
+            } else {
+                p++;
+            }
+        }
+        throw malformed("unterminated string");
+    }
+
+    private static String unescape(byte[] b, int start, int end, Scratch scratch) throws IOException {
+        byte[] out = scratch.bytes(end - start);
+        int n = 0;
+        int p = start;
+        while (p < end) {
+            byte c = b[p++];
+            if (c == '"') {
+                return new String(out, 0, n, StandardCharsets.UTF_8);
+            }
+            if (c != '\\') {
+                out[n++] = c;
+                continue;
+            }
+            if (p >= end) {
+                break;
+            }
+            byte escaped = b[p++];
+            switch (escaped) {
+                case 'n': out[n++] = '\n'; break;
+                case 't': out[n++] = '\t'; break;
+                case 'r': out[n++] = '\r'; break;
+                case 'b': out[n++] = '\b'; break;
+                case 'f': out[n++] = '\f'; break;
+                case 'u': {
+                    int codePoint = hex4(b, p, end);
+                    p += 4;
+                    if (Character.isHighSurrogate((char) codePoint) && p + 6 <= end && b[p] == '\\' && b[p + 1] == 'u') {
+                        int low = hex4(b, p + 2, end);
+                        if (Character.isLowSurrogate((char) low)) {
+                            codePoint = Character.toCodePoint((char) codePoint, (char) low);
+                            p += 6;
+                        }
+                    }
+                    n = writeUtf8(out, n, codePoint);
+                    break;
+                }
+                default: out[n++] = escaped; // \" \\ \/
+            }
+        }
+        throw malformed("unterminated string");
+    }
+
+    private static int hex4(byte[] b, int pos, int end) throws IOException {
+        if (pos + 4 > end) {
+            throw malformed("truncated unicode escape");
+        }
+        int value = 0;
+        for (int i = pos; i < pos + 4; i++) {
+            int digit = Character.digit(b[i], 16);
+            if (digit < 0) {
+                throw malformed("invalid unicode escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static int writeUtf8(byte[] out, int n, int codePoint) {
+        // An escape is at least 6 input bytes and never produces more than 4 output bytes
+        if (codePoint < 0x80) {
+            out[n++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            out[n++] = (byte) (0xC0 | (codePoint >> 6));
+            out[n++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            out[n++] = (byte) (0xE0 | (codePoint >> 12));
+            out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            out[n++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            out[n++] = (byte) (0xF0 | (codePoint >> 18));
+            out[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            out[n++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return n;
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static IOException malformed(String reason) {
+        return new IOException("Malformed JSON: " + reason);
+    }
+
+    /**
+     * Reusable byte buffer for decoding; one per reader, never shared between threads.
+     */
+    public static final class Scratch {
+        private byte[] buffer = new byte[256];
+
+        public byte[] bytes(int capacity) {
+            if (buffer.length < capacity) {
+                buffer = new byte[Math.max(capacity, buffer.length * 2)];
+            }
+            return buffer;
+        }
+    }
+}
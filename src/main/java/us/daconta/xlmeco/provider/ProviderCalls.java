@@ -0,0 +1,206 @@
+package us.daconta.xlmeco.provider;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.stub.StreamObserver;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.EventListener;
+import okhttp3.Response;
+import us.daconta.xlmeco.grpc.ChatResponsePart;
+import us.daconta.xlmeco.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Helpers that turn provider calls into CompletableFutures and token publishers. Blocking calls are
+ * adapted by running them on the provider executor; OkHttp calls are enqueued and completed from callbacks.
+ * Both carry the caller's gRPC Context, so a cancelled or expired RPC cancels the upstream HTTP call.
+ */
+public class ProviderCalls {
+    private static final LongAdder callsCancelled = MetricsRegistry.counter("provider.calls.cancelled");
+    private static final LongAdder callsDeadlineExceeded = MetricsRegistry.counter("provider.calls.deadline_exceeded");
+
+    /**
+     * OkHttp event listener factory that binds every new call to the gRPC Context current when the call is
+     * created: cancelling the context (client cancel or deadline) cancels the call, and enqueued calls get an
+     * OkHttp call timeout matching the remaining deadline. Install it on every provider OkHttpClient.
+     */
+    public static final EventListener.Factory CONTEXT_PROPAGATION = ContextBoundCall::new;
+
+    /**
+     * Reads a complete HTTP response into a result.
+     */
+    @FunctionalInterface
+    public interface ResponseHandler<T> {
+        T handle(Response response) throws Exception;
+    }
+
+    /**
+     * Reads a streaming HTTP response, writing tokens to the observer. The reader must not complete the
+     * observer; that is done once the body has been consumed.
+     */
+    @FunctionalInterface
+    public interface StreamReader {
+        void read(Response response, StreamObserver<ChatResponsePart> observer) throws Exception;
+    }
+
+    private ProviderCalls() { }
+
+    /**
+     * True if the context was cancelled because its deadline expired, rather than by the client.
+     */
+    public static boolean isDeadlineExceeded(Context context) {
+        return context.isCancelled() && context.cancellationCause() instanceof TimeoutException;
+    }
+
+    /**
+     * Run a blocking call on the provider executor.
+     */
+    public static <T> CompletableFuture<T> callAsync(Callable<T> callable) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        GenerativeProviderFactory.getProviderExecutor().execute(Context.current().wrap(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(callable.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Run a blocking streaming call on the provider executor.
+     */
+    public static Flow.Publisher<ChatResponsePart> streamAsync(ChatStreamPublisher.StreamSource blockingSource) {
+        return new ChatStreamPublisher(observer -> GenerativeProviderFactory.getProviderExecutor().execute(Context.current().wrap(() -> {
+            try {
+                blockingSource.start(observer);
+            } catch (Throwable t) {
+                observer.onError(t);
+            }
+        })));
+    }
+
+    /**
+     * Enqueue the call and complete the future from the OkHttp callback. Cancelling the future cancels the call.
+     */
+    public static <T> CompletableFuture<T> enqueue(Call call, ResponseHandler<T> handler) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+        });
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call failedCall, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call completedCall, Response response) {
+                try (response) {
+                    future.complete(handler.handle(response));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Enqueue a streaming call; the response body is read on the OkHttp dispatcher when the subscriber arrives.
+     */
+    public static Flow.Publisher<ChatResponsePart> enqueueStream(Call call, StreamReader reader) {
+        return new ChatStreamPublisher(observer -> call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call failedCall, IOException e) {
+                observer.onError(e);
+            }
+
+            @Override
+            public void onResponse(Call completedCall, Response response) {
+                try (response) {
+                    reader.read(response, observer);
+                    observer.onCompleted();
+                } catch (Throwable t) {
+                    observer.onError(t);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Per-call listener that ties an OkHttp call to the gRPC Context it was created in.
+     */
+    private static class ContextBoundCall extends EventListener implements Context.CancellationListener {
+        private final Call call;
+        private final Context context;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        ContextBoundCall(Call call) {
+            // Invoked while OkHttp is still constructing the call, so only capture the context here
+            this.call = call;
+            this.context = Context.current();
+        }
+
+        @Override
+        public void callStart(Call call) {
+            // Enqueued calls start their timeout after callStart, so the deadline applies to them here;
+            // executed calls are covered by the context being cancelled when the deadline expires
+            Deadline deadline = context.getDeadline();
+            if (deadline != null) {
+                long remainingNanos = Math.max(1, deadline.timeRemaining(TimeUnit.NANOSECONDS));
+                long configuredNanos = call.timeout().timeoutNanos();
+                if (configuredNanos == 0 || remainingNanos < configuredNanos) {
+                    call.timeout().timeout(remainingNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            // Fires immediately if the RPC is already cancelled
+            context.addListener(this, Runnable::run);
+        }
+
+        @Override
+        public void cancelled(Context context) {
+            // A null cause means the RPC completed normally
+            Throwable cause = context.cancellationCause();
+            if (cause == null || !finished.compareAndSet(false, true)) {
+                return;
+            }
+            if (cause instanceof TimeoutException) {
+                callsDeadlineExceeded.increment();
+            } else {
+                callsCancelled.increment();
+            }
+            call.cancel();
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            finish();
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            finish();
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                context.removeListener(this);
+            }
+        }
+    }
+}
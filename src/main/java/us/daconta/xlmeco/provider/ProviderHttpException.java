@@ -0,0 +1,42 @@
+package us.daconta.xlmeco.provider;
+
+import java.io.IOException;
+
+/**
+ * A provider answered with an HTTP error status. Callers tell request errors, which fail the same on every
+ * provider and say nothing about the one that answered, from errors of the provider itself.
+ */
+public class ProviderHttpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public ProviderHttpException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * True for 4xx statuses other than 408 (request timeout) and 429 (rate limited), which are the
+     * provider being slow or overloaded rather than the request being wrong.
+     */
+    public boolean isClientError() {
+        return statusCode >= 400 && statusCode < 500 && statusCode != 408 && statusCode != 429;
+    }
+
+    /**
+     * True if the error, or any error it wraps, is a client error from a provider.
+     */
+    public static boolean isClientError(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof ProviderHttpException) {
+                return ((ProviderHttpException) t).isClientError();
+            }
+        }
+        return false;
+    }
+}
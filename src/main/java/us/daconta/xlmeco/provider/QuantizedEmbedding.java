@@ -0,0 +1,212 @@
+package us.daconta.xlmeco.provider;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Lossy compact form of an {@link Embedding}, for transport and storage where size matters more than the
+ * last bits of precision:
+ * <ul>
+ *     <li>INT8 - one byte per value with a per-vector scale and offset (4x smaller than float32);
+ *     value = (code + 128) * scale + offset</li>
+ *     <li>BINARY - one sign bit per value, least significant bit first (32x smaller); compared with
+ *     Hamming distance, dequantized to +1/-1</li>
+ * </ul>
+ * The serialized form starts with a little-endian header (INT8: float scale, float offset; BINARY: int
+ * dimension) followed by the codes.
+ */
+public final class QuantizedEmbedding {
+    public enum Quantization {
+        INT8, BINARY
+    }
+
+    public static final int INT8_HEADER_BYTES = 2 * Float.BYTES;
+    public static final int BINARY_HEADER_BYTES = Integer.BYTES;
+
+    private final Quantization quantization;
+    private final int dimension;
+    private final byte[] codes;
+    private final float scale;
+    private final float offset;
+
+    private QuantizedEmbedding(Quantization quantization, int dimension, byte[] codes, float scale, float offset) {
+        this.quantization = quantization;
+        this.dimension = dimension;
+        this.codes = codes;
+        this.scale = scale;
+        this.offset = offset;
+    }
+
+    public static QuantizedEmbedding quantize(Embedding embedding, Quantization quantization) {
+        return quantization == Quantization.INT8 ? int8(embedding) : binary(embedding);
+    }
+
+    /**
+     * Scalar quantization over the vector's own [min, max] range.
+     */
+    public static QuantizedEmbedding int8(Embedding embedding) {
+        int dimension = embedding.dimension();
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < dimension; i++) {
+            float value = embedding.get(i);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        if (dimension == 0) {
+            min = max = 0f;
+        }
+        float scale = (max - min) / 255f;
+        byte[] codes = new byte[dimension];
+        for (int i = 0; i < dimension; i++) {
+            int level = scale == 0f ? 0 : Math.round((embedding.get(i) - min) / scale);
+            codes[i] = (byte) (Math.max(0, Math.min(255, level)) - 128);
+        }
+        return new QuantizedEmbedding(Quantization.INT8, dimension, codes, scale, min);
+    }
+
+    /**
+     * Sign quantization: bit i is set when value i is positive.
+     */
+    public static QuantizedEmbedding binary(Embedding embedding) {
+        int dimension = embedding.dimension();
+        byte[] bits = new byte[(dimension + 7) / 8];
+        for (int i = 0; i < dimension; i++) {
+            if (embedding.get(i) > 0f) {
+                bits[i >> 3] |= (byte) (1 << (i & 7));
+            }
+        }
+        return new QuantizedEmbedding(Quantization.BINARY, dimension, bits, 1f, 0f);
+    }
+
+    /**
+     * Read the serialized form (header and codes) from the buffer's remaining bytes.
+     *
+     * @throws IllegalArgumentException if the bytes do not form a valid payload
+     */
+    public static QuantizedEmbedding fromBytes(Quantization quantization, ByteBuffer bytes) {
+        ByteBuffer in = bytes.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (quantization == Quantization.INT8) {
+            if (in.remaining() < INT8_HEADER_BYTES) {
+                throw new IllegalArgumentException("INT8 embedding is missing its scale/offset header");
+            }
+            float scale = in.getFloat();
+            float offset = in.getFloat();
+            byte[] codes = new byte[in.remaining()];
+            in.get(codes);
+            return new QuantizedEmbedding(quantization, codes.length, codes, scale, offset);
+        }
+        if (in.remaining() < BINARY_HEADER_BYTES) {
+            throw new IllegalArgumentException("BINARY embedding is missing its dimension header");
+        }
+        int dimension = in.getInt();
+        if (dimension < 0 || in.remaining() != (dimension + 7) / 8) {
+            throw new IllegalArgumentException("BINARY embedding of dimension " + dimension + " has "
+                    + in.remaining() + " bytes of codes");
+        }
+        byte[] bits = new byte[in.remaining()];
+        in.get(bits);
+        return new QuantizedEmbedding(quantization, dimension, bits, 1f, 0f);
+    }
+
+    public byte[] toBytes() {
+        int header = quantization == Quantization.INT8 ? INT8_HEADER_BYTES : BINARY_HEADER_BYTES;
+        ByteBuffer out = ByteBuffer.allocate(header + codes.length).order(ByteOrder.LITTLE_ENDIAN);
+        if (quantization == Quantization.INT8) {
+            out.putFloat(scale).putFloat(offset);
+        } else {
+            out.putInt(dimension);
+        }
+        return out.put(codes).array();
+    }
+
+    public Embedding dequantize() {
+        float[] values = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            values[i] = value(i);
+        }
+        return Embedding.of(values);
+    }
+
+    public float value(int index) {
+        if (quantization == Quantization.INT8) {
+            return (codes[index] + 128) * scale + offset;
+        }
+        return (codes[index >> 3] & (1 << (index & 7))) != 0 ? 1f : -1f;
+    }
+
+    /**
+     * Dot product of the dequantized vector with a full-precision query (asymmetric distance).
+     */
+    public float dot(Embedding query) {
+        if (query.dimension() != dimension) {
+            throw new IllegalArgumentException("Embedding dimensions differ: " + dimension + " vs " + query.dimension());
+        }
+        float sum = 0f;
+        if (quantization == Quantization.INT8) {
+            // sum((c + 128) * scale + offset) * q) = scale * sum((c + 128) * q) + offset * sum(q)
+            float weighted = 0f;
+            float querySum = 0f;
+            for (int i = 0; i < dimension; i++) {
+                float q = query.get(i);
+                weighted += (codes[i] + 128) * q;
+                querySum += q;
+            }
+            return scale * weighted + offset * querySum;
+        }
+        for (int i = 0; i < dimension; i++) {
+            sum += value(i) * query.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Number of differing sign bits; only meaningful between two BINARY embeddings.
+     */
+    public int hammingDistance(QuantizedEmbedding other) {
+        if (quantization != Quantization.BINARY || other.quantization != Quantization.BINARY || other.dimension != dimension) {
+            throw new IllegalArgumentException("Hamming distance needs two BINARY embeddings of the same dimension");
+        }
+        int distance = 0;
+        for (int i = 0; i < codes.length; i++) {
+            distance += Integer.bitCount((codes[i] ^ other.codes[i]) & 0xFF);
+        }
+        return distance;
+    }
+
+    public Quantization getQuantization() {
+        return quantization;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * Serialized size in bytes, header included.
+     */
+    public int sizeInBytes() {
+        return (quantization == Quantization.INT8 ? INT8_HEADER_BYTES : BINARY_HEADER_BYTES) + codes.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof QuantizedEmbedding)) return false;
+        QuantizedEmbedding other = (QuantizedEmbedding) o;
+        return quantization == other.quantization && dimension == other.dimension
+                && Float.compare(scale, other.scale) == 0 && Float.compare(offset, other.offset) == 0
+                && Arrays.equals(codes, other.codes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * quantization.hashCode() + dimension) + Arrays.hashCode(codes);
+    }
+
+    @Override
+    public String toString() {
+        return "QuantizedEmbedding[" + quantization + ", dimension=" + dimension + "]";
+    }
+}
@@ -0,0 +1,191 @@
+package us.daconta.xlmeco.provider;
+
+import io.grpc.stub.StreamObserver;
+import okio.Buffer;
+import okio.BufferedSource;
+import us.daconta.xlmeco.grpc.ChatResponsePart;
+
+import java.io.IOException;
+
+/**
+ * Incremental decoder for streamed chat responses. Reads server-sent events (OpenAI-style "data:" lines ending
+ * with [DONE]) or newline-delimited JSON (Ollama) straight from the response source into a reused byte buffer,
+ * and pulls the token out of each chunk by key path with {@link JsonScanner}, so the only per-token
+ * allocations are the token string and the response part.
+ * <p>
+ * A decoder is immutable and can be shared; each decode call uses its own buffers.
+ */
+public class TokenStreamDecoder {
+    public enum Framing {
+        SSE, NDJSON
+    }
+
+    // Guards against a misbehaving upstream sending an unbounded line
+    private static final long MAX_LINE_BYTES = 8L * 1024 * 1024;
+    private static final byte[] DATA_PREFIX = {'d', 'a', 't', 'a', ':'};
+    private static final byte[] SSE_DONE = {'[', 'D', 'O', 'N', 'E', ']'};
+
+    private final Framing framing;
+    private final JsonScanner.Path[] tokenPaths;
+    private final JsonScanner.Path donePath;
+
+    /**
+     * @param framing    how chunks are delimited
+     * @param donePath   path of a boolean that marks the last chunk, or null
+     * @param tokenPaths paths to the token text; the first one present in a chunk is used
+     */
+    public TokenStreamDecoder(Framing framing, JsonScanner.Path donePath, JsonScanner.Path... tokenPaths) {
+        this.framing = framing;
+        this.donePath = donePath;
+        this.tokenPaths = tokenPaths;
+    }
+
+    /**
+     * Decoder for OpenAI-compatible chat completion streams (OpenAI, Grok).
+     */
+    public static TokenStreamDecoder openAiChat() {
+        return new TokenStreamDecoder(Framing.SSE, null, JsonScanner.path("choices", "0", "delta", "content"));
+    }
+
+    /**
+     * Decode the stream until it ends or signals completion, writing each non-empty token to the observer.
+     * Does not complete the observer.
+     */
+    public void decode(BufferedSource source, StreamObserver<ChatResponsePart> observer) throws IOException {
+        State state = new State();
+        while (readLine(source, state)) {
+            int start = 0;
+            int end = state.lineLength;
+            if (end > 0 && state.line[end - 1] == '\r') {
+                end--;
+            }
+            boolean keepReading;
+            if (framing == Framing.SSE) {
+                keepReading = onSseLine(state, start, end, observer);
+            } else {
+                keepReading = end == start || onChunk(state.line, start, end, state, observer);
+            }
+            if (!keepReading) {
+                return;
+            }
+        }
+        // A final event that was not followed by a blank line
+        if (framing == Framing.SSE && state.eventLength > 0) {
+            dispatchEvent(state, observer);
+        }
+    }
+
+    private boolean onSseLine(State state, int start, int end, StreamObserver<ChatResponsePart> observer) throws IOException {
+        byte[] line = state.line;
+        if (end == start) {
+            // A blank line dispatches the event
+            return state.eventLength == 0 || dispatchEvent(state, observer);
+        }
+        if (!startsWith(line, start, end, DATA_PREFIX)) {
+            // Comments, event:, id: and retry: fields carry no tokens
+            return true;
+        }
+        int p = start + DATA_PREFIX.length;
+        if (p < end && line[p] == ' ') {
+            p++;
+        }
+        // Multi-line data fields are joined with newlines
+        byte[] event = state.event(state.eventLength + (end - p) + 1);
+        if (state.eventLength > 0) {
+            event[state.eventLength++] = '\n';
+        }
+        System.arraycopy(line, p, event, state.eventLength, end - p);
+        state.eventLength += end - p;
+        return true;
+    }
+
+    private boolean dispatchEvent(State state, StreamObserver<ChatResponsePart> observer) throws IOException {
+        int length = state.eventLength;
+        state.eventLength = 0;
+        int start = JsonScanner.skipWhitespace(state.eventBuffer, 0, length);
+        if (startsWith(state.eventBuffer, start, length, SSE_DONE)) {
+            return false;
+        }
+        return onChunk(state.eventBuffer, start, length, state, observer);
+    }
+
+    private boolean onChunk(byte[] b, int start, int end, State state, StreamObserver<ChatResponsePart> observer) throws IOException {
+        for (JsonScanner.Path path : tokenPaths) {
+            int value = JsonScanner.find(b, start, end, path);
+            if (value >= 0) {
+                String token = JsonScanner.readString(b, value, end, state.scratch);
+                if (token != null && !token.isEmpty()) {
+                    observer.onNext(ChatResponsePart.newBuilder().setToken(token).build());
+                }
+                break;
+            }
+        }
+        return donePath == null || !JsonScanner.isTrue(b, JsonScanner.find(b, start, end, donePath), end);
+    }
+
+    private static boolean readLine(BufferedSource source, State state) throws IOException {
+        long newline = source.indexOf((byte) '\n', 0, MAX_LINE_BYTES);
+        long length;
+        if (newline >= 0) {
+            length = newline;
+        } else if (source.request(MAX_LINE_BYTES)) {
+            throw new IOException("Streamed line exceeds " + MAX_LINE_BYTES + " bytes");
+        } else if (source.exhausted()) {
+            return false;
+        } else {
+            // The last line has no terminator
+            length = source.getBuffer().size();
+        }
+
+        byte[] line = state.line((int) length);
+        Buffer buffer = source.getBuffer();
+        int read = 0;
+        while (read < length) {
+            read += buffer.read(line, read, (int) length - read);
+        }
+        state.lineLength = (int) length;
+        if (newline >= 0) {
+            buffer.skip(1);
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] b, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Buffers reused across the lines of one stream.
+     */
+    private static class State {
+        private byte[] line = new byte[1024];
+        private int lineLength;
+        private byte[] eventBuffer = new byte[1024];
+        private int eventLength;
+        private final JsonScanner.Scratch scratch = new JsonScanner.Scratch();
+
+        byte[] line(int capacity) {
+            if (line.length < capacity) {
+                line = new byte[Math.max(capacity, line.length * 2)];
+            }
+            return line;
+        }
+
+        byte[] event(int capacity) {
+            if (eventBuffer.length < capacity) {
+                byte[] grown = new byte[Math.max(capacity, eventBuffer.length * 2)];
+                System.arraycopy(eventBuffer, 0, grown, 0, eventLength);
+                eventBuffer = grown;
+            }
+            return eventBuffer;
+        }
+    }
+}
@@ -20,12 +20,52 @@ public interface VectorDbProvider {
 
     boolean defineVectorSchema(int embeddingDimension, Map<String, FieldType> optionalMetadata);
 
+    /**
+     * Store a vector given as boxed floats.
+     *
+     * @deprecated boxes every value; the {@link Embedding} and {@link QuantizedEmbedding} overloads are the
+     * primary API. Still abstract so existing providers keep compiling.
+     */
+    @Deprecated
     boolean upsertVector(String id, List<Float> embedding, String content, Map<String, MetadataValue> optionalMetadata);
 
+    /**
+     * Store a primitive vector. Providers whose client takes float arrays override this; the default boxes
+     * the values and calls the list version.
+     */
+    default boolean upsertVector(String id, Embedding embedding, String content, Map<String, MetadataValue> optionalMetadata) {
+        return upsertVector(id, embedding.asList(), content, optionalMetadata);
+    }
+
+    /**
+     * Store a quantized vector. Providers with compact vector types (int8, binary) override this to keep the
+     * codes; the default stores the dequantized values, which bounds precision but not storage size.
+     */
+    default boolean upsertVector(String id, QuantizedEmbedding embedding, String content, Map<String, MetadataValue> optionalMetadata) {
+        return upsertVector(id, embedding.dequantize(), content, optionalMetadata);
+    }
+
+    // True when upsertVector(String, QuantizedEmbedding, ...) keeps the codes of this quantization, so
+    // quantizing before the write actually saves storage
+    default boolean storesQuantized(QuantizedEmbedding.Quantization quantization) {
+        return false;
+    }
+
     VectorRecord getVector(String id);
 
     boolean deleteVector(String id);
 
+    /**
+     * Search with a query vector given as boxed floats.
+     *
+     * @deprecated boxes every value; {@link #searchVectors(Embedding, int)} is the primary API. Still abstract
+     * so existing providers keep compiling.
+     */
+    @Deprecated
     List<VectorSearchResult> searchVectors(List<Float> queryEmbedding, int topK);
-}
 
+    // Search with a primitive vector; the default boxes the values and calls the list version
+    default List<VectorSearchResult> searchVectors(Embedding queryEmbedding, int topK) {
+        return searchVectors(queryEmbedding.asList(), topK);
+    }
+}
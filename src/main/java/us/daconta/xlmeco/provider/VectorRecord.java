@@ -11,11 +11,19 @@ import java.util.Map;
  */
 public class VectorRecord {
     private final String id;
-    private final List<Float> embedding;
+    private final Embedding embedding;
     private final String content;
     private JSONObject metadata; // JSON blob
 
+    /**
+     * @deprecated boxes every value; use {@link #VectorRecord(String, Embedding, String, String)}.
+     */
+    @Deprecated
     public VectorRecord(String id, List<Float> embedding, String content, String metadata) {
+        this(id, embedding != null ? Embedding.fromList(embedding) : null, content, metadata);
+    }
+
+    public VectorRecord(String id, Embedding embedding, String content, String metadata) {
         this.id = id;
         this.embedding = embedding;
         this.content = content;
@@ -28,10 +36,18 @@ public class VectorRecord {
         return id;
     }
 
-    public List<Float> getEmbedding() {
+    public Embedding getEmbeddingVector() {
         return embedding;
     }
 
+    /**
+     * @deprecated boxes values on access; use {@link #getEmbeddingVector()}.
+     */
+    @Deprecated
+    public List<Float> getEmbedding() {
+        return embedding != null ? embedding.asList() : null;
+    }
+
     public String getContent() {
         return content;
     }
@@ -10,11 +10,19 @@ import java.util.List;
 public class VectorSearchResult {
     private final String id;
     private final float score;
-    private final List<Float> embedding;
+    private final Embedding embedding;
     private final String content;
     private JSONObject metadata; // JSON blob
 
+    /**
+     * @deprecated boxes every value; use {@link #VectorSearchResult(String, float, Embedding, String, String)}.
+     */
+    @Deprecated
     public VectorSearchResult(String id, float score, List<Float> embedding, String content, String metadata) {
+        this(id, score, embedding != null ? Embedding.fromList(embedding) : null, content, metadata);
+    }
+
+    public VectorSearchResult(String id, float score, Embedding embedding, String content, String metadata) {
         this.id = id;
         this.score = score;
         this.embedding = embedding;
@@ -32,10 +40,18 @@ public class VectorSearchResult {
         return score;
     }
     
-    public List<Float> getEmbedding() {
+    public Embedding getEmbeddingVector() {
         return embedding;
     }
 
+    /**
+     * @deprecated boxes values on access; use {@link #getEmbeddingVector()}.
+     */
+    @Deprecated
+    public List<Float> getEmbedding() {
+        return embedding != null ? embedding.asList() : null;
+    }
+
     public String getContent() {
         return content;
     }
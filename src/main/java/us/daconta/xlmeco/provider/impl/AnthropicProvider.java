@@ -5,6 +5,7 @@ import us.daconta.xlmeco.grpc.ChatRequest;
 import us.daconta.xlmeco.grpc.ChatResponsePart;
 import us.daconta.xlmeco.grpc.ModelParameters;
 import us.daconta.xlmeco.provider.ChatProvider;
+import us.daconta.xlmeco.provider.Embedding;
 import us.daconta.xlmeco.provider.EmbeddingProvider;
 
 import java.util.List;
@@ -32,8 +33,14 @@ public class AnthropicProvider extends AbstractGenerativeProvider implements Cha
     }
 
     @Override
+    @Deprecated
     public List<Float> generateEmbedding(String text, ModelParameters parameters) {
-        return List.of();
+        return generateEmbeddingVector(text, parameters).asList();
+    }
+
+    @Override
+    public Embedding generateEmbeddingVector(String text, ModelParameters parameters) {
+        return Embedding.empty();
     }
 
     @Override
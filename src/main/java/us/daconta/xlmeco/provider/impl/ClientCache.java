@@ -0,0 +1,198 @@
+package us.daconta.xlmeco.provider.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of long-lived SDK clients (channels, credentials) keyed by their configuration.
+ * Clients are leased for the duration of a call; the least recently used client is evicted when the cache
+ * is full, idle clients are evicted by a background sweep, and an evicted client is closed once its last
+ * lease is released. A client is created outside the cache lock, so a slow factory only holds up the calls
+ * waiting for that key.
+ */
+public class ClientCache<K, V extends AutoCloseable> implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface ClientFactory<K, V> {
+        V create(K key) throws Exception;
+    }
+
+    private static final Logger logger = Logger.getLogger(ClientCache.class.getName());
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "xlm-client-cache-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final int maxSize;
+    private final long idleNanos;
+    private final ClientFactory<K, V> factory;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledFuture<?> sweep;
+    private boolean closed;
+
+    public ClientCache(String name, int maxSize, long idleSeconds, ClientFactory<K, V> factory) {
+        this.name = name;
+        this.maxSize = Math.max(1, maxSize);
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        this.factory = factory;
+        long sweepSeconds = Math.max(1, idleSeconds / 2);
+        this.sweep = sweeper.scheduleWithFixedDelay(this::evictIdle, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Lease the client for the key, creating it on first use. Close the lease when the call is done.
+     */
+    public Lease<V> acquire(K key) throws Exception {
+        List<Entry<V>> evicted = new ArrayList<>();
+        Entry<V> entry;
+        boolean create = false;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Client cache " + name + " is closed");
+            }
+            entry = entries.get(key);
+            if (entry == null) {
+                // Reserve the key; later callers wait on this entry while the client is created
+                entry = new Entry<>();
+                create = true;
+                entries.put(key, entry);
+                Iterator<Entry<V>> eldest = entries.values().iterator();
+                while (entries.size() > maxSize && eldest.hasNext()) {
+                    evicted.add(eldest.next());
+                    eldest.remove();
+                }
+            }
+            entry.leases.incrementAndGet();
+            entry.lastUsed = System.nanoTime();
+        }
+        evicted.forEach(Entry::retire);
+
+        if (create) {
+            logger.info(() -> "Creating " + name + " client for " + key);
+            try {
+                entry.client.complete(factory.create(key));
+            } catch (Throwable e) {
+                // Forget the failed entry so the next call tries again
+                synchronized (this) {
+                    entries.remove(key, entry);
+                }
+                entry.client.completeExceptionally(e);
+            }
+        }
+        try {
+            return new Lease<>(entry, entry.client.join());
+        } catch (CompletionException e) {
+            entry.release();
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void evictIdle() {
+        List<Entry<V>> evicted = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<K, Entry<V>> candidate = iterator.next();
+                Entry<V> entry = candidate.getValue();
+                if (entry.leases.get() == 0 && now - entry.lastUsed > idleNanos) {
+                    logger.info(() -> "Evicting idle " + name + " client for " + candidate.getKey());
+                    evicted.add(entry);
+                    iterator.remove();
+                }
+            }
+        }
+        evicted.forEach(Entry::retire);
+    }
+
+    @Override
+    public void close() {
+        List<Entry<V>> evicted;
+        synchronized (this) {
+            closed = true;
+            evicted = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        sweep.cancel(false);
+        evicted.forEach(Entry::retire);
+    }
+
+    /**
+     * A client handed out for one call.
+     */
+    public static class Lease<V extends AutoCloseable> implements AutoCloseable {
+        private final Entry<V> entry;
+        private final V client;
+        private boolean released;
+
+        private Lease(Entry<V> entry, V client) {
+            this.entry = entry;
+            this.client = client;
+        }
+
+        public V get() {
+            return client;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                entry.release();
+            }
+        }
+    }
+
+    private static class Entry<V extends AutoCloseable> {
+        private final CompletableFuture<V> client = new CompletableFuture<>();
+        private final AtomicInteger leases = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile long lastUsed = System.nanoTime();
+        private volatile boolean retired;
+
+        void retire() {
+            retired = true;
+            if (leases.get() == 0) {
+                closeClient();
+            }
+        }
+
+        void release() {
+            if (leases.decrementAndGet() == 0 && retired) {
+                closeClient();
+            }
+        }
+
+        // Retire and the last release can both see the entry idle; only the first of them closes the client.
+        // The creating call holds a lease until the client exists, so it is never closed while pending.
+        private void closeClient() {
+            if (!closed.compareAndSet(false, true) || client.isCompletedExceptionally()) {
+                return;
+            }
+            try {
+                client.join().close();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error closing cached client", e);
+            }
+        }
+    }
+}
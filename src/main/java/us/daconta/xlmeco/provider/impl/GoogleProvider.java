@@ -16,15 +16,21 @@ import com.google.cloud.aiplatform.v1.PredictionServiceSettings;
 import com.google.protobuf.Value;
 import io.grpc.StatusRuntimeException;
 import okhttp3.*;
+import us.daconta.xlmeco.config.ConfigProperties;
 import us.daconta.xlmeco.grpc.ChatRequest;
 import us.daconta.xlmeco.grpc.ChatResponsePart;
 import us.daconta.xlmeco.grpc.ModelParameters;
 import us.daconta.xlmeco.provider.ChatProvider;
+import us.daconta.xlmeco.provider.Embedding;
 import io.grpc.stub.StreamObserver;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import us.daconta.xlmeco.provider.EmbeddingProvider;
 import us.daconta.xlmeco.provider.GenerativeProvider;
+import us.daconta.xlmeco.provider.GenerativeProviderFactory;
+import us.daconta.xlmeco.provider.JsonScanner;
+import us.daconta.xlmeco.provider.ProviderCalls;
+import us.daconta.xlmeco.provider.ProviderHttpException;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -32,7 +38,9 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
 public class GoogleProvider extends AbstractGenerativeProvider implements ChatProvider, EmbeddingProvider {
     public static final String VERSION = "1.0";
@@ -46,6 +54,11 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
     public static final String PROPERTY_URL_EMBEDDING = GenerativeProvider.PROPERTY_URL_EMBEDDING;
     public static final String PROPERTY_DEFAULT_MODEL_LM = GenerativeProvider.PROPERTY_DEFAULT_MODEL_LM;
     public static final String PROPERTY_DEFAULT_MODEL_EMBEDDING = GenerativeProvider.PROPERTY_DEFAULT_MODEL_EMBEDDING;
+    public static final String PROPERTY_CLIENT_CACHE_MAX_SIZE = "client_cache.max_size";
+    public static final String PROPERTY_CLIENT_CACHE_IDLE_SECONDS = "client_cache.idle_seconds";
+    private static final int DEFAULT_CLIENT_CACHE_MAX_SIZE = 16;
+    private static final int DEFAULT_CLIENT_CACHE_IDLE_SECONDS = 600;
+    private static final JsonScanner.Path EMBEDDING_PATH = JsonScanner.path("embedding");
     private static final String BASE_URL_PATTERN = "https://%s-aiplatform.googleapis.com/v1/projects/%s/locations/%s/publishers/google/models/%s:predict";
 
     // Configuration Properties read from property file
@@ -57,6 +70,10 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
     private String embeddingURL;
     private String defaultEmbeddingModel;
     private String defaultLmModel;
+    private OkHttpClient httpClient;
+    // Vertex AI clients each own a gRPC channel and credentials, so they are created once and reused
+    private ClientCache<ModelKey, VertexModelClient> modelClients;
+    private ClientCache<String, PredictionServiceClient> predictionClients;
 
     public GoogleProvider() { }
 
@@ -69,8 +86,30 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
         embeddingURL = configProperties.getProperty(PROPERTY_URL_EMBEDDING);
         defaultEmbeddingModel = configProperties.getProperty(PROPERTY_DEFAULT_MODEL_EMBEDDING);
         defaultLmModel = configProperties.getProperty(PROPERTY_DEFAULT_MODEL_LM);
+        httpClient = GenerativeProviderFactory.getHttpClient();
+
+        int cacheMaxSize = ConfigProperties.getInt(configProperties, PROPERTY_CLIENT_CACHE_MAX_SIZE, DEFAULT_CLIENT_CACHE_MAX_SIZE, 1);
+        int cacheIdleSeconds = ConfigProperties.getInt(configProperties, PROPERTY_CLIENT_CACHE_IDLE_SECONDS, DEFAULT_CLIENT_CACHE_IDLE_SECONDS, 1);
+        shutdown();
+        modelClients = new ClientCache<>("vertex-ai", cacheMaxSize, cacheIdleSeconds, VertexModelClient::new);
+        // The prediction endpoint is regional; project and model only go into the request
+        predictionClients = new ClientCache<>("vertex-prediction", cacheMaxSize, cacheIdleSeconds,
+                clientLocation -> PredictionServiceClient.create(PredictionServiceSettings.newBuilder()
+                        .setEndpoint(clientLocation + "-aiplatform.googleapis.com:443")
+                        .build()));
     }
 
+    @Override
+    public void shutdown() {
+        if (modelClients != null) {
+            modelClients.close();
+        }
+        if (predictionClients != null) {
+            predictionClients.close();
+        }
+    }
+
+
     private String generateChatUrl() {
         //return String.format(BASE_URL_PATTERN, location, projectId, location, defaultLmModel); // Use chat model ID
         return "https://generativelanguage.googleapis.com/v1beta/models/" + defaultLmModel + ":generateContent?key=" + apiKey;
@@ -101,7 +140,6 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
 
     private String generateChatResponseRest(ChatRequest request) throws IOException {
         String restChatUrl = "https://generativelanguage.googleapis.com/v1beta/models/" + request.getModelName() + ":generateContent?key=" + apiKey;
-        OkHttpClient client = new OkHttpClient();
 
         // Adjust JSON structure to match API requirements
         JSONObject contentObject = new JSONObject()
@@ -120,8 +158,8 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
                 .post(body)
                 .build();
 
-        try (Response response = client.newCall(httpRequest).execute()) {
-            if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
+        try (Response response = httpClient.newCall(httpRequest).execute()) {
+            if (!response.isSuccessful()) throw new ProviderHttpException(response.code(), "Unexpected code " + response);
             JSONObject jsonResponse = new JSONObject(response.body().string());
             // Adjust as per actual JSON structure returned by the API
             return jsonResponse.optString("output", ""); // Replace "output" with actual key if different
@@ -132,17 +170,17 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
         return "google";
     }
 
+    @Override
+    public String getEmbeddingModel() {
+        return defaultEmbeddingModel;
+    }
+
     // Passes the provided text input to the Gemini model and returns the text-only response.
     public String textInput(
-            String projectId, String location, String modelName, String textPrompt) throws IOException {
-        // Initialize client that will be used to send requests. This client only needs
-        // to be created once, and can be reused for multiple requests.
-        try (VertexAI vertexAI = new VertexAI(projectId, location)) {
-            GenerativeModel model = new GenerativeModel(modelName, vertexAI);
-
-            GenerateContentResponse response = model.generateContent(textPrompt);
-            String output = ResponseHandler.getText(response);
-            return output;
+            String projectId, String location, String modelName, String textPrompt) throws Exception {
+        try (ClientCache.Lease<VertexModelClient> client = modelClients.acquire(new ModelKey(projectId, location, modelName))) {
+            GenerateContentResponse response = client.get().model.generateContent(textPrompt);
+            return ResponseHandler.getText(response);
         }
     }
 
@@ -154,10 +192,12 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
         if (apiKey != null && !apiKey.isEmpty()) {
             streamChatResponseRest(request, responseObserver);
         } else {
-            // Initialize the Vertex AI client
-            try (VertexAI vertexAI = new VertexAI(projectId, location)) {
-                // Create the generative model based on the model name
-                GenerativeModel model = new GenerativeModel(modelName, vertexAI);
+            if (modelName == null || modelName.isEmpty())
+                modelName = defaultLmModel;
+
+            // Reuse the cached Vertex AI client and model for this project, location and model
+            try (ClientCache.Lease<VertexModelClient> client = modelClients.acquire(new ModelKey(projectId, location, modelName))) {
+                GenerativeModel model = client.get().model;
 
                 // Stream the tokens from the model response
                 try {
@@ -196,7 +236,6 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
 
     private void streamChatResponseRest(ChatRequest request, StreamObserver<ChatResponsePart> responseObserver) throws IOException {
         String restChatUrl = generateChatUrl();
-        OkHttpClient client = new OkHttpClient();
         JSONObject jsonBody = new JSONObject()
                 .put("model", request.getModelName())
                 .put("prompt", request.getPrompt());
@@ -210,8 +249,8 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
                 .post(body)
                 .build();
 
-        try (Response response = client.newCall(httpRequest).execute()) {
-            if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
+        try (Response response = httpClient.newCall(httpRequest).execute()) {
+            if (!response.isSuccessful()) throw new ProviderHttpException(response.code(), "Unexpected code " + response);
             JSONObject jsonResponse = new JSONObject(response.body().string());
 
             // Assuming the response has tokens as an array
@@ -227,16 +266,17 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
     }
 
     @Override
+    @Deprecated
     public List<Float> generateEmbedding(String text, ModelParameters params) {
+        return generateEmbeddingVector(text, params).asList();
+    }
+
+    @Override
+    public Embedding generateEmbeddingVector(String text, ModelParameters params) {
         try {
             if (apiKey != null && !apiKey.isEmpty()) {
-                return generateEmbeddingRest(text);
+                return Embedding.of(generateEmbeddingRest(text));
             } else {
-                String endpoint = "us-central1-aiplatform.googleapis.com:443";
-                PredictionServiceSettings settings =
-                        PredictionServiceSettings.newBuilder().setEndpoint(endpoint).build();
-
-                PredictionServiceClient predictionServiceClient = PredictionServiceClient.create(settings);
                 // Construct the endpoint name
                 EndpointName endpointName = EndpointName.ofProjectLocationPublisherModelName(projectId, location, "google", defaultEmbeddingModel);
 
@@ -247,62 +287,72 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
 
                 // Build the PredictRequest
                 PredictRequest request = PredictRequest.newBuilder()
-                        .setEndpoint(endpoint.toString())
+                        .setEndpoint(endpointName.toString())
                         .addAllInstances(instances)
                         .build();
 
-                // Call the prediction service
-
-                var response = predictionServiceClient.predict(request);
-                var predictions = response.getPredictionsList();
+                // Call the prediction service on the cached regional client
+                List<Value> predictions;
+                try (ClientCache.Lease<PredictionServiceClient> client = predictionClients.acquire(location)) {
+                    predictions = client.get().predict(request).getPredictionsList();
+                }
 
                 // Process the predictions to extract embeddings
                 // (Assuming the response contains embeddings in a specific format)
-                List<Float> embedding = new ArrayList<>();
+                int size = 0;
+                for (Value prediction : predictions) {
+                    size += prediction.getStructValue().getFieldsMap().get("embeddings").getListValue().getValuesCount();
+                }
+                float[] embedding = new float[size];
+                int index = 0;
                 for (Value prediction : predictions) {
                     // Extract the embedding values from the prediction
                     // Adjust this according to the actual response structure
                     var embeddingValues = prediction.getStructValue().getFieldsMap().get("embeddings").getListValue();
                     for (Value val : embeddingValues.getValuesList()) {
-                        embedding.add((float) val.getNumberValue());
+                        embedding[index++] = (float) val.getNumberValue();
                     }
                 }
 
-                return embedding;
+                return Embedding.of(embedding);
             }
         } catch (Exception e) {
             throw new RuntimeException("Error during prediction: " + e.getMessage(), e);
         }
     }
 
-    private List<Float> generateEmbeddingRest(String text) {
-        String restEmbeddingUrl = generateEmbeddingUrl();
-        List<Float> embedding = new ArrayList<>();
-        OkHttpClient client = new OkHttpClient();
+    @Override
+    public CompletableFuture<Embedding> generateEmbeddingAsync(String text, ModelParameters params) {
+        if (apiKey != null && !apiKey.isEmpty()) {
+            return ProviderCalls.enqueue(httpClient.newCall(buildEmbeddingRequest(text)), response -> Embedding.of(readEmbedding(response)));
+        }
+        return EmbeddingProvider.super.generateEmbeddingAsync(text, params);
+    }
 
+    private float[] generateEmbeddingRest(String text) {
+        try (Response response = httpClient.newCall(buildEmbeddingRequest(text)).execute()) {
+            return readEmbedding(response);
+        } catch (IOException e) {
+            throw new RuntimeException("Error during embedding generation with REST API", e);
+        }
+    }
+
+    private Request buildEmbeddingRequest(String text) {
         JSONObject jsonBody = new JSONObject().put("input", text);
         RequestBody body = RequestBody.create(
                 jsonBody.toString(), MediaType.parse("application/json"));
 
-        Request httpRequest = new Request.Builder()
-                .url(restEmbeddingUrl)
+        return new Request.Builder()
+                .url(generateEmbeddingUrl())
                 .addHeader("Authorization", "Bearer " + apiKey)
                 .post(body)
                 .build();
+    }
 
-        try (Response response = client.newCall(httpRequest).execute()) {
-            if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
-
-            JSONObject jsonResponse = new JSONObject(response.body().string());
-            JSONArray embeddingArray = jsonResponse.getJSONArray("embedding");
-
-            for (int i = 0; i < embeddingArray.length(); i++) {
-                embedding.add((float) embeddingArray.getDouble(i));
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Error during embedding generation with REST API", e);
-        }
-        return embedding;
+    private float[] readEmbedding(Response response) throws IOException {
+        if (!response.isSuccessful()) throw new ProviderHttpException(response.code(), "Unexpected code " + response);
+        // Parse the embedding straight from the response bytes into a float[]
+        return JsonScanner.readFloatArray(response.body().bytes(), EMBEDDING_PATH);
     }
 
     @Override
@@ -324,4 +374,56 @@ public class GoogleProvider extends AbstractGenerativeProvider implements ChatPr
     public boolean supportsAgents() {
         return false;
     }
-}
\ No newline at end of file
+
+    /**
+     * Cache key for a Gemini model client.
+     */
+    private static final class ModelKey {
+        private final String projectId;
+        private final String location;
+        private final String modelName;
+
+        ModelKey(String projectId, String location, String modelName) {
+            this.projectId = projectId;
+            this.location = location;
+            this.modelName = modelName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ModelKey)) return false;
+            ModelKey other = (ModelKey) o;
+            return Objects.equals(projectId, other.projectId) && Objects.equals(location, other.location)
+                    && Objects.equals(modelName, other.modelName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(projectId, location, modelName);
+        }
+
+        @Override
+        public String toString() {
+            return projectId + "/" + location + "/" + modelName;
+        }
+    }
+
+    /**
+     * A VertexAI client and the GenerativeModel bound to it; closing it closes the client's channel.
+     */
+    private static final class VertexModelClient implements AutoCloseable {
+        private final VertexAI vertexAI;
+        private final GenerativeModel model;
+
+        VertexModelClient(ModelKey key) {
+            this.vertexAI = new VertexAI(key.projectId, key.location);
+            this.model = new GenerativeModel(key.modelName, vertexAI);
+        }
+
+        @Override
+        public void close() {
+            vertexAI.close();
+        }
+    }
+}
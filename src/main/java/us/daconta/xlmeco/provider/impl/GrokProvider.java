@@ -9,14 +9,19 @@ import io.grpc.stub.StreamObserver;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import us.daconta.xlmeco.provider.EmbeddingProvider;
+import us.daconta.xlmeco.provider.EndpointPool;
 import us.daconta.xlmeco.provider.GenerativeProvider;
+import us.daconta.xlmeco.provider.GenerativeProviderFactory;
+import us.daconta.xlmeco.provider.ProviderCalls;
+import us.daconta.xlmeco.provider.ProviderHttpException;
+import us.daconta.xlmeco.provider.TokenStreamDecoder;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 
 public class GrokProvider extends AbstractGenerativeProvider implements ChatProvider {
     public static final String VERSION = "1.0";
@@ -27,10 +32,11 @@ public class GrokProvider extends AbstractGenerativeProvider implements ChatProv
     public static final String PROPERTY_URL_EMBEDDING = GenerativeProvider.PROPERTY_URL_EMBEDDING;
     public static final String PROPERTY_DEFAULT_MODEL_LM = GenerativeProvider.PROPERTY_DEFAULT_MODEL_LM;
     public static final String PROPERTY_DEFAULT_MODEL_EMBEDDING = GenerativeProvider.PROPERTY_DEFAULT_MODEL_EMBEDDING;
+    private static final TokenStreamDecoder CHAT_STREAM_DECODER = TokenStreamDecoder.openAiChat();
 
-    private final OkHttpClient httpClient = new OkHttpClient();
+    private OkHttpClient httpClient;
     private String apiKey;
-    private String chatURL;
+    private EndpointPool chatEndpoints;
     private String embeddingURL;
     private String defaultLanguageModel;
     private String defaultEmbeddingModel;
@@ -46,10 +52,11 @@ public class GrokProvider extends AbstractGenerativeProvider implements ChatProv
     public void initialize(Properties configProperties) {
         this.configProperties = configProperties;
         apiKey = configProperties.getProperty(PROPERTY_API_KEY);
-        chatURL = configProperties.getProperty(PROPERTY_URL_CHAT);
+        chatEndpoints = EndpointPool.fromProperties(PROVIDER_NAME, "chat", configProperties, PROPERTY_URL_CHAT, null);
         embeddingURL = configProperties.getProperty(PROPERTY_URL_EMBEDDING);
         defaultLanguageModel = configProperties.getProperty(PROPERTY_DEFAULT_MODEL_LM);
         defaultEmbeddingModel = configProperties.getProperty(PROPERTY_DEFAULT_MODEL_EMBEDDING);
+        httpClient = GenerativeProviderFactory.getHttpClient();
     }
 
     @Override
@@ -83,40 +90,30 @@ public class GrokProvider extends AbstractGenerativeProvider implements ChatProv
 
     @Override
     public String generateChatResponse(ChatRequest request) throws IOException {
-        String prompt = request.getPrompt();
-        // Escape the prompt to make it JSON-safe
-        String escapedPrompt = JSONObject.quote(prompt); // This will escape special characters in the prompt
-
-        String modelName = request.getModelName();
-
-        String jsonBody = "{ \"model\": \"" + modelName + "\", " +
-                "\"messages\": [{ \"role\": \"system\", \"content\": \"You are a helpful assistant.\" }, " +
-                "{ \"role\": \"user\", \"content\": " + escapedPrompt + " }], " +
-                "\"max_tokens\": 1000 }";
-
-        RequestBody body = RequestBody.create(MediaType.parse("application/json"), jsonBody);
-        Request httpRequest = new Request.Builder()
-                .url(chatURL)
-                .post(body)
-                .addHeader("Authorization", "Bearer " + apiKey)
-                .build();
-
-        try (Response response = httpClient.newCall(httpRequest).execute()) {
-            if (!response.isSuccessful()) {
-                return "Error: " + response.body().string();
-            }
+        try (Response response = httpClient.newCall(buildChatRequest(request, false)).execute()) {
+            return readChatResponse(response);
+        }
+    }
 
-            String responseBody = response.body().string();
-            JSONObject jsonResponse = new JSONObject(responseBody);
-            JSONArray choices = jsonResponse.getJSONArray("choices");
-            String content = choices.getJSONObject(0).getJSONObject("message").getString("content");
+    @Override
+    public CompletableFuture<String> generateChatResponseAsync(ChatRequest request) {
+        return ProviderCalls.enqueue(httpClient.newCall(buildChatRequest(request, false)), this::readChatResponse);
+    }
 
-            return content.trim();
+    @Override
+    public void streamChatResponse(ChatRequest request, StreamObserver<ChatResponsePart> responseObserver) throws IOException {
+        try (Response response = httpClient.newCall(buildChatRequest(request, true)).execute()) {
+            readChatStream(response, responseObserver);
         }
+        responseObserver.onCompleted();
     }
 
     @Override
-    public void streamChatResponse(ChatRequest request, StreamObserver<ChatResponsePart> responseObserver) throws IOException {
+    public Flow.Publisher<ChatResponsePart> streamChatResponseAsync(ChatRequest request) {
+        return ProviderCalls.enqueueStream(httpClient.newCall(buildChatRequest(request, true)), this::readChatStream);
+    }
+
+    private Request buildChatRequest(ChatRequest request, boolean stream) {
         String prompt = request.getPrompt();
         // Escape the prompt to make it JSON-safe
         String escapedPrompt = JSONObject.quote(prompt); // This will escape special characters in the prompt
@@ -125,38 +122,34 @@ public class GrokProvider extends AbstractGenerativeProvider implements ChatProv
 
         String jsonBody = "{ \"model\": \"" + modelName + "\", " +
                 "\"messages\": [{ \"role\": \"system\", \"content\": \"You are a helpful assistant.\" }, " +
-                "{ \"role\": \"user\", \"content\":" + escapedPrompt + " }], " +
-                "\"max_tokens\": 1000, \"stream\": true }";
+                "{ \"role\": \"user\", \"content\": " + escapedPrompt + " }], " +
+                "\"max_tokens\": 1000" + (stream ? ", \"stream\": true }" : " }");
 
         RequestBody body = RequestBody.create(MediaType.parse("application/json"), jsonBody);
-        Request httpRequest = new Request.Builder()
-                .url(chatURL)
+        return chatEndpoints.newRequest()
                 .post(body)
                 .addHeader("Authorization", "Bearer " + apiKey)
                 .build();
+    }
 
-        Response response = httpClient.newCall(httpRequest).execute();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(response.body().byteStream()));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (line.startsWith("data: ")) {
-                String jsonData = line.substring(6);
-                if ("[DONE]".equals(jsonData.trim())) {
-                    break;
-                }
-
-                JSONObject jsonResponse = new JSONObject(jsonData);
-                JSONArray choices = jsonResponse.getJSONArray("choices");
-                JSONObject delta = choices.getJSONObject(0).getJSONObject("delta");
-
-                if (delta.has("content")) {
-                    String token = delta.getString("content");
-                    ChatResponsePart responsePart = ChatResponsePart.newBuilder().setToken(token).build();
-                    responseObserver.onNext(responsePart);
-                }
-            }
+    private String readChatResponse(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new ProviderHttpException(response.code(), "Error: " + response.body().string());
         }
-        responseObserver.onCompleted();
+
+        String responseBody = response.body().string();
+        JSONObject jsonResponse = new JSONObject(responseBody);
+        JSONArray choices = jsonResponse.getJSONArray("choices");
+        String content = choices.getJSONObject(0).getJSONObject("message").getString("content");
+
+        return content.trim();
+    }
+
+    private void readChatStream(Response response, StreamObserver<ChatResponsePart> responseObserver) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new ProviderHttpException(response.code(), "Error: " + response.body().string());
+        }
+        CHAT_STREAM_DECODER.decode(response.body().source(), responseObserver);
     }
    
 
@@ -17,6 +17,7 @@ import org.eclipse.jetty.util.ajax.JSON;
 import org.json.JSONObject;
 import us.daconta.xlmeco.*;
 import us.daconta.xlmeco.grpc.MetadataValue;
+import us.daconta.xlmeco.provider.Embedding;
 import us.daconta.xlmeco.provider.VectorDbProvider;
 import us.daconta.xlmeco.provider.VectorRecord;
 import us.daconta.xlmeco.provider.VectorSearchResult;
@@ -279,12 +280,19 @@ public class MilvusDbProvider implements VectorDbProvider {
 
 
     @Override
+    @Deprecated
     public boolean upsertVector(String id, List<Float> embedding, String content, Map<String, MetadataValue> metadata) {
+        return upsertVector(id, Embedding.fromList(embedding), content, metadata);
+    }
+
+    @Override
+    public boolean upsertVector(String id, Embedding embedding, String content, Map<String, MetadataValue> metadata) {
         List<InsertParam.Field> fields = new ArrayList<>();
         // Insert or update a vector record in Milvus
         List<InsertParam.Field> mandatoryFields = List.of(
                 new InsertParam.Field(PRIMARY_KEY_FIELD, Collections.singletonList(id)),
-                new InsertParam.Field(EMBEDDING_FIELD, Collections.singletonList(embedding)),
+                // The Milvus SDK takes List<Float>; the view boxes each value once while the request is encoded
+                new InsertParam.Field(EMBEDDING_FIELD, Collections.singletonList(embedding.asList())),
                 new InsertParam.Field(CONTENT_FIELD, Collections.singletonList(content))
         );
 
@@ -386,7 +394,7 @@ public class MilvusDbProvider implements VectorDbProvider {
 
         // Extract embedding (assume one row since we query by unique ID)
         List<List<Float>> embeddingData = (List<List<Float>>) embeddingField.getFieldData();
-        List<Float> embedding = embeddingData.get(0);
+        Embedding embedding = Embedding.fromList(embeddingData.get(0));
 
         // Extract content
         List<String> contentData = (List<String>) contentField.getFieldData();
@@ -483,7 +491,13 @@ public class MilvusDbProvider implements VectorDbProvider {
 
 
     @Override
+    @Deprecated
     public List<VectorSearchResult> searchVectors(List<Float> queryEmbedding, int topK) {
+        return searchVectors(Embedding.fromList(queryEmbedding), topK);
+    }
+
+    @Override
+    public List<VectorSearchResult> searchVectors(Embedding queryEmbedding, int topK) {
         // Ensure the collection is loaded before querying
         loadCollectionIfNotLoaded(COLLECTION_NAME);
 
@@ -494,7 +508,7 @@ public class MilvusDbProvider implements VectorDbProvider {
                         .withMetricType(MetricType.L2)
                         .withVectorFieldName(EMBEDDING_FIELD)
                         .withTopK(topK)
-                        .withVectors(Collections.singletonList(queryEmbedding))
+                        .withVectors(Collections.singletonList(queryEmbedding.asList()))
                         .withParams("{\"nprobe\":10}")
                         .addOutField(PRIMARY_KEY_FIELD)
                         .addOutField(EMBEDDING_FIELD)
@@ -514,7 +528,8 @@ public class MilvusDbProvider implements VectorDbProvider {
         for (SearchResultsWrapper.IDScore score:scores) {
             String resultId = (String) score.get(PRIMARY_KEY_FIELD);
 
-            List<Float> embedding = (List<Float>)score.get(EMBEDDING_FIELD);
+            List<Float> embeddingValues = (List<Float>)score.get(EMBEDDING_FIELD);
+            Embedding embedding = embeddingValues != null ? Embedding.fromList(embeddingValues) : null;
             System.out.println(embedding);
 
             float floatScore = score.getScore();
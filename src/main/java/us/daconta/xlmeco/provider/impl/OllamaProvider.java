@@ -1,12 +1,11 @@
 package us.daconta.xlmeco.provider.impl;
 
 import io.grpc.stub.StreamObserver;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
 import java.util.Properties;
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -18,7 +17,13 @@ import us.daconta.xlmeco.grpc.ChatRequest;
 import us.daconta.xlmeco.grpc.ChatResponsePart;
 import us.daconta.xlmeco.grpc.LmParameters;
 import us.daconta.xlmeco.provider.ChatProvider;
+import us.daconta.xlmeco.provider.EndpointPool;
 import us.daconta.xlmeco.provider.GenerativeProvider;
+import us.daconta.xlmeco.provider.GenerativeProviderFactory;
+import us.daconta.xlmeco.provider.JsonScanner;
+import us.daconta.xlmeco.provider.ProviderCalls;
+import us.daconta.xlmeco.provider.ProviderHttpException;
+import us.daconta.xlmeco.provider.TokenStreamDecoder;
 
 /**
  * Provider implementation for interacting with local Ollama language models.
@@ -30,10 +35,13 @@ public class OllamaProvider extends AbstractGenerativeProvider implements ChatPr
 
     private static final MediaType JSON = MediaType.parse("application/json");
     private static final String PROPERTY_TIMEOUT_SECONDS = "timeout_seconds";
+    // NDJSON chunks carry message.content (/api/chat) or response (/api/generate); done marks the last one
+    private static final TokenStreamDecoder CHAT_STREAM_DECODER = new TokenStreamDecoder(TokenStreamDecoder.Framing.NDJSON,
+            JsonScanner.path("done"), JsonScanner.path("message", "content"), JsonScanner.path("response"));
 
     private OkHttpClient httpClient;
     private String apiKey;
-    private String chatURL;
+    private EndpointPool chatEndpoints;
     private String defaultLanguageModel;
 
     public OllamaProvider() {
@@ -43,11 +51,13 @@ public class OllamaProvider extends AbstractGenerativeProvider implements ChatPr
     @Override
     public void initialize(Properties configProperties) {
         this.apiKey = configProperties.getProperty(GenerativeProvider.API_KEY);
-        this.chatURL = configProperties.getProperty(GenerativeProvider.PROPERTY_URL_CHAT, "http://localhost:11434/api/chat");
+        this.chatEndpoints = EndpointPool.fromProperties(PROVIDER_NAME, "chat", configProperties,
+                GenerativeProvider.PROPERTY_URL_CHAT, "http://localhost:11434/api/chat");
         this.defaultLanguageModel = configProperties.getProperty(GenerativeProvider.PROPERTY_DEFAULT_MODEL_LM, "llama3");
 
         long timeoutSeconds = parseTimeoutSeconds(configProperties.getProperty(PROPERTY_TIMEOUT_SECONDS));
-        this.httpClient = new OkHttpClient.Builder()
+        // Derived from the shared client so the connection pool and dispatcher are reused
+        this.httpClient = GenerativeProviderFactory.getHttpClient().newBuilder()
                 .callTimeout(Duration.ofSeconds(timeoutSeconds))
                 .connectTimeout(Duration.ofSeconds(timeoutSeconds))
                 .readTimeout(Duration.ofSeconds(timeoutSeconds))
@@ -57,79 +67,69 @@ public class OllamaProvider extends AbstractGenerativeProvider implements ChatPr
 
     @Override
     public String generateChatResponse(ChatRequest request) throws IOException {
-        String modelName = resolveModelName(request);
+        try (Response response = httpClient.newCall(buildChatRequest(request, false)).execute()) {
+            return readChatResponse(response);
+        }
+    }
 
-        JSONObject payload = buildChatPayload(request, modelName, false);
-        RequestBody body = RequestBody.create(payload.toString(), JSON);
-        Request httpRequest = buildRequest(body);
+    @Override
+    public CompletableFuture<String> generateChatResponseAsync(ChatRequest request) {
+        return ProviderCalls.enqueue(httpClient.newCall(buildChatRequest(request, false)), this::readChatResponse);
+    }
 
-        try (Response response = httpClient.newCall(httpRequest).execute()) {
+    @Override
+    public void streamChatResponse(ChatRequest request, StreamObserver<ChatResponsePart> responseObserver) throws Exception {
+        try (Response response = httpClient.newCall(buildChatRequest(request, true)).execute()) {
             if (!response.isSuccessful()) {
                 String errorBody = response.body() != null ? response.body().string() : "Unknown error";
-                return "Error: " + errorBody;
-            }
-
-            String responseBody = response.body() != null ? response.body().string() : "";
-            if (responseBody.isEmpty()) {
-                return "";
-            }
-
-            JSONObject jsonResponse = new JSONObject(responseBody);
-            if (jsonResponse.has("message")) {
-                JSONObject message = jsonResponse.getJSONObject("message");
-                return message.optString("content", "").trim();
+                responseObserver.onError(new ProviderHttpException(response.code(), "Error: " + errorBody));
+                return;
             }
-            return jsonResponse.optString("response", "").trim();
+            readChatStream(response, responseObserver);
+            responseObserver.onCompleted();
         }
     }
 
     @Override
-    public void streamChatResponse(ChatRequest request, StreamObserver<ChatResponsePart> responseObserver) throws Exception {
+    public Flow.Publisher<ChatResponsePart> streamChatResponseAsync(ChatRequest request) {
+        return ProviderCalls.enqueueStream(httpClient.newCall(buildChatRequest(request, true)), (response, observer) -> {
+            if (!response.isSuccessful()) {
+                String errorBody = response.body() != null ? response.body().string() : "Unknown error";
+                throw new ProviderHttpException(response.code(), "Error: " + errorBody);
+            }
+            readChatStream(response, observer);
+        });
+    }
+
+    private Request buildChatRequest(ChatRequest request, boolean stream) {
         String modelName = resolveModelName(request);
 
-        JSONObject payload = buildChatPayload(request, modelName, true);
+        JSONObject payload = buildChatPayload(request, modelName, stream);
         RequestBody body = RequestBody.create(payload.toString(), JSON);
-        Request httpRequest = buildRequest(body);
+        return buildRequest(body);
+    }
 
-        try (Response response = httpClient.newCall(httpRequest).execute()) {
-            if (!response.isSuccessful()) {
-                String errorBody = response.body() != null ? response.body().string() : "Unknown error";
-                responseObserver.onError(new IOException("Error: " + errorBody));
-                return;
-            }
+    private String readChatResponse(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            String errorBody = response.body() != null ? response.body().string() : "Unknown error";
+            throw new ProviderHttpException(response.code(), "Error: " + errorBody);
+        }
 
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body().byteStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.isBlank()) {
-                        continue;
-                    }
-
-                    JSONObject jsonChunk = new JSONObject(line);
-                    if (jsonChunk.optBoolean("done", false) && !jsonChunk.has("message")) {
-                        break;
-                    }
-
-                    if (jsonChunk.has("message")) {
-                        JSONObject message = jsonChunk.getJSONObject("message");
-                        String token = message.optString("content", "");
-                        if (!token.isEmpty()) {
-                            responseObserver.onNext(ChatResponsePart.newBuilder().setToken(token).build());
-                        }
-                    } else if (jsonChunk.has("response")) {
-                        String token = jsonChunk.optString("response", "");
-                        if (!token.isEmpty()) {
-                            responseObserver.onNext(ChatResponsePart.newBuilder().setToken(token).build());
-                        }
-                    }
-
-                    if (jsonChunk.optBoolean("done", false)) {
-                        break;
-                    }
-                }
-            }
-            responseObserver.onCompleted();
+        String responseBody = response.body() != null ? response.body().string() : "";
+        if (responseBody.isEmpty()) {
+            return "";
         }
+
+        JSONObject jsonResponse = new JSONObject(responseBody);
+        if (jsonResponse.has("message")) {
+            JSONObject message = jsonResponse.getJSONObject("message");
+            return message.optString("content", "").trim();
+        }
+        return jsonResponse.optString("response", "").trim();
+    }
+
+    private void readChatStream(Response response, StreamObserver<ChatResponsePart> responseObserver) throws IOException {
+        CHAT_STREAM_DECODER.decode(response.body().source(), responseObserver);
     }
 
     private JSONObject buildChatPayload(ChatRequest request, String modelName, boolean stream) {
@@ -173,8 +173,7 @@ public class OllamaProvider extends AbstractGenerativeProvider implements ChatPr
     }
 
     private Request buildRequest(RequestBody body) {
-        Request.Builder builder = new Request.Builder()
-                .url(chatURL)
+        Request.Builder builder = chatEndpoints.newRequest()
                 .post(body)
                 .addHeader("Content-Type", "application/json");
 
@@ -1,22 +1,30 @@
 package us.daconta.xlmeco.provider.impl;
 
 import okhttp3.*;
+import us.daconta.xlmeco.config.ConfigProperties;
 import us.daconta.xlmeco.grpc.ChatRequest;
 import us.daconta.xlmeco.grpc.ChatResponsePart;
 import us.daconta.xlmeco.grpc.ModelParameters;
 import us.daconta.xlmeco.provider.ChatProvider;
+import us.daconta.xlmeco.provider.Embedding;
 import io.grpc.stub.StreamObserver;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import us.daconta.xlmeco.provider.EmbeddingProvider;
+import us.daconta.xlmeco.provider.EndpointPool;
 import us.daconta.xlmeco.provider.GenerativeProvider;
+import us.daconta.xlmeco.provider.GenerativeProviderFactory;
+import us.daconta.xlmeco.provider.JsonScanner;
+import us.daconta.xlmeco.provider.ProviderCalls;
+import us.daconta.xlmeco.provider.ProviderHttpException;
+import us.daconta.xlmeco.provider.TokenStreamDecoder;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 
 public class OpenAIProvider extends AbstractGenerativeProvider implements ChatProvider, EmbeddingProvider {
     public static final String VERSION = "1.0";
@@ -27,13 +35,25 @@ public class OpenAIProvider extends AbstractGenerativeProvider implements ChatPr
     public static final String PROPERTY_URL_EMBEDDING = GenerativeProvider.PROPERTY_URL_EMBEDDING;
     public static final String PROPERTY_DEFAULT_MODEL_LM = GenerativeProvider.PROPERTY_DEFAULT_MODEL_LM;
     public static final String PROPERTY_DEFAULT_MODEL_EMBEDDING = GenerativeProvider.PROPERTY_DEFAULT_MODEL_EMBEDDING;
-
-    private final OkHttpClient httpClient = new OkHttpClient();
+    private static final TokenStreamDecoder CHAT_STREAM_DECODER = TokenStreamDecoder.openAiChat();
+    public static final String PROPERTY_EMBEDDING_BATCH_SIZE = "embedding_batch_size";
+    public static final String PROPERTY_EMBEDDING_BATCH_TOKENS = "embedding_batch_tokens";
+    // Limits of the embeddings endpoint: 2048 inputs and 300k tokens per request
+    public static final int DEFAULT_EMBEDDING_BATCH_SIZE = 2048;
+    public static final int DEFAULT_EMBEDDING_BATCH_TOKENS = 300_000;
+    private static final JsonScanner.Path EMBEDDING_PATH = JsonScanner.path("data", "0", "embedding");
+    private static final JsonScanner.Path DATA_PATH = JsonScanner.path("data");
+    private static final JsonScanner.Path INDEX_FIELD = JsonScanner.path("index");
+    private static final JsonScanner.Path EMBEDDING_FIELD = JsonScanner.path("embedding");
+
+    private OkHttpClient httpClient;
     private String apiKey;
-    private String chatURL;
-    private String embeddingURL;
+    private EndpointPool chatEndpoints;
+    private EndpointPool embeddingEndpoints;
     private String defaultLanguageModel;
     private String defaultEmbeddingModel;
+    private int embeddingBatchSize;
+    private int embeddingBatchTokens;
 
     // Configuration Properties read from property file
     private Properties configProperties;
@@ -46,10 +66,13 @@ public class OpenAIProvider extends AbstractGenerativeProvider implements ChatPr
     public void initialize(Properties configProperties) {
         this.configProperties = configProperties;
         apiKey = configProperties.getProperty(PROPERTY_API_KEY);
-        chatURL = configProperties.getProperty(PROPERTY_URL_CHAT);
-        embeddingURL = configProperties.getProperty(PROPERTY_URL_EMBEDDING);
+        chatEndpoints = EndpointPool.fromProperties(PROVIDER_NAME, "chat", configProperties, PROPERTY_URL_CHAT, null);
+        embeddingEndpoints = EndpointPool.fromProperties(PROVIDER_NAME, "embedding", configProperties, PROPERTY_URL_EMBEDDING, null);
         defaultLanguageModel = configProperties.getProperty(PROPERTY_DEFAULT_MODEL_LM);
         defaultEmbeddingModel = configProperties.getProperty(PROPERTY_DEFAULT_MODEL_EMBEDDING);
+        embeddingBatchSize = ConfigProperties.getInt(configProperties, PROPERTY_EMBEDDING_BATCH_SIZE, DEFAULT_EMBEDDING_BATCH_SIZE, 1);
+        embeddingBatchTokens = ConfigProperties.getInt(configProperties, PROPERTY_EMBEDDING_BATCH_TOKENS, DEFAULT_EMBEDDING_BATCH_TOKENS, 1);
+        httpClient = GenerativeProviderFactory.getHttpClient();
     }
 
     @Override
@@ -61,6 +84,11 @@ public class OpenAIProvider extends AbstractGenerativeProvider implements ChatPr
         return "openai";
     }
 
+    @Override
+    public String getEmbeddingModel() {
+        return defaultEmbeddingModel;
+    }
+
     @Override
     public boolean supportsChat() {
         return true;
@@ -83,6 +111,30 @@ public class OpenAIProvider extends AbstractGenerativeProvider implements ChatPr
 
     @Override
     public String generateChatResponse(ChatRequest request) throws IOException {
+        try (Response response = httpClient.newCall(buildChatRequest(request, false)).execute()) {
+            return readChatResponse(response);
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> generateChatResponseAsync(ChatRequest request) {
+        return ProviderCalls.enqueue(httpClient.newCall(buildChatRequest(request, false)), this::readChatResponse);
+    }
+
+    @Override
+    public void streamChatResponse(ChatRequest request, StreamObserver<ChatResponsePart> responseObserver) throws IOException {
+        try (Response response = httpClient.newCall(buildChatRequest(request, true)).execute()) {
+            readChatStream(response, responseObserver);
+        }
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public Flow.Publisher<ChatResponsePart> streamChatResponseAsync(ChatRequest request) {
+        return ProviderCalls.enqueueStream(httpClient.newCall(buildChatRequest(request, true)), this::readChatStream);
+    }
+
+    private Request buildChatRequest(ChatRequest request, boolean stream) {
         String prompt = request.getPrompt();
         String modelName = request.getModelName();
 
@@ -92,107 +144,127 @@ public class OpenAIProvider extends AbstractGenerativeProvider implements ChatPr
         String jsonBody = "{ \"model\": \"" + modelName + "\", " +
                 "\"messages\": [{ \"role\": \"system\", \"content\": \"You are a helpful assistant.\" }, " +
                 "{ \"role\": \"user\", \"content\": " + escapedPrompt + " }], " +
-                "\"max_tokens\": 1000 }";
+                "\"max_tokens\": 1000" + (stream ? ", \"stream\": true }" : " }");
 
         RequestBody body = RequestBody.create(MediaType.parse("application/json"), jsonBody);
-        Request httpRequest = new Request.Builder()
-                .url(chatURL)
+        return chatEndpoints.newRequest()
                 .post(body)
                 .addHeader("Authorization", "Bearer " + apiKey)
                 .build();
+    }
 
-        try (Response response = httpClient.newCall(httpRequest).execute()) {
-            if (!response.isSuccessful()) {
-                return "Error: " + response.body().string();
-            }
+    private String readChatResponse(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new ProviderHttpException(response.code(), "Error: " + response.body().string());
+        }
 
-            String responseBody = response.body().string();
-            JSONObject jsonResponse = new JSONObject(responseBody);
-            JSONArray choices = jsonResponse.getJSONArray("choices");
-            String content = choices.getJSONObject(0).getJSONObject("message").getString("content");
+        String responseBody = response.body().string();
+        JSONObject jsonResponse = new JSONObject(responseBody);
+        JSONArray choices = jsonResponse.getJSONArray("choices");
+        String content = choices.getJSONObject(0).getJSONObject("message").getString("content");
 
-            return content.trim();
+        return content.trim();
+    }
+
+    private void readChatStream(Response response, StreamObserver<ChatResponsePart> responseObserver) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new ProviderHttpException(response.code(), "Error: " + response.body().string());
         }
+        CHAT_STREAM_DECODER.decode(response.body().source(), responseObserver);
     }
 
     @Override
-    public void streamChatResponse(ChatRequest request, StreamObserver<ChatResponsePart> responseObserver) throws IOException {
-        String prompt = request.getPrompt();
-        // Escape the prompt to make it JSON-safe
-        String escapedPrompt = JSONObject.quote(prompt); // This will escape special characters in the prompt
+    @Deprecated
+    public List<Float> generateEmbedding(String text, ModelParameters params) {
+        return generateEmbeddingVector(text, params).asList();
+    }
 
-        String modelName = request.getModelName();
+    @Override
+    public Embedding generateEmbeddingVector(String text, ModelParameters params) {
+        // Send the request and parse the response
+        try (Response response = httpClient.newCall(buildEmbeddingRequest(text)).execute()) {
+            return Embedding.of(readEmbedding(response));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get embedding from OpenAI: " + e.getMessage(), e);
+        }
+    }
 
-        String jsonBody = "{ \"model\": \"" + modelName + "\", " +
-                "\"messages\": [{ \"role\": \"system\", \"content\": \"You are a helpful assistant.\" }, " +
-                "{ \"role\": \"user\", \"content\": " + escapedPrompt + " }], " +
-                "\"max_tokens\": 1000, \"stream\": true }";
+    @Override
+    public CompletableFuture<Embedding> generateEmbeddingAsync(String text, ModelParameters params) {
+        return ProviderCalls.enqueue(httpClient.newCall(buildEmbeddingRequest(text)), response -> Embedding.of(readEmbedding(response)));
+    }
 
-        RequestBody body = RequestBody.create(MediaType.parse("application/json"), jsonBody);
-        Request httpRequest = new Request.Builder()
-                .url(chatURL)
-                .post(body)
-                .addHeader("Authorization", "Bearer " + apiKey)
-                .build();
+    @Override
+    public int getMaxBatchSize() {
+        return embeddingBatchSize;
+    }
 
-        Response response = httpClient.newCall(httpRequest).execute();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(response.body().byteStream()));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (line.startsWith("data: ")) {
-                String jsonData = line.substring(6);
-                if ("[DONE]".equals(jsonData.trim())) {
-                    break;
-                }
-
-                JSONObject jsonResponse = new JSONObject(jsonData);
-                JSONArray choices = jsonResponse.getJSONArray("choices");
-                JSONObject delta = choices.getJSONObject(0).getJSONObject("delta");
-
-                if (delta.has("content")) {
-                    String token = delta.getString("content");
-                    ChatResponsePart responsePart = ChatResponsePart.newBuilder().setToken(token).build();
-                    responseObserver.onNext(responsePart);
-                }
-            }
-        }
-        responseObserver.onCompleted();
+    @Override
+    public int getMaxBatchTokens() {
+        return embeddingBatchTokens;
     }
 
+    // One request with an array input; the response holds one embedding per input
     @Override
-    public List<Float> generateEmbedding(String text, ModelParameters params) {
+    public CompletableFuture<List<Embedding>> generateEmbeddingsAsync(List<String> texts, ModelParameters params) {
+        if (texts.size() == 1) {
+            return generateEmbeddingAsync(texts.get(0), params).thenApply(List::of);
+        }
+        return ProviderCalls.enqueue(httpClient.newCall(buildEmbeddingRequest(new JSONArray(texts))),
+                response -> readEmbeddings(response, texts.size()));
+    }
+
+    private Request buildEmbeddingRequest(Object input) {
         // Create the JSON body for the request
         JSONObject jsonBody = new JSONObject();
         jsonBody.put("model", defaultEmbeddingModel);
-        jsonBody.put("input", text);
+        jsonBody.put("input", input);
 
         // Build the HTTP request
-        Request request = new Request.Builder()
-                .url(embeddingURL)
+        return embeddingEndpoints.newRequest()
                 .post(RequestBody.create(jsonBody.toString(), MediaType.parse("application/json")))
                 .addHeader("Authorization", "Bearer " + apiKey)
                 .build();
+    }
 
-        // Send the request and parse the response
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Unexpected code: " + response);
-            }
+    private float[] readEmbedding(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new ProviderHttpException(response.code(), "Unexpected code: " + response);
+        }
 
-            // Parse the response to extract the embedding
-            String responseBody = response.body().string();
-            JSONObject responseJson = new JSONObject(responseBody);
-            JSONArray embeddingArray = responseJson.getJSONArray("data").getJSONObject(0).getJSONArray("embedding");
+        // Parse the embedding straight from the response bytes into a float[]
+        return JsonScanner.readFloatArray(response.body().bytes(), EMBEDDING_PATH);
+    }
+
+    private List<Embedding> readEmbeddings(Response response, int count) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new ProviderHttpException(response.code(), "Unexpected code: " + response);
+        }
 
-            List<Float> embedding = new ArrayList<>();
-            for (int i = 0; i < embeddingArray.length(); i++) {
-                embedding.add(embeddingArray.getFloat(i));
+        // Walk the data array once; each item carries the index of its input
+        byte[] body = response.body().bytes();
+        int data = JsonScanner.find(body, 0, body.length, DATA_PATH);
+        if (data < 0) {
+            throw new IOException("Missing embeddings: " + DATA_PATH);
+        }
+        float[][] vectors = new float[count][];
+        JsonScanner.forEachElement(body, data, body.length, (position, start, end) -> {
+            int indexValue = JsonScanner.find(body, start, end, INDEX_FIELD);
+            int index = indexValue >= 0 ? JsonScanner.readInt(body, indexValue, end) : position;
+            int embedding = JsonScanner.find(body, start, end, EMBEDDING_FIELD);
+            if (index < 0 || index >= count || embedding < 0) {
+                throw new IOException("Unexpected embedding item " + index + " of " + count);
             }
-            return embedding;
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to get embedding from OpenAI: " + e.getMessage(), e);
+            vectors[index] = JsonScanner.readFloatArray(body, embedding, end);
+        });
+        List<Embedding> embeddings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (vectors[i] == null) {
+                throw new IOException("Missing embedding for input " + i + " of " + count);
+            }
+            embeddings.add(Embedding.of(vectors[i]));
         }
+        return embeddings;
     }
 
 }
-